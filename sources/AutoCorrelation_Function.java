@@ -1,6 +1,7 @@
 import ij.*;
 import ij.gui.*;
 import ij.util.*;
+import ij.io.FileInfo;
 import ij.plugin.filter.*;
 import ij.plugin.filter.PlugInFilter;
 import ij.plugin.frame.RoiManager;
@@ -15,7 +16,14 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.TextField;
 import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import multi_plot.*;
+import acf_engine.*;
+import static acf_engine.CorrelationKernels.*;
+import static acf_engine.DecayFit.*;
 
 //###########################################################################################################
 //###########################################################################################################
@@ -61,6 +69,9 @@ import multi_plot.*;
  *
  * FUNCTIONS FOR THE AUTOCORRELATION CALCULATIONS
  * - All the main functions used for the autocorrelation calculations
+ * - The time and radial ACFs are computed by the engines of the acf_engine package; C(r,t), RICS,
+ *   kICS, ccICS, pCF, the per-pixel maps, the lag-product cube and the map fits are computed here,
+ *   on the fields of the plug-in, one analysis at a time
  *
  * GENERIC MATHEMATICAL FUNCTIONS
  * - Mathematical functions for calculations within the plug-in
@@ -97,6 +108,8 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 	String[] shapeRoi = {"Circle","Square"};
 	String[] stepType = {"Power of 2", "Linear", "Inverse"};
 	String[] stepList = {"2%", "4%", "5%", "10%", "20%", "25%", "50%"};
+	String[] fitModels = {"Exponential", "Stretched exponential", "2D diffusion"};
+	String[] extraModes = {"Spatiotemporal ACF C(r,t)", "RICS", "k-space ICS (kICS)", "Dual-channel cross-correlation", "Pair-correlation function (pCF)", "Pixel ACF with Number & Brightness", "Per-pixel ACF hyperstack", "Fit ACF hyperstack (decay maps)", "Live ROI ACF (precomputed lag cube)", "Binning pyramid ACF (1x1 to 8x8)"};
 	String waveStep, typeStep;
 	static boolean useFFT			 = true;
 	static boolean useCalibration    = true;
@@ -107,6 +120,25 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 	static boolean displayFilter	 = false;
 	static boolean debugMode		 = false;
 	static boolean smoothBandpass	 = false;
+	static String lagSet			 = "1,2,4,8,16,32";
+	static String timeLags			 = "";	// Lags of the time ACF, empty for every lag up to half the stack
+	static double pixelDwellTime	 = 10.0;
+	static double lineTime			 = 5.0;
+	static int movingAverage		 = 10;
+	static String pcfPath			 = "Line through center";
+	static double pcfAngle			 = 0.0;
+	static int pcfDistance			 = 5;
+	static boolean fullFieldImage	 = false;
+	static int maxLagFrames			 = 100;
+	static int memoryBudget			 = 1024;
+	static int fitModel				 = EXPONENTIAL;
+	static int fitFirstLag			 = 1;
+	static int fitLastLag			 = 50;
+	static String pipelineThreads	 = "";
+	static String traceStorage		 = "Float";
+	static String[] traceStorages	 = {"Float", "Half precision", "Lossless delta"};	// In the order of the TraceStore formats
+	static boolean offHeapBuffers	 = true;
+	static BufferPool bufferPool	 = new BufferPool();	// Work arrays of the analyses, reused from one run to the next
 	String typeACF = null;
 	String roiShape = null;
 	static int shift_button_mask  = InputEvent.SHIFT_DOWN_MASK | InputEvent.BUTTON1_DOWN_MASK;
@@ -124,12 +156,27 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 	double mR;		// Radius in pixels of the circle over which the calculation is done
 	float []   dataX;	// X data of the plot
 	float [][] dataY;	// Y data of the plot
+	int[] cubeLags;		// Lags of the precomputed lag-product cube
+	double[][] lagTables;	// Summed-area tables of the per-pixel lag products, one per lag of the cube
+	MultyPlotWindowExt scrubWindow;	// Plot window updated while the ROI is moved
+	MultyPlotWindowExt previewWindow;	// Plot window of the live preview of the radial ACF
+	ExecutorService previewExecutor;	// Single background thread computing the previews
+	Future<?> previewTask;	// Pending preview, cancelled when a new one is requested
+	int previewGeneration;	// Index of the last preview requested, older results are discarded
+	final static int PREVIEW_DELAY = 100;	// Debouncing delay of the preview in ms
+	final static int PREVIEW_SIZE = 128;	// Size of the downsampled ROI of the coarse preview
+	Thread jobThread;	// Worker thread running the current analysis
+	OffHeapScope jobScope;	// Buffers of the current analysis kept off the heap, freed at its end (null if not used)
+	volatile String jobName;	// Name of the running analysis, null when idle
+	volatile boolean jobCancelled;	// Cooperative cancellation flag checked in the inner loops
+	volatile long jobStart, jobLastReport;	// Start time and time of the last progress report in ms
+	volatile boolean traceCachesStale;	// The stack was changed during the analysis: its trace caches are dropped at the end
 	TextField[] numericFields;
-	Button button0, button1, button2;
+	Button button0, button1, button2, button3, button4;
 	CheckboxGroup cbg;
-	Checkbox cb0, cb1, cb2, cb3, cb4, cb5, cb6, cb7, cb8;
+	Checkbox cb0, cb1, cb2, cb3, cb4, cb5, cb6, cb7, cb8, cbPreview;
 	Scrollbar slider0;
-	Choice choice0, choice1;
+	Choice choice0, choice1, choice2;
 
 	//------------------------------------------##
 	// FUNCTIONS FOR THE PLUG-IN INITIALISATION ##
@@ -299,6 +346,108 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 			IJ.showMessage("Error", "Stack required");
 	}
 
+	// CALCULATE THE ANALYSIS SELECTED IN THE EXTRA MODES LIST
+	private void calculateExtraMode()
+	{
+		if (imp.getStackSize() <= 1)
+		{
+			IJ.showMessage("Error", "Stack required");
+			return;
+		}
+
+		final String mode = choice2.getSelectedItem();
+		useCalibration = cb1.getState();
+
+		if (mode.equals(extraModes[0]))
+		{
+			final int[] lags = askLagSet("Spatiotemporal ACF", imp.getStackSize() - 1);
+			if (lags != null)
+				runJob(mode, new Runnable() { public void run() { SpatioTemporalACF(lags); } });
+		}
+		else if (mode.equals(extraModes[1]))
+		{
+			GenericDialog ricsDialog = new GenericDialog("RICS");
+			ricsDialog.addNumericField("Pixel dwell time (us):", pixelDwellTime, 3);
+			ricsDialog.addNumericField("Line time (ms):", lineTime, 3);
+			ricsDialog.addNumericField("Moving average (frames, 0 = off):", movingAverage, 0);
+			ricsDialog.showDialog();
+			if (ricsDialog.wasCanceled())
+				return;
+			pixelDwellTime = ricsDialog.getNextNumber();
+			lineTime = ricsDialog.getNextNumber();
+			movingAverage = (int) ricsDialog.getNextNumber();
+			runJob(mode, new Runnable() { public void run() { RasterICS(); } });
+		}
+		else if (mode.equals(extraModes[2]))
+		{
+			final int[] lags = askLagSet("kICS", imp.getStackSize() - 1);
+			if (lags != null)
+				runJob(mode, new Runnable() { public void run() { kSpaceICS(lags); } });
+		}
+		else if (mode.equals(extraModes[3]))
+			runJob(mode, new Runnable() { public void run() { CrossCorrelationICS(); } });
+		else if (mode.equals(extraModes[4]))
+		{
+			String[] paths = {"Line through center", "Circle perimeter"};
+			GenericDialog pcfDialog = new GenericDialog("Pair-correlation function");
+			pcfDialog.addChoice("Path:", paths, pcfPath);
+			pcfDialog.addNumericField("Line angle (degrees):", pcfAngle, 1);
+			pcfDialog.addNumericField("Pair distance (pixels):", pcfDistance, 0);
+			pcfDialog.showDialog();
+			if (pcfDialog.wasCanceled())
+				return;
+			pcfPath = pcfDialog.getNextChoice();
+			pcfAngle = pcfDialog.getNextNumber();
+			pcfDistance = (int) pcfDialog.getNextNumber();
+			final boolean alongCircle = pcfPath.equals(paths[1]);
+			runJob(mode, new Runnable() { public void run() { PairCorrelationFunction(alongCircle, pcfAngle, pcfDistance); } });
+		}
+		else if (mode.equals(extraModes[5]))
+			runJob(mode, new Runnable() { public void run() { AutocorrTime(true); } });
+		else if (mode.equals(extraModes[6]))
+		{
+			GenericDialog fieldDialog = new GenericDialog("Per-pixel ACF");
+			fieldDialog.addCheckbox("Whole image (instead of the ROI)", fullFieldImage);
+			fieldDialog.addNumericField("Maximum lag (frames):", Math.min(maxLagFrames, imp.getStackSize() - 1), 0);
+			fieldDialog.addNumericField("Memory budget for the traces (MB):", memoryBudget, 0);
+			fieldDialog.showDialog();
+			if (fieldDialog.wasCanceled())
+				return;
+			fullFieldImage = fieldDialog.getNextBoolean();
+			maxLagFrames = (int) fieldDialog.getNextNumber();
+			memoryBudget = (int) fieldDialog.getNextNumber();
+			runJob(mode, new Runnable() { public void run() { PixelACFHyperstack(fullFieldImage, maxLagFrames, memoryBudget); } });
+		}
+		else if (mode.equals(extraModes[7]))
+		{
+			int[] idList = WindowManager.getIDList();
+			String[] titles = new String[idList.length];
+			for (int i = 0; i < idList.length; i++)
+				titles[i] = WindowManager.getImage(idList[i]).getTitle();
+			GenericDialog fitDialog = new GenericDialog("Fit ACF hyperstack");
+			fitDialog.addChoice("ACF hyperstack (lags as frames):", titles, titles[titles.length - 1]);
+			fitDialog.addChoice("Model:", fitModels, fitModels[fitModel]);
+			fitDialog.addNumericField("First lag:", fitFirstLag, 0);
+			fitDialog.addNumericField("Last lag:", fitLastLag, 0);
+			fitDialog.showDialog();
+			if (fitDialog.wasCanceled())
+				return;
+			final ImagePlus acfImg = WindowManager.getImage(idList[fitDialog.getNextChoiceIndex()]);
+			fitModel = fitDialog.getNextChoiceIndex();
+			fitFirstLag = (int) fitDialog.getNextNumber();
+			fitLastLag = (int) fitDialog.getNextNumber();
+			runJob(mode, new Runnable() { public void run() { FitACFHyperstack(acfImg, fitModel, fitFirstLag, fitLastLag); } });
+		}
+		else if (mode.equals(extraModes[8]))
+		{
+			final int[] lags = askLagSet("Live ROI ACF", imp.getStackSize() - 1);
+			if (lags != null)
+				runJob(mode, new Runnable() { public void run() { PrecomputeLagCube(lags); } });
+		}
+		else if (mode.equals(extraModes[9]))
+			runJob(mode, new Runnable() { public void run() { AutocorrTimePyramid(); } });
+	}
+
 	// CALCULATE THE SPATIAL AUTOCORRELATION FUNCTION ON A SINGLE FRAME
 	public void doRadialAutoCorrelation(ImageProcessor ip)
 	{
@@ -389,7 +538,7 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		plot = new MultyPlotExt("AutoCorrelation on "+getImageTitle()+"", "Radius ["+unitName+"]", "AutoCorrelation",  dataX, dataY[0]);
 		headings[0] = "Radius ["+unitName+"]\t";
 		headings[1] = "AutoCorrelation";
-	        MultyPlotWindowExt wnd = plot.show();
+	        MultyPlotWindowExt wnd = showPlot(plot);
         	wnd.setLineHeadings(headings, false);
 	}
 
@@ -426,25 +575,40 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		if (cal == null || cal.frameInterval == 0)
 			useTimeCalibration = false;
 
+		//AUTOCORRELATION THROUGH FFT/FHT, THE FRAMES GO THROUGH THE STAGES OF THE ENGINE PIPELINE
+		if (useFFT)
+		{
+			FrameSource source = openFrames();
+			try
+			{
+				ACFResult result = new SpatialACFEngine(getPipelineSettings(), bufferPool).stackRadialACF(source, getEngineParameters().build(), false, jobProgress());
+				for (j = 0; j != imp.getStackSize(); j++)
+					dataY[j] = result.getCurve(j);
+			}
+			finally
+			{
+				closeFrames(source);
+			}
+		}
+
 		// Measure the ACF on all the pictures of the stack
 		for (j = 0; j != imp.getStackSize(); j++)
 		{
-			// Move to the new slice
-			imp.setSlice(j + 1);			
 			if (useTimeCalibration)
 				headings[j+1] =  ""+ IJ.d2s((j * cal.frameInterval), getDigits(j * cal.frameInterval, j * cal.frameInterval)) + " " + cal.getTimeUnit();
 			else
 				headings[j+1] =  String.valueOf(j+1);
 
-			//AUTOCORRELATION THROUGH FFT/FHT (From "FD Math...")
-			if (useFFT)
-				dataY[j] = performFourierACF(imp);
-	
 			//AUTOCORRELATION WITHOUT FFT/FHT
-			else
+			if (!useFFT)
+			{
+				// Move to the new slice
+				checkJob(j, imp.getStackSize());
+				imp.setSlice(j + 1);
 				imp.setRoi(oroi); //Set the ROI on the ImagePlus
 				mean = imp.getStatistics().mean; //Calculate the mean of intensity in the ROI
 				dataY[j] = getRadialProfile(imp.getProcessor(), xmin, xmax, ymin, ymax, X0, Y0, mean, useFFT);
+			}
 		}
 
 		// GENERATE THE DATAX ARRAY REGARDING THE SPATIAL CALIBRATION OF THE PICTURE
@@ -498,7 +662,7 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 			headings[0] = "Radius ["+unitName+"]\t";
 
 			headings[1] = "AutoCorrelation";
-	        	MultyPlotWindowExt wnd = plot.show();
+	        	MultyPlotWindowExt wnd = showPlot(plot);
 			wnd.setLineHeadings(headings, false);
 		}
 
@@ -524,7 +688,7 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 				plot.addPoints(dataX, dataY[j], 2);
 			}
 			plot.setColor(new Color(0, 0, 0));		// This line is added so that dataY[0] which is actually drawn at last (for I don't know which reason - maybe a bug of the MultyPlotExt class) is drawn in black color (as expected from the code) and not with the last defined color of the previous loop
-			MultyPlotWindowExt wnd = plot.show();
+			MultyPlotWindowExt wnd = showPlot(plot);
 			wnd.setLineHeadings(headings, false);
 //			wnd.setPrecision(3,3);
 		}
@@ -533,35 +697,15 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 	// CALCULATE THE TIME ACF
 	public void AutocorrTime()
 	{
-		int nPixels;
-		nPixels = (int) ( 4 * mR * mR );
-		float [][] scanDataY;
-		float [][] dispDataY;
-		float [] scanDataX;
-		float [] testX;
-		int [][] coodXY;
-		int [][] finCoodXY;
-		float minY, maxY;
-		double[] extrema;
+		AutocorrTime(false);
+	}
+
+	// CALCULATE THE TIME ACF, AND THE NUMBER AND BRIGHTNESS MAPS IN THE SAME PASS IF REQUIRED
+	public void AutocorrTime(boolean numberBrightness)
+	{
 		int Nsize = imp.getStackSize();
-		dataX  = new float[Nsize / 2];
-		dataY  = new float[1][Nsize / 2];
-		scanDataY = new float[nPixels][Nsize];
-		scanDataX = new float[nPixels];
-		dispDataY = new float[nPixels][Nsize];
-		testX = new float[Nsize];
-		coodXY = new int[nPixels][2];
-		finCoodXY = new int[nPixels][2];
 		String[] headings = new String[2];
-		String[] headingsInt = new String[2];
-		int i, j, k;
-		int thisBin;
-		double a, b, c, d;
-		double R;
-		double xmin = X0 - mR, xmax = X0 + mR, ymin = Y0 - mR, ymax = Y0 + mR;
-		double xrange = xmax - xmin, yrange = ymax - ymin;
-		double mean;
-		float iMean;
+		int i;
 		boolean pixelIntensity = false;
 		Calibration cal = imp.getCalibration();
 
@@ -572,152 +716,42 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		
 		if (cal == null || cal.frameInterval == 0)
 			useTimeCalibration = false;
-			
-		OvalRoi oroi = new OvalRoi(xmin, ymin, 2 * mR, 2 * mR); //Set a new ROI with the same size and shape that the one set by the user
-		Roi croi = new Roi(xmin, ymin, 2 * mR, 2 * mR); //Set a new ROI with the same size and shape that the one set by the user
-	
-		for (j = 0; j < Nsize; j++)
-		{	
-			imp.setSlice(j + 1);
-			if (roiShape == "Circle")
-				imp.setRoi(oroi);
-			else
-				imp.setRoi(croi);
-			mean = imp.getStatistics().mean;
-			ImageProcessor tempID = imp.getProcessor();
-			FloatProcessor psID = new FloatProcessor(tempID.getWidth(), tempID.getHeight());
-			psID = tempID.convertToFloatProcessor();
-			
-			if( pixelIntensity == true )
-			{
-				psID.add(- mean);
-			}
-			
-			//SCAN THE ROI AND GET EVERY PIXEL VALUE			
-			for (b = 0; b < yrange; b++)
-			{
-				for (a = 0; a < xrange; a++)
-				{
-					c = a + xmin;
-					d = b + ymin;
-					R = Math.sqrt((c - X0) * (c - X0) + (d - Y0) * (d - Y0));
-					if( R <= mR || roiShape == "Square")
-					{
-						thisBin = (int) ( a + b * yrange );
-						scanDataX   [thisBin] = scanDataX   [thisBin] + 1;
-						scanDataY[thisBin][j] = psID.getPixelValue((int) c, (int) d);
-						coodXY[thisBin][0] = (int) c;
-						coodXY[thisBin][1] = (int) d;
-					}
-				}
-			}
-		}
 
-//--------------------------------------------------------------
-//		DEBUG - DISPLAY THE PIXEL INTENSITIES OVER TIME
-		if (pixelIntensity)
+		//CALCULATE THE AUTOCORRELATION FUNCTION WITH THE TIME ENGINE
+		ACFParameters params = getEngineParameters().subtractFrameMean(pixelIntensity).lags(getTimeLags(Nsize)).build();
+		FrameSource source = openFrames();
+		TimeACFEngine engine = new TimeACFEngine(getPipelineSettings(), jobScope, bufferPool);
+		ACFResult result;
+		try
 		{
-			k = 0;
-			
-			for (i = 0; i < nPixels; i++)
-			{
-				if (scanDataX[i] != 0)
-				{
-					dispDataY[k] = scanDataY[i];
-					finCoodXY[k] = coodXY[i];
-					k = k + 1;
-				}
-			}
-			
-			headingsInt = new String[k];
-		
-			minY = dispDataY[0][0];
-			maxY = dispDataY[0][0];
-			for (i = 0; i < k; i++)
-			{
-				extrema = Tools.getMinMax(scanDataY[i]);
-				if (extrema[0] < minY)
-					minY = (float) extrema[0];
-				if (extrema[1] > maxY)
-					maxY = (float) extrema[1];
-			}
-			
-			for (i = 0; i < Nsize; i++)
-			{
-				testX[i] = i + 1;
-			}
-			
-			if (useTimeCalibration)
-			{
-				for (i = 0; i < Nsize; i++)
-					testX[i] = (float) (cal.frameInterval * (double) i);
-				plotInt = new MultyPlotExt("Pixel Intensities on "+getImageTitle()+"", "Time ["+cal.getTimeUnit()+"]", "Intensity",  testX, dispDataY[0]);
-				headingsInt[0] = "Time ["+cal.getTimeUnit()+"]";
-			}
+			//TRACES LARGER THAN THE MEMORY BUDGET ARE STREAMED FROM THE TRACE CACHE, WHICH IS REUSED IF IT EXISTS
+			TraceCache cache = TraceCache.find(traceCacheKey(), source, params);
+			if (cache == null && getTraceBytes() * (long) Math.pow(2 * mR + 2, 2) * Nsize > ((long) memoryBudget << 20))
+				cache = getTraceCache(source, params);
+			if (cache != null)
+				result = engine.pixelACF(cache, params, numberBrightness, jobProgress());
 			else
-			{
-				plotInt = new MultyPlotExt("Pixel Intensities on "+getImageTitle()+"", "Time [picture]", "Intensity",  testX, dispDataY[0]);
-				headingsInt[0] = "Time [picture]";
-			}
-			plotInt.setLimits(testX[0], testX[Nsize - 1], minY, maxY);
-			
-			for (j = 1; j < k; j++)
-			{
-				headingsInt[j] =  "("+String.valueOf(finCoodXY[j - 1][0])+";"+String.valueOf(finCoodXY[j - 1][1])+")";
-				plotInt.setColor(new Color(colorGeneration(j,1) * 0xff, colorGeneration(j,2) * 0xff, colorGeneration(j,3) * 0xff));
-				plotInt.addPoints(testX, dispDataY[j], 2);
-			}
-			plotInt.setColor(new Color(0, 0, 0));		// This line is added so that dataY[0] which is actually drawn at last (for I don't know which reason - maybe a bug of the MultyPlotExt class) is drawn in black color (as expected from the code) and not with the last defined color of the previous loop
-			MultyPlotWindowExt wndInt = plotInt.show();
-			wndInt.setLineHeadings(headingsInt, false);
-		}
-		//--------------------------------------------------------------
+				result = engine.pixelACF(source, params, numberBrightness, jobProgress());
 
-		
-		//CALCULATE THE AUTOCORRELATION FUNCTION
-		for (a = 0; a < xrange; a++)
-		{
-			for (b = 0; b < yrange; b++)
-			{
-				thisBin = (int) (b + a * xrange);
-				if( scanDataX[thisBin] != 0 )
-				{
-					iMean = 0;
-					for (j = 0; j < Nsize; j++)
-					{
-						iMean = iMean + scanDataY[thisBin][j];
-					}
-					iMean = iMean / Nsize;
-					for (i = 0; i < Nsize / 2; i++)
-					{
-						for (j = 0; j < Nsize - i; j++)
-						{
-							dataY[0][i] = dataY[0][i] + (scanDataY[thisBin][j] - iMean) * (scanDataY[thisBin][j + i] - iMean);
-							dataX[i] = dataX[i] + 1;
-						}
-					}
-				}
-			}
-		}
-			
-		for (i = 0; i < Nsize / 2; i++)
-		{
-			dataY[0][i] = dataY[0][i] / dataX[i];
-			dataX[i] = i;
+//--------------------------------------------------------------
+//			DEBUG - DISPLAY THE PIXEL INTENSITIES OVER TIME
+			if (pixelIntensity)
+				displayPixelIntensities(source, params);
+			//--------------------------------------------------------------
 		}
-			
-		// Normalize by the value at time origin
-		float norm = dataY[0][0];
-		for (i = 0; i < Nsize / 2; i++)
+		finally
 		{
-			dataY[0][i] = dataY[0][i] / norm;
+			closeFrames(source);
 		}
 
+		dataX = result.getX();
+		dataY = new float[][] {result.getCurve(0)};
+
 		// Apply the time calibration if possible
 		if (useTimeCalibration)
 		{
-			for (i = 0; i < Nsize / 2; i++)
-				dataX[i] = (float) (cal.frameInterval * (double) i);
+			for (i = 0; i < dataX.length; i++)
+				dataX[i] = (float) (cal.frameInterval * (double) dataX[i]);
 			unitName = cal.getTimeUnit();
 		}
 		else
@@ -727,8 +761,286 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		plot = new MultyPlotExt("Pixel AutoCorrelation on "+getImageTitle()+"", "Time ["+ unitName +"]", "AutoCorrelation",  dataX, dataY[0]);
 		headings[0] = "Time ["+ unitName +"]\t";
 		headings[1] = "AutoCorrelation";
-		MultyPlotWindowExt wnd = plot.show();
+		MultyPlotWindowExt wnd = showPlot(plot);
 		wnd.setLineHeadings(headings, false);
+
+		if (numberBrightness)
+			displayNumberBrightness(result.getMoments());
+	}
+
+	// BUILD THE PARAMETERS OF THE ENGINES FROM THE ROI OF THE GUI
+	ACFParameters.Builder getEngineParameters()
+	{
+		return new ACFParameters.Builder().roi(X0, Y0, mR).shape(roiShape == "Square" ? ACFParameters.SQUARE : ACFParameters.CIRCLE).traceStorage(getTraceStorage());
+	}
+
+	// LAGS OF THE TIME ACF CHOSEN IN THE DIALOG, OR null FOR EVERY LAG UP TO HALF THE STACK
+	static int[] getTimeLags(int Nsize)
+	{
+		if (timeLags.trim().length() == 0)
+			return null;
+		int[] lags = parseLagSet(timeLags, Nsize - 1);
+		if (lags.length == 0)
+			throw new IllegalArgumentException("No time lag between 0 and " + (Nsize - 1) + " in \"" + timeLags + "\"");
+		return lags;
+	}
+
+	// TRACESTORE FORMAT CHOSEN IN THE DIALOG
+	static int getTraceStorage()
+	{
+		return Math.max(0, Arrays.asList(traceStorages).indexOf(traceStorage));
+	}
+
+	// BYTES TAKEN BY A VALUE OF A TRACE IN THE CHOSEN STORAGE (ABOUT TWO FOR THE DELTA CODING OF CAMERA DATA)
+	static int getTraceBytes()
+	{
+		return getTraceStorage() == TraceStore.FLOAT ? 4 : 2;
+	}
+
+	// PROGRESS LISTENER OF THE ENGINES, REPORTING TO THE RUNNING JOB
+	ProgressListener jobProgress()
+	{
+		return new ProgressListener()
+		{
+			public void progress(int done, int total)
+			{
+				checkJob(done, total);
+			}
+		};
+	}
+
+	// FRAMES OF THE STACK; THE FRAMES OF A VIRTUAL STACK ARE MAPPED FROM ITS FILE, OR DECODED AHEAD ON A FEW THREADS WHILE THE OTHERS ARE PROCESSED
+	//Every source opened must be closed with closeFrames()
+	FrameSource openFrames()
+	{
+		if (!imp.getStack().isVirtual())
+			return new StackFrameSource(imp.getStack());
+		FrameSource mapped = openMappedFrames();
+		if (mapped != null)
+			return mapped;
+		return new ReadAheadFrameSource(new StackFrameSource(imp.getStack()), 16, (long) memoryBudget << 20, 2);
+	}
+
+	// FILE OF A VIRTUAL STACK MAPPED IN MEMORY, NULL IF IT IS NOT AN UNCOMPRESSED 16-BIT FILE OF THE SAME FRAMES
+	MappedFrameSource openMappedFrames()
+	{
+		FileInfo info = imp.getOriginalFileInfo();
+		if (info == null || info.directory == null || info.fileName == null || imp.getBitDepth() != 16)
+			return null;
+		try
+		{
+			String name = info.fileName.toLowerCase();
+			MappedFrameSource source;
+			if (name.endsWith(".tif") || name.endsWith(".tiff"))
+				source = MappedFrameSource.open(new File(info.directory, info.fileName));
+			else
+				source = MappedFrameSource.open(info);
+			if (source.getWidth() == imp.getWidth() && source.getHeight() == imp.getHeight() && source.getFrameCount() == imp.getStackSize())
+				return source;
+		}
+		catch (IOException e)
+		{
+			//DECODED BY IMAGEJ
+		}
+		return null;
+	}
+
+	// STOP THE READ-AHEAD OF A FRAME SOURCE
+	static void closeFrames(FrameSource source)
+	{
+		if (source instanceof ReadAheadFrameSource)
+			((ReadAheadFrameSource) source).close();
+	}
+
+	// READ ONE FRAME (FROM 0) AS A FLOAT PROCESSOR
+	static ImageProcessor getFrame(FrameSource source, int frame)
+	{
+		float[] pixels = new float[source.getWidth() * source.getHeight()];
+		source.readRegion(frame, 0, 0, source.getWidth(), source.getHeight(), pixels);
+		return new FloatProcessor(source.getWidth(), source.getHeight(), pixels, null);
+	}
+
+	// KEY OF THE TRACE CACHES OF THE STACK
+	String traceCacheKey()
+	{
+		return "image " + imp.getID();
+	}
+
+	// PIXEL-MAJOR TRACE CACHE OF A BOX OF THE STACK, NULL IF THE FILE CANNOT BE WRITTEN
+	TraceCache getTraceCache(int x, int y, int width, int height)
+	{
+		FrameSource source = openFrames();
+		try
+		{
+			IJ.log("Transpose the stack into the trace cache");
+			return TraceCache.get(traceCacheKey(), source, x, y, width, height, jobProgress());
+		}
+		catch (IOException e)
+		{
+			IJ.log("Trace cache not available: " + e.getMessage());
+			return null;
+		}
+		finally
+		{
+			closeFrames(source);
+		}
+	}
+
+	// TRACE CACHE OF THE BOUNDING BOX OF A ROI
+	TraceCache getTraceCache(FrameSource source, ACFParameters params)
+	{
+		try
+		{
+			IJ.log("Transpose the ROI into the trace cache");
+			return TraceCache.get(traceCacheKey(), source, params, jobProgress());
+		}
+		catch (IOException e)
+		{
+			IJ.log("Trace cache not available: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// THREADS OF THE STAGES OF THE ENGINE PIPELINES, THE OCCUPANCY OF EVERY STAGE IS LOGGED AFTER EACH RUN
+	SlicePipeline.Settings getPipelineSettings()
+	{
+		SlicePipeline.Settings settings = new SlicePipeline.Settings();
+		try
+		{
+			settings.parse(pipelineThreads);
+		}
+		catch (IllegalArgumentException e)
+		{
+			IJ.log("Threads per stage ignored: " + e.getMessage());
+		}
+		return settings.monitor(new SlicePipeline.Monitor()
+		{
+			public void pipelineDone(SlicePipeline.Report report)
+			{
+				IJ.log(report.toString());
+			}
+		});
+	}
+
+	// DEBUG - DISPLAY THE INTENSITY OVER TIME OF EVERY PIXEL OF THE ROI
+	private void displayPixelIntensities(FrameSource source, ACFParameters params)
+	{
+		int Nsize = source.getFrameCount();
+		int x0 = Math.max(0, (int) (X0 - mR - 1)), y0 = Math.max(0, (int) (Y0 - mR - 1));
+		int width = Math.min(source.getWidth(), (int) Math.ceil(X0 + mR + 1)) - x0;
+		int height = Math.min(source.getHeight(), (int) Math.ceil(Y0 + mR + 1)) - y0;
+		int i, j, k;
+		Calibration cal = imp.getCalibration();
+
+		ArrayList<int[]> coodXY = new ArrayList<int[]>();
+		for (j = 0; j < height; j++)
+			for (i = 0; i < width; i++)
+				if (params.isSampled(x0 + i, y0 + j))
+					coodXY.add(new int[] {x0 + i, y0 + j});
+		int nPixels = coodXY.size();
+		if (nPixels == 0)
+			return;
+
+		float[][] dispDataY = new float[nPixels][Nsize];
+		float[] region = new float[width * height];
+		for (j = 0; j < Nsize; j++)
+		{
+			source.readRegion(j, x0, y0, width, height, region);
+			double mean = 0;
+			for (k = 0; k < nPixels; k++)
+				mean += region[(coodXY.get(k)[1] - y0) * width + coodXY.get(k)[0] - x0];
+			mean = mean / nPixels;
+			for (k = 0; k < nPixels; k++)
+				dispDataY[k][j] = (float) (region[(coodXY.get(k)[1] - y0) * width + coodXY.get(k)[0] - x0] - mean);
+		}
+
+		float minY = dispDataY[0][0], maxY = dispDataY[0][0];
+		for (k = 0; k < nPixels; k++)
+		{
+			double[] extrema = Tools.getMinMax(dispDataY[k]);
+			minY = (float) Math.min(minY, extrema[0]);
+			maxY = (float) Math.max(maxY, extrema[1]);
+		}
+
+		float[] testX = new float[Nsize];
+		String[] headingsInt = new String[nPixels + 1];
+		String timeUnit = useTimeCalibration ? cal.getTimeUnit() : "picture";
+		for (i = 0; i < Nsize; i++)
+			testX[i] = useTimeCalibration ? (float) (cal.frameInterval * (double) i) : i + 1;
+		plotInt = new MultyPlotExt("Pixel Intensities on "+getImageTitle()+"", "Time ["+timeUnit+"]", "Intensity",  testX, dispDataY[0]);
+		headingsInt[0] = "Time ["+timeUnit+"]";
+		plotInt.setLimits(testX[0], testX[Nsize - 1], minY, maxY);
+		
+		for (k = 0; k < nPixels; k++)
+		{
+			headingsInt[k + 1] =  "("+String.valueOf(coodXY.get(k)[0])+";"+String.valueOf(coodXY.get(k)[1])+")";
+			if (k == 0)
+				continue;
+			plotInt.setColor(new Color(colorGeneration(k,1) * 0xff, colorGeneration(k,2) * 0xff, colorGeneration(k,3) * 0xff));
+			plotInt.addPoints(testX, dispDataY[k], 2);
+		}
+		plotInt.setColor(new Color(0, 0, 0));		// This line is added so that dataY[0] which is actually drawn at last (for I don't know which reason - maybe a bug of the MultyPlotExt class) is drawn in black color (as expected from the code) and not with the last defined color of the previous loop
+		MultyPlotWindowExt wndInt = showPlot(plotInt);
+		wndInt.setLineHeadings(headingsInt, false);
+	}
+
+	// DISPLAY THE APPARENT BRIGHTNESS B = VAR/MEAN AND NUMBER N = MEAN^2/VAR MAPS, AND THE BRIGHTNESS HISTOGRAM
+	private void displayNumberBrightness(ACFResult.MomentMaps moments)
+	{
+		int nHistBins = 100;
+		int i, nValues = 0;
+		int width = moments.getWidth(), height = moments.getHeight();
+		float[] pixelMean = moments.getMean();
+		float[] pixelVariance = moments.getVariance();
+		float[] brightness = new float[width * height];
+		float[] number = new float[width * height];
+		float[] values = new float[pixelMean.length];
+
+		for (i = 0; i < pixelMean.length; i++)
+		{
+			if (!Float.isNaN(pixelMean[i]) && pixelMean[i] != 0 && pixelVariance[i] != 0)
+			{
+				brightness[i] = pixelVariance[i] / pixelMean[i];
+				number[i] = pixelMean[i] * pixelMean[i] / pixelVariance[i];
+				values[nValues++] = brightness[i];
+			}
+			else
+			{
+				brightness[i] = Float.NaN;
+				number[i] = Float.NaN;
+			}
+		}
+		if (nValues == 0)
+			return;
+
+		Calibration mapCal = imp.getCalibration().copy();
+		mapCal.xOrigin = -moments.getX();
+		mapCal.yOrigin = -moments.getY();
+		ImagePlus brightnessImg = new ImagePlus("Brightness on "+getImageTitle()+"", new FloatProcessor(width, height, brightness, null));
+		ImagePlus numberImg = new ImagePlus("Number on "+getImageTitle()+"", new FloatProcessor(width, height, number, null));
+		brightnessImg.setCalibration(mapCal);
+		numberImg.setCalibration(mapCal);
+		brightnessImg.getProcessor().resetMinAndMax();
+		numberImg.getProcessor().resetMinAndMax();
+		showImage(brightnessImg);
+		showImage(numberImg);
+
+		// HISTOGRAM OF THE BRIGHTNESS VALUES
+		double[] extrema = Tools.getMinMax(Arrays.copyOf(values, nValues));
+		double binWidth = (extrema[1] - extrema[0]) / nHistBins;
+		if (binWidth == 0)
+			binWidth = 1;
+		float[] histX = new float[nHistBins];
+		float[] histY = new float[nHistBins];
+		for (i = 0; i < nHistBins; i++)
+			histX[i] = (float) (extrema[0] + (i + 0.5) * binWidth);
+		for (i = 0; i < nValues; i++)
+			histY[Math.min(nHistBins - 1, (int) ((values[i] - extrema[0]) / binWidth))]++;
+
+		String[] headings = {"Brightness", "Pixel count"};
+		MultyPlotExt plotHist = new MultyPlotExt("Brightness histogram on "+getImageTitle()+"", "Brightness", "Pixel count", histX, histY);
+		MultyPlotWindowExt wndHist = showPlot(plotHist);
+		wndHist.setLineHeadings(headings, false);
 	}
 	
 	// CALCULATE THE TIME ACF OVER A MEAN AREA
@@ -745,7 +1057,6 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		int Nsize = imp.getStackSize();
 		dataX  = new float[Nsize / 2];
 		dataY  = new float[nScan][Nsize / 2];
-		scanDataY = new float[nScan][Nsize];
 		scanDataX = new float[Nsize];
 		testX = new float[Nsize];
 		String[] headings = new String[nScan + 1];
@@ -782,76 +1093,48 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 				}	
 			}
 
+		//MEAN INTENSITY OF EVERY AREA IN A SINGLE READ OF THE FRAMES, THEN ITS ACF (TIME ENGINE)
+		ACFParameters params = getEngineParameters().lags(getTimeLags(Nsize)).build();
+		TimeACFEngine engine = new TimeACFEngine(getPipelineSettings(), jobScope, bufferPool);
+		FrameSource source = openFrames();
+		try
+		{
+			scanDataY = engine.areaTraces(source, params, jobProgress());
+		}
+		finally
+		{
+			closeFrames(source);
+		}
+		ACFResult result = engine.areaACF(scanDataY, params, jobProgress());
+		dataX = result.getX();
+
 		// Scan over the area size
 		for (k = 0; k < nScan; k++)
-		{	
+		{
 			rScanned = k + 1;
-			iMean = 0;
-			
 			if (useCalibration)
 				headings[rScanned] = "R = " + IJ.d2s((rScanned * cal.pixelWidth), getDigits(rScanned * cal.pixelWidth, rScanned * cal.pixelWidth)) + " " + cal.getUnits() + "";
 			else
 				headings[rScanned] = "R = " + rScanned + " px";
+			dataY[k] = result.getCurve(k);
+		}
+	
+		//------------------------------------------------------
+		//DEBUG MODE - DISPLAY THE PIXEL INTENSITIES OVER TIME
+		if (pixelIntensity)
+		{
 		
-			// Get the mean intensity value of the given area
-			OvalRoi oroi = new OvalRoi(X0 - rScanned, Y0 - rScanned, 2 * rScanned, 2 * rScanned); //Set a new ROI with the same size and shape that the one set by the user
-			Roi croi = new Roi(X0 - rScanned, Y0 - rScanned, 2 * rScanned, 2 * rScanned); //Set a new ROI with the same size and shape that the one set by the user
-			
-			// Scan over the time
-			for (j = 0; j < Nsize; j++)
+			minY = scanDataY[0][0];
+			maxY = scanDataY[0][0];
+		
+			for (j = 0; j < nScan; j++)
 			{
-				imp.setSlice(j+1);
-				if(roiShape == "Circle")
-					imp.setRoi(oroi);
-				else
-					imp.setRoi(croi);
-				scanDataY[k][j] = (float) imp.getStatistics().mean;
-				iMean = iMean + scanDataY[k][j];
-			}
-			
-			iMean = iMean / Nsize;
-			
-			// Calculate the time ACF for all the frames
-			for (i = 0; i < Nsize / 2; i++)
-			{
-				dataX[i] = 0;
-				dataY[k][i] = 0;
-			
-				for (j = 0; j < Nsize - i; j++)
-				{
-					dataY[k][i] = dataY[k][i] + (scanDataY[k][j] - iMean) * (scanDataY[k][j + i] - iMean);
-					dataX[i] = dataX[i] + 1;
-				}
-				
-				dataY[k][i] = dataY[k][i] / dataX[i];
-			}
-			
-			norm = (float) dataY[k][0];
-			
-			// Normalize by the value at time origin
-			for (i = 0; i < Nsize/2; i++)
-			{
-				dataY[k][i] = dataY[k][i] / norm;
-			}
-			
-		}
-	
-		//------------------------------------------------------
-		//DEBUG MODE - DISPLAY THE PIXEL INTENSITIES OVER TIME
-		if (pixelIntensity)
-		{
-		
-			minY = scanDataY[0][0];
-			maxY = scanDataY[0][0];
-		
-			for (j = 0; j < nScan; j++)
-			{
-				extrema = Tools.getMinMax(scanDataY[j]);
-				if (extrema[0] < minY)
-					minY = (float) extrema[0];
-				if (extrema[1] > maxY)
-					maxY = (float) extrema[1];
-			
+				extrema = Tools.getMinMax(scanDataY[j]);
+				if (extrema[0] < minY)
+					minY = (float) extrema[0];
+				if (extrema[1] > maxY)
+					maxY = (float) extrema[1];
+			
 			}
 			
 			if (useTimeCalibration)
@@ -885,7 +1168,7 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		
 			plot.setColor(new Color(0,0,0));
 		
-			MultyPlotWindowExt wnd = plot.show();
+			MultyPlotWindowExt wnd = showPlot(plot);
 			wnd.setLineHeadings(headings, false);
 		}
 		//------------------------------------------------------
@@ -906,19 +1189,21 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		// Apply the required time calibration
 		if (useTimeCalibration)
 		{
-			for (j = 0; j < Nsize / 2; j++)
+			for (j = 0; j < dataX.length; j++)
 			{
-				dataX[j] = (float) (cal.frameInterval * (double) j);
+				dataX[j] = (float) (cal.frameInterval * (double) dataX[j]);
 			}
 
 			unitName = cal.getTimeUnit();
 		}
 		else
 		{
-			for (j = 0; j < Nsize / 2; j++)
-			{
-				dataX[j] = j + 1;
-			}
+			//EVERY LAG IS SHOWN FROM 1, A LAG SET AS IT IS
+			if (timeLags.trim().length() == 0)
+				for (j = 0; j < dataX.length; j++)
+				{
+					dataX[j] = j + 1;
+				}
 		
 			unitName = "picture";
 		}
@@ -926,7 +1211,7 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		// Display the graph
 		plot = new MultyPlotExt("Area AutoCorrelation on "+getImageTitle()+"","Time ["+unitName+"]", "AutoCorrelation", dataX, dataY[0]);
 		headings[0] = "Time ["+unitName+"]";
-		plot.setLimits(dataX[0],dataX[(Nsize / 2) - 1], minY, maxY);
+		plot.setLimits(dataX[0],dataX[dataX.length - 1], minY, maxY);
 
 		for (j = 1; j < nScan; j++)
 		{
@@ -935,19 +1220,129 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		}
 		
 		plot.setColor(new Color(0,0,0));
-		MultyPlotWindowExt wnd = plot.show();
+		MultyPlotWindowExt wnd = showPlot(plot);
 		wnd.setLineHeadings(headings, false);
 		
 	}
 
 	
+	// CALCULATE THE TIME ACF OF THE ROI BINNED 1x1, 2x2, 4x4 AND 8x8 IN A SINGLE READ OF THE STACK
+	//The curves of every scale are plotted together and given in a table
+	public void AutocorrTimePyramid()
+	{
+		int Nsize = imp.getStackSize();
+		int i, k;
+		String unitName;
+		Calibration cal = imp.getCalibration();
+
+		if (cal == null || cal.frameInterval == 0)
+			useTimeCalibration = false;
+
+		//BINS OF EVERY SCALE BUILT FROM EACH FRAME AS IT IS READ (TIME ENGINE)
+		ACFParameters params = getEngineParameters().lags(getTimeLags(Nsize)).build();
+		FrameSource source = openFrames();
+		ACFResult result;
+		try
+		{
+			result = new TimeACFEngine(getPipelineSettings(), jobScope, bufferPool).pyramidACF(source, params, 4, jobProgress());
+		}
+		finally
+		{
+			closeFrames(source);
+		}
+
+		dataX = result.getX();
+		dataY = new float[result.getCurveCount()][];
+		nBins = dataX.length;
+		String[] headings = new String[dataY.length + 1];
+		for (k = 0; k < dataY.length; k++)
+		{
+			dataY[k] = result.getCurve(k);
+			headings[k + 1] = result.getCurveName(k);
+		}
+
+		// Apply the time calibration if possible
+		if (useTimeCalibration)
+		{
+			for (i = 0; i < dataX.length; i++)
+				dataX[i] = (float) (cal.frameInterval * (double) dataX[i]);
+			unitName = cal.getTimeUnit();
+		}
+		else
+			unitName = "picture";
+
+		// Display the curves of every scale in one graph
+		headings[0] = "Time ["+ unitName +"]";
+		plot = createCurvesPlot("Binning pyramid AutoCorrelation on "+getImageTitle()+"", headings[0], "AutoCorrelation", dataX, dataY);
+		MultyPlotWindowExt wnd = showPlot(plot);
+		wnd.setLineHeadings(headings, false);
+
+		// Give the same curves in a table, one column per scale
+		ResultsTable rt = new ResultsTable();
+		for (i = 0; i < dataX.length; i++)
+		{
+			rt.incrementCounter();
+			rt.addValue(headings[0], dataX[i]);
+			for (k = 0; k < dataY.length; k++)
+				rt.addValue(headings[k + 1], dataY[k][i]);
+		}
+		showTable(rt, "Binning pyramid ACF on "+getImageTitle()+"");
+	}
+
+	// READ EVERY FRAME ONCE AND STORE THE FHT OF ITS CROPPED ROI, NULL IF THE TRANSFORMS CANNOT BE STORED
+	private SpectrumStore getFrameTransforms(boolean debugDisplay)
+	{
+		int Nsize = imp.getStackSize();
+		SpectrumStore transforms = null;
+		FrameSource frames = openFrames();
+		try
+		{
+			for (int k = 0; k < Nsize; k++)
+			{
+				checkJob(k, (resolWav + 1) * Nsize);
+				ImagePlus psImg = cropROI(getFrame(frames, k));
+
+				// DEBUG - DISPLAY PICTURE AFTER CROPPING
+				if (debugDisplay)
+				{
+					showImage(psImg);
+					debugDisplay = false;
+				}
+
+				FHT fht = new FHT(psImg.getProcessor());
+				fht.setShowProgress(false);
+				fht.transform();
+				if (transforms == null)
+					transforms = new SpectrumStore(Nsize, fht.getWidth() * fht.getHeight(), jobScope);
+				transforms.put(k, (float[]) fht.getPixels());
+			}
+		}
+		catch (IOException e)
+		{
+			IJ.error("Wavelength ACF", "Unable to store the transforms of the frames: " + e.getMessage());
+			return null;
+		}
+		catch (RuntimeException e)
+		{
+			//CANCELLED OR FAILED: THE SPILL FILE IS DELETED AT ONCE
+			if (transforms != null)
+				transforms.close();
+			throw e;
+		}
+		finally
+		{
+			closeFrames(frames);
+		}
+		return transforms;
+	}
+
 	// CALCULATE THE ACF OVER WAVELENGTH
 	public void WavelengthACF()
 	{
 		//Initialize all the variables
 		nBins = (int) (3*mR/4);
 		int nPixels = (int) (4 * mR * mR);
-		float [][] scanDataY; //Definition of all arrays
+		TraceStore scanDataY; //Definition of all arrays
 		float [] scanDataX;
 		float [][] scanDataDispY;
 		float [] scanDataDispX;
@@ -957,9 +1352,8 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		int[][] finCoodXY;
 		dataX  = new float   [imp.getStackSize() / 2]; //Array for ACF values
 		dataY  = new float[resolWav][imp.getStackSize() / 2];
-		scanDataY = new float[nPixels][imp.getStackSize()]; //Temporary array for collection of pixel intensities
 		scanDataX = new float[nPixels];
-		scanDataDispY = new float[nPixels][imp.getStackSize()];
+		scanDataDispY = new float[nPixels][];
 		scanDataDispX = new float[imp.getStackSize()];
 		ampY = new float[resolWav]; //Array for Amplitude (norm) of every modes
 		ampX = new float[resolWav];
@@ -1009,318 +1403,377 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 			resolWav = powCount + 1;
 
 		ImageStack filtStack = new ImageStack((int) FFTsize,(int) FFTsize);
-		
-		for (j = 0; j < resolWav; j++) //Loop on all the filters to perform
+
+		//FORWARD FFT OF EVERY FRAME, READ AND TRANSFORMED ONCE FOR ALL THE FILTERS
+		SpectrumStore transforms = getFrameTransforms(debugDisplay);
+		if (transforms == null)
+			return;
+		int transformN = (int) Math.sqrt(transforms.getRecordSize());
+
+		//THE FILTERED TRACES ARE NOT INTEGERS: THE LOSSLESS DELTA CODING FALLS BACK ON FLOATS
+		int storage = getTraceStorage() == TraceStore.HALF ? TraceStore.HALF : TraceStore.FLOAT;
+		float[] frameValues = new float[nPixels];
+		float[] trace = new float[imp.getStackSize()];
+		scanDataY = TraceStore.create(storage, nPixels, imp.getStackSize(), jobScope); //Collection of pixel intensities of the filter, refilled by every filter
+
+		try
 		{
-			ImageStack newStack = new ImageStack(1,1); //Create the new stack, for diplaying filters
-			
-			if (j == (displayFiltNumber - 1) && displayFilter) //Check if the current processed filter is the one to display
-				newStack = new ImageStack((int)FFTsize,(int)FFTsize);
-		
-			for (k = 0; k != imp.getStackSize(); k++) //Loop on all the pictures of the stack
+			for (j = 0; j < resolWav; j++) //Loop on all the filters to perform
 			{
-				imp.setSlice(k + 1); //Move to the next slice of the stack
-				ImageProcessor epsID = imp.getProcessor(); //Get the ImageProcessor of the ccurrect slice of the stack
+				ImageStack newStack = new ImageStack(1,1); //Create the new stack, for diplaying filters
+			
+				if (j == (displayFiltNumber - 1) && displayFilter) //Check if the current processed filter is the one to display
+					newStack = new ImageStack((int)FFTsize,(int)FFTsize);
 		
-				//CREATION OF THE CROPPED IMAGE FOR FFT
-				ImagePlus psImg = new ImagePlus("resized", epsID);
-				psImg = cropROI(epsID);
-				
-				// DEBUG - DISPLAY PICTURE AFTER CROPPING
-				if(debugDisplay)
+				for (k = 0; k != imp.getStackSize(); k++) //Loop on all the pictures of the stack
 				{
-					psImg.show();
-					debugDisplay = false;
-				}
-				
-				FHT fht1; //Create a new FHT
-		
-				//LOOP FOR WAVELENGTH SCAN
-			
-				//FFT
-				fht1 = new FHT(psImg.getProcessor()); //Copy the processor of the picture in the FHT
-				fht1.transform(); //Perform the Fast Fourier Transform of the picture
+					checkJob((j + 1) * imp.getStackSize() + k, (resolWav + 1) * imp.getStackSize());
+
+					//LOOP FOR WAVELENGTH SCAN
+
+					//FFT OF THE FRAME, COPIED FROM THE TRANSFORMS OF THE STACK
+					float[] transform = bufferPool.floats(transformN * transformN);
+					transforms.get(k, 0, transform);
+					FHT fht1 = new FHT(new FloatProcessor(transformN, transformN, transform, null), true);
+					bufferPool.release(transform); //The FHT works on a copy
 				
-				if (smoothBandpass)
-				{
-					double filterSmall;
-					double filterLarge;
-		
-					//BANDPASS FILTER
-					if (j == 0) //Define the new values for the Min and Max wavelength of the current filter
-						filterSmall = (double) 0; //Set to 0 for the first filter
-					else
+					if (smoothBandpass)
 					{
-						if (typeStep == "Power of 2")
-							filterSmall = (double) Math.pow(2,(j-1)) / (FFTsize/2);
-						else if (typeStep == "Linear")
-							filterSmall = (double) j / (2*resolWav);
+						double filterSmall;
+						double filterLarge;
+		
+						//BANDPASS FILTER
+						if (j == 0) //Define the new values for the Min and Max wavelength of the current filter
+							filterSmall = (double) 0; //Set to 0 for the first filter
 						else
-							filterSmall = (double) 2 / (resolWav + 1 - j);
-					}
-					if (j == resolWav - 1)
-						filterLarge = 2.0;
-					else
-					{
-						if (typeStep == "Power of 2")
-							filterLarge = (double) Math.pow(2,j) / (FFTsize/2);
-						else if (typeStep == "Linear")
-							filterLarge = (double) (j+1) / (2*resolWav);
+						{
+							if (typeStep == "Power of 2")
+								filterSmall = (double) Math.pow(2,(j-1)) / (FFTsize/2);
+							else if (typeStep == "Linear")
+								filterSmall = (double) j / (2*resolWav);
+							else
+								filterSmall = (double) 2 / (resolWav + 1 - j);
+						}
+						if (j == resolWav - 1)
+							filterLarge = 2.0;
 						else
-							filterLarge = (double) 2 / (resolWav - j);
-					}
-					int maxN = (int) FFTsize;
+						{
+							if (typeStep == "Power of 2")
+								filterLarge = (double) Math.pow(2,j) / (FFTsize/2);
+							else if (typeStep == "Linear")
+								filterLarge = (double) (j+1) / (2*resolWav);
+							else
+								filterLarge = (double) 2 / (resolWav - j);
+						}
+						int maxN = (int) FFTsize;
 
-					float[] fht2 = (float[])fht1.getPixels(); //Get references of the pixel of fht1
-					float[] filter = new float[maxN*maxN];
-					for (i = 0; i < maxN*maxN; i++)
-						filter[i] = 1f;
+						float[] fht2 = (float[])fht1.getPixels(); //Get references of the pixel of fht1
+						float[] filter = bufferPool.floats(maxN*maxN);
+						for (i = 0; i < maxN*maxN; i++)
+							filter[i] = 1f;
 				
-					int row; //Initialize variables
-					int backrow;
-					float rowFactLarge;
-					float rowFactSmall;
-					int col;
-					int backcol;
-					float factor;
-					float colFactLarge;
-					float colFactSmall;
-					double scaleStripes = 0.95 * 0.95;
-					float factStripes;
-					double scaleLarge = filterLarge * filterLarge;
-					double scaleSmall = filterSmall * filterSmall;
+						int row; //Initialize variables
+						int backrow;
+						float rowFactLarge;
+						float rowFactSmall;
+						int col;
+						int backcol;
+						float factor;
+						float colFactLarge;
+						float colFactSmall;
+						double scaleStripes = 0.95 * 0.95;
+						float factStripes;
+						double scaleLarge = filterLarge * filterLarge;
+						double scaleSmall = filterSmall * filterSmall;
 		
-					//CALCULATE FACTOR IN EXPONENT OF GAUSSIAN FROM FILTERLARGE / FILTERSMALL
-					for(i = 1; i < maxN/2; i++)
-					{
-						row = i * maxN;
-						backrow = (maxN - i) * maxN;
-						rowFactLarge = (float) Math.exp(-(i*i)*scaleLarge);
-						rowFactSmall = (float) Math.exp(-(i*i)*scaleSmall);
-			
-						for(col = 1; col < maxN/2; col++)
+						//CALCULATE FACTOR IN EXPONENT OF GAUSSIAN FROM FILTERLARGE / FILTERSMALL
+						for(i = 1; i < maxN/2; i++)
 						{
-							backcol = maxN - col;
-							colFactLarge = (float) Math.exp(- (col*col) * scaleLarge);
-							colFactSmall = (float) Math.exp(- (col*col) * scaleSmall);
-							factor = (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall;
+							row = i * maxN;
+							backrow = (maxN - i) * maxN;
+							rowFactLarge = (float) Math.exp(-(i*i)*scaleLarge);
+							rowFactSmall = (float) Math.exp(-(i*i)*scaleSmall);
+			
+							for(col = 1; col < maxN/2; col++)
+							{
+								backcol = maxN - col;
+								colFactLarge = (float) Math.exp(- (col*col) * scaleLarge);
+								colFactSmall = (float) Math.exp(- (col*col) * scaleSmall);
+								factor = (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall;
 					
-							fht2[col+row] *= factor;
-							fht2[col+backrow] *= factor;
-							fht2[backcol+row] *= factor;
-							fht2[backcol+backrow] *= factor;
-							filter[col+row] *= factor;
-							filter[col+backrow] *= factor;
-							filter[backcol+row] *= factor;
-							filter[backcol+backrow] *= factor;
+								fht2[col+row] *= factor;
+								fht2[col+backrow] *= factor;
+								fht2[backcol+row] *= factor;
+								fht2[backcol+backrow] *= factor;
+								filter[col+row] *= factor;
+								filter[col+backrow] *= factor;
+								filter[backcol+row] *= factor;
+								filter[backcol+backrow] *= factor;
+							}
 						}
-					}
 		
-					//PROCESS MEETING POINTS
-					int rowmid = maxN * (maxN / 2);
-					rowFactLarge = (float) Math.exp(- (maxN / 2) * (maxN / 2) * scaleLarge);
-					rowFactSmall = (float) Math.exp(- (maxN / 2) * (maxN / 2) * scaleSmall);
-					factStripes = (float) Math.exp(- (maxN / 2) * (maxN / 2) * scaleStripes);
+						//PROCESS MEETING POINTS
+						int rowmid = maxN * (maxN / 2);
+						rowFactLarge = (float) Math.exp(- (maxN / 2) * (maxN / 2) * scaleLarge);
+						rowFactSmall = (float) Math.exp(- (maxN / 2) * (maxN / 2) * scaleSmall);
+						factStripes = (float) Math.exp(- (maxN / 2) * (maxN / 2) * scaleStripes);
 		
-					fht2[maxN/2] *= (1 - rowFactLarge) * rowFactSmall;
-					fht2[rowmid] *= (1 - rowFactLarge) * rowFactSmall;
-					fht2[maxN/2 + rowmid] *= (1 - rowFactLarge * rowFactLarge) * rowFactSmall * rowFactSmall;
-					filter[maxN/2] *= (1 - rowFactLarge) * rowFactSmall;
-					filter[rowmid] *= (1 - rowFactLarge) * rowFactSmall;
-					filter[maxN/2 + rowmid] *= (1 - rowFactLarge * rowFactLarge) * rowFactSmall * rowFactSmall;
+						fht2[maxN/2] *= (1 - rowFactLarge) * rowFactSmall;
+						fht2[rowmid] *= (1 - rowFactLarge) * rowFactSmall;
+						fht2[maxN/2 + rowmid] *= (1 - rowFactLarge * rowFactLarge) * rowFactSmall * rowFactSmall;
+						filter[maxN/2] *= (1 - rowFactLarge) * rowFactSmall;
+						filter[rowmid] *= (1 - rowFactLarge) * rowFactSmall;
+						filter[maxN/2 + rowmid] *= (1 - rowFactLarge * rowFactLarge) * rowFactSmall * rowFactSmall;
 
 		
-					//LOOP ALONG ROW 0 AND MAXN/2
-					for (col = 1; col < maxN/2; col++)
-					{	
-						backcol = maxN - col;
-						colFactLarge = (float) Math.exp(-(col*col)*scaleLarge);
-						colFactSmall = (float) Math.exp(-(col*col)*scaleSmall);
+						//LOOP ALONG ROW 0 AND MAXN/2
+						for (col = 1; col < maxN/2; col++)
+						{	
+							backcol = maxN - col;
+							colFactLarge = (float) Math.exp(-(col*col)*scaleLarge);
+							colFactSmall = (float) Math.exp(-(col*col)*scaleSmall);
 						
-						fht2[col] *= (1 - colFactLarge) * colFactSmall;
-						fht2[backcol] *= (1 - colFactLarge) * colFactSmall;
-						fht2[col+rowmid] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
-						fht2[backcol+rowmid] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
-						filter[col] *= (1 - colFactLarge) * colFactSmall;
-						filter[backcol] *= (1 - colFactLarge) * colFactSmall;
-						filter[col+rowmid] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
-						filter[backcol+rowmid] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
+							fht2[col] *= (1 - colFactLarge) * colFactSmall;
+							fht2[backcol] *= (1 - colFactLarge) * colFactSmall;
+							fht2[col+rowmid] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
+							fht2[backcol+rowmid] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
+							filter[col] *= (1 - colFactLarge) * colFactSmall;
+							filter[backcol] *= (1 - colFactLarge) * colFactSmall;
+							filter[col+rowmid] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
+							filter[backcol+rowmid] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
 					
-					}		
+						}		
 		
-					//LOOP ALONG COLUMN 0 AND MAXN/2
-					colFactLarge = (float) Math.exp(-((maxN/2)*(maxN/2))*scaleLarge);
-					colFactSmall = (float) Math.exp(-((maxN/2)*(maxN/2))*scaleSmall);
-					for (i = 1; i < maxN/2; i++)
-					{
-						row = i * maxN;
-						backrow = (maxN -i) * maxN;
-						rowFactLarge = (float) Math.exp(-(i*i)*scaleLarge);
-						rowFactSmall = (float) Math.exp(-(i*i)*scaleSmall);
+						//LOOP ALONG COLUMN 0 AND MAXN/2
+						colFactLarge = (float) Math.exp(-((maxN/2)*(maxN/2))*scaleLarge);
+						colFactSmall = (float) Math.exp(-((maxN/2)*(maxN/2))*scaleSmall);
+						for (i = 1; i < maxN/2; i++)
+						{
+							row = i * maxN;
+							backrow = (maxN -i) * maxN;
+							rowFactLarge = (float) Math.exp(-(i*i)*scaleLarge);
+							rowFactSmall = (float) Math.exp(-(i*i)*scaleSmall);
 			
-						fht2[row] *= (1 - rowFactLarge) * rowFactSmall;
-						fht2[backrow] *= (1 - rowFactLarge) * rowFactSmall;
-						fht2[row+maxN/2] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
-						fht2[backrow+maxN/2] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
-						filter[row] *= (1 - rowFactLarge) * rowFactSmall;
-						filter[backrow] *= (1 - rowFactLarge) * rowFactSmall;
-						filter[row+maxN/2] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
-						filter[backrow+maxN/2] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
+							fht2[row] *= (1 - rowFactLarge) * rowFactSmall;
+							fht2[backrow] *= (1 - rowFactLarge) * rowFactSmall;
+							fht2[row+maxN/2] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
+							fht2[backrow+maxN/2] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
+							filter[row] *= (1 - rowFactLarge) * rowFactSmall;
+							filter[backrow] *= (1 - rowFactLarge) * rowFactSmall;
+							filter[row+maxN/2] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
+							filter[backrow+maxN/2] *= (1 - colFactLarge * rowFactLarge) * colFactSmall * rowFactSmall;
 
-					}
+						}
 				
-					if(debugFilter)
-					{
-						if(k == 0)
+						if(debugFilter)
 						{
-							FHT f = new FHT(new FloatProcessor((int)FFTsize,(int) FFTsize, filter, null));
-							f.swapQuadrants();
-							filtStack.addSlice("Filter " + (j+1) + "", f);
+							if(k == 0)
+							{
+								FHT f = new FHT(new FloatProcessor((int)FFTsize,(int) FFTsize, filter, null));
+								f.swapQuadrants();
+								filtStack.addSlice("Filter " + (j+1) + "", f);
+							}
 						}
+						bufferPool.release(filter);
 					}
-				}
-				else
-				{
-					double filterSmall;
-					double filterLarge;
-					float[] filter = new float[(int) (FFTsize*FFTsize)];
-					for (i = 0; i < FFTsize*FFTsize; i++)
-						filter[i] = 1f;
-		
-					//BANDPASS FILTER
-					if (j == 0) //Define the new values for the Min and Max wavelength of the current filter
-						filterSmall = (double) 0; //Set to 0 for the first filter
 					else
 					{
-						if(typeStep == "Power of 2")
-							filterSmall = (double) Math.pow(2,(j-1));
-						else if (typeStep == "Linear")
-							filterSmall = (double) (FFTsize/2) * (float) j / resolWav; //Linear form
+						double filterSmall;
+						double filterLarge;
+						float[] filter = bufferPool.floats((int) (FFTsize*FFTsize));
+						for (i = 0; i < FFTsize*FFTsize; i++)
+							filter[i] = 1f;
+		
+						//BANDPASS FILTER
+						if (j == 0) //Define the new values for the Min and Max wavelength of the current filter
+							filterSmall = (double) 0; //Set to 0 for the first filter
 						else
-							filterSmall = (double) FFTsize * ((1f / (resolWav + 1f - j)) - (1f / (resolWav+1f))); //Inverse form
-					}
-					if (j == (resolWav - 1))
-						filterLarge = (double) 2*FFTsize;
-					else
-					{
-						if(typeStep == "Power of 2")
-							filterLarge = (double) Math.pow(2,j);
-						else if (typeStep == "Linear")
-							filterLarge = (double) (FFTsize/2) * (float) (j + 1) / resolWav; //Linear form
+						{
+							if(typeStep == "Power of 2")
+								filterSmall = (double) Math.pow(2,(j-1));
+							else if (typeStep == "Linear")
+								filterSmall = (double) (FFTsize/2) * (float) j / resolWav; //Linear form
+							else
+								filterSmall = (double) FFTsize * ((1f / (resolWav + 1f - j)) - (1f / (resolWav+1f))); //Inverse form
+						}
+						if (j == (resolWav - 1))
+							filterLarge = (double) 2*FFTsize;
 						else
-							filterLarge = (double) FFTsize * ((1f / (resolWav - j)) - (1f / (resolWav+1f))); //Inverse form
-					}
+						{
+							if(typeStep == "Power of 2")
+								filterLarge = (double) Math.pow(2,j);
+							else if (typeStep == "Linear")
+								filterLarge = (double) (FFTsize/2) * (float) (j + 1) / resolWav; //Linear form
+							else
+								filterLarge = (double) FFTsize * ((1f / (resolWav - j)) - (1f / (resolWav+1f))); //Inverse form
+						}
 
-					fht1.swapQuadrants();
+						fht1.swapQuadrants();
 					
-					float[] fht2 = (float[])fht1.getPixels();
+						float[] fht2 = (float[])fht1.getPixels();
 					
-					for (a = 0; a < FFTsize; a++)
-					{
-						for (b = 0; b < FFTsize; b++)
+						for (a = 0; a < FFTsize; a++)
 						{
-							R = Math.sqrt((a - FFTsize/2)*(a - FFTsize/2) + (b - FFTsize/2)*(b - FFTsize/2));
-				//			R = Math.sqrt(a*a + b*b);
-							
-							if(typeStep == "Power of 2")
+							for (b = 0; b < FFTsize; b++)
 							{
-								if(j != 0 && ((R < filterSmall) || (R > filterLarge)))
-								{
-									fht2[(int) ((a*FFTsize) + b)] = 0f;
-									filter[(int) ((a*FFTsize) + b)] = 0f;
-								}
-								else if (j != 0 && a == FFTsize/2 && b == FFTsize/2)
+								R = Math.sqrt((a - FFTsize/2)*(a - FFTsize/2) + (b - FFTsize/2)*(b - FFTsize/2));
+					//			R = Math.sqrt(a*a + b*b);
+							
+								if(typeStep == "Power of 2")
 								{
-									fht2[(int) ((a*FFTsize) + b)] = 0f;
-									filter[(int) ((a*FFTsize) + b)] = 0f;
+									if(j != 0 && ((R < filterSmall) || (R > filterLarge)))
+									{
+										fht2[(int) ((a*FFTsize) + b)] = 0f;
+										filter[(int) ((a*FFTsize) + b)] = 0f;
+									}
+									else if (j != 0 && a == FFTsize/2 && b == FFTsize/2)
+									{
+										fht2[(int) ((a*FFTsize) + b)] = 0f;
+										filter[(int) ((a*FFTsize) + b)] = 0f;
+									}
+									else if (j == 0 && (a*FFTsize+b != (FFTsize*FFTsize/2 + FFTsize/2)))
+									{
+										fht2[(int) ((a*FFTsize) + b)] = 0f;
+										filter[(int) ((a*FFTsize) + b)] = 0f;
+									}
 								}
-								else if (j == 0 && (a*FFTsize+b != (FFTsize*FFTsize/2 + FFTsize/2)))
+								else
 								{
-									fht2[(int) ((a*FFTsize) + b)] = 0f;
-									filter[(int) ((a*FFTsize) + b)] = 0f;
+									if((R < filterSmall) || (R > filterLarge))
+									{
+										fht2[(int) ((a*FFTsize) + b)] = 0f;
+										filter[(int) ((a*FFTsize) + b)] = 0f;
+									}								
 								}
 							}
-							else
-							{
-								if((R < filterSmall) || (R > filterLarge))
-								{
-									fht2[(int) ((a*FFTsize) + b)] = 0f;
-									filter[(int) ((a*FFTsize) + b)] = 0f;
-								}								
-							}
 						}
-					}
 					
-					fht1.swapQuadrants();
+						fht1.swapQuadrants();
 					
-					if(debugFilter)
-					{
-						if(k == 0)
+						if(debugFilter)
 						{
-							FHT f = new FHT(new FloatProcessor((int)FFTsize,(int) FFTsize, filter, null));
-							filtStack.addSlice("Filter " + (j+1) + "", f);
-						}
-					}	
-				}
+							if(k == 0)
+							{
+								FHT f = new FHT(new FloatProcessor((int)FFTsize,(int) FFTsize, filter, null));
+								filtStack.addSlice("Filter " + (j+1) + "", f);
+							}
+						}	
+						bufferPool.release(filter);
+					}
 			
-				fht1.inverseTransform(); //Make the Inverse FFT of the picture
+					fht1.inverseTransform(); //Make the Inverse FFT of the picture
 				
-				if (j == (displayFiltNumber - 1) && displayFilter) //Add the picture to the stack if it is the filter to display
-					newStack.addSlice("Picture n" + (k + 1) + "", fht1);
+					if (j == (displayFiltNumber - 1) && displayFilter) //Add the picture to the stack if it is the filter to display
+						newStack.addSlice("Picture n" + (k + 1) + "", fht1);
 				
-				//SCAN THE ROI AND GET EVERY PIXEL VALUE
-				for (b = 0; b < 2*mR; b++)
-				{
-					for (a = 0; a < 2*mR; a++)
+					//SCAN THE ROI AND GET EVERY PIXEL VALUE
+					for (b = 0; b < 2*mR; b++)
 					{
-						c = a + (FFTsize / 2) - mR;
-						d = b + (FFTsize / 2) - mR;
-						R = Math.sqrt((c - FFTsize/2)*(c - FFTsize/2) + (d - FFTsize/2)*(d - FFTsize/2));
-						if (R <= mR || roiShape == "Square") //Check if the pixel is in the ROI
-						{
-							thisBin = (int) (a + b * 2*mR);
-							scanDataX[thisBin] = 1; //Define the pixel thisBin as scanned
-							scanDataY[thisBin][k] = fht1.getPixelValue((int)c, (int)d); //Save the value of the pixel in the scanData filter
-							coodXY[thisBin][0] = (int) (a + xmin); //Get coordinates for DEBUG mode
-							coodXY[thisBin][1] = (int) (b + ymin);
-						}
-						else
+						for (a = 0; a < 2*mR; a++)
 						{
-							thisBin = (int) (a + b * 2*mR);
-							scanDataX[thisBin] = 0; //Define the pixel thisBin as unscanned
+							c = a + (FFTsize / 2) - mR;
+							d = b + (FFTsize / 2) - mR;
+							R = Math.sqrt((c - FFTsize/2)*(c - FFTsize/2) + (d - FFTsize/2)*(d - FFTsize/2));
+							if (R <= mR || roiShape == "Square") //Check if the pixel is in the ROI
+							{
+								thisBin = (int) (a + b * 2*mR);
+								scanDataX[thisBin] = 1; //Define the pixel thisBin as scanned
+								frameValues[thisBin] = fht1.getPixelValue((int)c, (int)d); //Save the value of the pixel in the scanData filter
+								coodXY[thisBin][0] = (int) (a + xmin); //Get coordinates for DEBUG mode
+								coodXY[thisBin][1] = (int) (b + ymin);
+							}
+							else
+							{
+								thisBin = (int) (a + b * 2*mR);
+								scanDataX[thisBin] = 0; //Define the pixel thisBin as unscanned
+							}
 						}
 					}
-				}				
-			}
+					scanDataY.put(k, frameValues);
+				}
 			
-			if (j == (displayFiltNumber - 1) && displayFilter) //Display the stack of the filter when the scan over all the pictures of the stack is done
-			{
-				ImagePlus newDisplay = new ImagePlus("Filtered pictures with filter " + (j + 1) + "", newStack);
-				newDisplay.show();
-				IJ.run(newDisplay, "Enhance Contrast", "saturated=0.35");
-			}
+				if (j == (displayFiltNumber - 1) && displayFilter) //Display the stack of the filter when the scan over all the pictures of the stack is done
+				{
+					ImagePlus newDisplay = new ImagePlus("Filtered pictures with filter " + (j + 1) + "", newStack);
+					showImage(newDisplay);
+					IJ.run(newDisplay, "Enhance Contrast", "saturated=0.35");
+				}
 			
 
-			//----------------------------------------------------------------------
-			//DEBUG - DISPLAY PIXEL INTENSITIES OVER TIME
-			if (debugInt)
-			{
-				if (displayFilter) //Check if the display filter command is on
+				//----------------------------------------------------------------------
+				//DEBUG - DISPLAY PIXEL INTENSITIES OVER TIME
+				if (debugInt)
 				{
-					if(j == (displayFiltNumber - 1)) //If yes, display the pixel intensities of the selected filter
+					if (displayFilter) //Check if the display filter command is on
+					{
+						if(j == (displayFiltNumber - 1)) //If yes, display the pixel intensities of the selected filter
+						{
+							m = 0;
+							for (i = 0; i < nPixels; i++)
+							{
+								if(scanDataX[i] == 1)
+								{
+									scanDataDispY[m] = scanDataY.get(i, new float[imp.getStackSize()]);
+									finCoodXY[m] = coodXY[i];
+									m = m+1;
+								}
+							}
+							headingsInt = new String[m];
+						
+							minY = scanDataDispY[0][0];
+							maxY = scanDataDispY[0][0];
+						
+							for (i = 0; i < m; i++)
+							{
+								extrema = Tools.getMinMax(scanDataDispY[i]);
+								if(extrema[0] < minY)
+									minY = (float) extrema[0];
+								if(extrema[1] > maxY)
+									maxY = (float) extrema[1];
+							}
+						
+							if (useTimeCalibration)
+							{
+								for (i = 0; i < imp.getStackSize(); i++)
+									scanDataDispX[i] = (float) (cal.frameInterval * (double) i);
+								plotInt = new MultyPlotExt("Pixel intensities on "+getImageTitle()+" for filter "+ (j+1) +" at (" + X0 + "," + Y0 + "), " + roiShape + " with size = " + mR + "", "Time ["+cal.getTimeUnit()+"]", "Pixel Intensities", scanDataDispX, scanDataDispY[0]);
+								headingsInt[0] = "Time ["+cal.getTimeUnit()+"]";
+							}
+							else
+							{
+								for (i = 0; i < imp.getStackSize(); i++)
+									scanDataDispX[i] = (float) i;
+								plotInt = new MultyPlotExt("Pixel intensities on "+getImageTitle()+" for filter "+ (j+1) +" at (" + X0 + "," + Y0 + "), " + roiShape + " with size = " + mR + "", "Time [picture]", "Pixel Intensities", scanDataDispX, scanDataDispY[0]);
+								headingsInt[0] = "Time [picture]";
+							}
+						
+							plotInt.setLimits(scanDataDispX[0], scanDataDispX[imp.getStackSize()-1], minY, maxY);
+						
+							for (i = 1; i < m; i++)
+							{
+								headingsInt[i] = "("+String.valueOf(finCoodXY[i-1][0])+";"+String.valueOf(finCoodXY[i-1][1])+")";
+								plotInt.setColor(new Color(colorGeneration(i,1)*0xff, colorGeneration(i,2)*0xff, colorGeneration(i,3)*0xff));
+								plotInt.addPoints(scanDataDispX, scanDataDispY[i], 2);
+							}
+							plotInt.setColor(new Color(0,0,0));
+							MultyPlotWindowExt wndInt = showPlot(plotInt);
+							wndInt.setLineHeadings(headingsInt, false);
+						}
+					}
+					else //If it's not on, display the pixel intensities of the first filter
 					{
 						m = 0;
 						for (i = 0; i < nPixels; i++)
 						{
-							if(scanDataX[i] == 1)
+							if(scanDataX[i] != 0)
 							{
-								scanDataDispY[m] = scanDataY[i];
+								scanDataDispY[m] = scanDataY.get(i, new float[imp.getStackSize()]);
 								finCoodXY[m] = coodXY[i];
 								m = m+1;
 							}
 						}
 						headingsInt = new String[m];
-						
+					
 						minY = scanDataDispY[0][0];
 						maxY = scanDataDispY[0][0];
 						
@@ -1332,7 +1785,7 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 							if(extrema[1] > maxY)
 								maxY = (float) extrema[1];
 						}
-						
+					
 						if (useTimeCalibration)
 						{
 							for (i = 0; i < imp.getStackSize(); i++)
@@ -1348,8 +1801,6 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 							headingsInt[0] = "Time [picture]";
 						}
 						
-						plotInt.setLimits(scanDataDispX[0], scanDataDispX[imp.getStackSize()-1], minY, maxY);
-						
 						for (i = 1; i < m; i++)
 						{
 							headingsInt[i] = "("+String.valueOf(finCoodXY[i-1][0])+";"+String.valueOf(finCoodXY[i-1][1])+")";
@@ -1357,122 +1808,77 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 							plotInt.addPoints(scanDataDispX, scanDataDispY[i], 2);
 						}
 						plotInt.setColor(new Color(0,0,0));
-						MultyPlotWindowExt wndInt = plotInt.show();
+						plotInt.setLimits(scanDataDispX[0], scanDataDispX[imp.getStackSize()-1], minY, maxY);
+						MultyPlotWindowExt wndInt = showPlot(plotInt);
 						wndInt.setLineHeadings(headingsInt, false);
 					}
+					debugInt = false;
 				}
-				else //If it's not on, display the pixel intensities of the first filter
-				{
-					m = 0;
-					for (i = 0; i < nPixels; i++)
-					{
-						if(scanDataX[i] != 0)
-						{
-							scanDataDispY[m] = scanDataY[i];
-							finCoodXY[m] = coodXY[i];
-							m = m+1;
-						}
-					}
-					headingsInt = new String[m];
-					
-					minY = scanDataDispY[0][0];
-					maxY = scanDataDispY[0][0];
-						
-					for (i = 0; i < m; i++)
-					{
-						extrema = Tools.getMinMax(scanDataDispY[i]);
-						if(extrema[0] < minY)
-							minY = (float) extrema[0];
-						if(extrema[1] > maxY)
-							maxY = (float) extrema[1];
-					}
-					
-					if (useTimeCalibration)
-					{
-						for (i = 0; i < imp.getStackSize(); i++)
-							scanDataDispX[i] = (float) (cal.frameInterval * (double) i);
-						plotInt = new MultyPlotExt("Pixel intensities on "+getImageTitle()+" for filter "+ (j+1) +" at (" + X0 + "," + Y0 + "), " + roiShape + " with size = " + mR + "", "Time ["+cal.getTimeUnit()+"]", "Pixel Intensities", scanDataDispX, scanDataDispY[0]);
-						headingsInt[0] = "Time ["+cal.getTimeUnit()+"]";
-					}
-					else
-					{
-						for (i = 0; i < imp.getStackSize(); i++)
-							scanDataDispX[i] = (float) i;
-						plotInt = new MultyPlotExt("Pixel intensities on "+getImageTitle()+" for filter "+ (j+1) +" at (" + X0 + "," + Y0 + "), " + roiShape + " with size = " + mR + "", "Time [picture]", "Pixel Intensities", scanDataDispX, scanDataDispY[0]);
-						headingsInt[0] = "Time [picture]";
-					}
-						
-					for (i = 1; i < m; i++)
-					{
-						headingsInt[i] = "("+String.valueOf(finCoodXY[i-1][0])+";"+String.valueOf(finCoodXY[i-1][1])+")";
-						plotInt.setColor(new Color(colorGeneration(i,1)*0xff, colorGeneration(i,2)*0xff, colorGeneration(i,3)*0xff));
-						plotInt.addPoints(scanDataDispX, scanDataDispY[i], 2);
-					}
-					plotInt.setColor(new Color(0,0,0));
-					plotInt.setLimits(scanDataDispX[0], scanDataDispX[imp.getStackSize()-1], minY, maxY);
-					MultyPlotWindowExt wndInt = plotInt.show();
-					wndInt.setLineHeadings(headingsInt, false);
-				}
-				debugInt = false;
-			}
-			//DEBUG - END OF PIXEL INTENSITIES DISPLAY
-			//----------------------------------------------------------------------
+				//DEBUG - END OF PIXEL INTENSITIES DISPLAY
+				//----------------------------------------------------------------------
 
 				
-			//CALCULATE THE AUTOCORRELATION FUNCTION FOR THE J FILTER
-				
-			for (a = 0; a < 2*mR; a++)
-			{
-				for (b = 0; b < 2*mR; b++)
+				//CALCULATE THE AUTOCORRELATION FUNCTION FOR THE J FILTER
+				//Every pixel gives N - i products to the lag i: they are summed in double and divided by their number once
+				double[] lagSums = new double[imp.getStackSize() / 2];
+				int nTraces = 0;
+				for (a = 0; a < 2*mR; a++)
 				{
-					thisBin = (int) (b + a * 2*mR);
-					
-					if(scanDataX[thisBin] != 0)
+					for (b = 0; b < 2*mR; b++)
 					{
-						//CALCULATE THE MEAN INTENSITY VALUE OF THIS PIXEL
-						iMean = 0;
-						for (k = 0; k < imp.getStackSize(); k++)
+						thisBin = (int) (b + a * 2*mR);
+					
+						if(scanDataX[thisBin] != 0)
 						{
-							iMean = iMean + scanDataY[thisBin][k];
-						}
-						iMean = iMean / imp.getStackSize();
+							//DECODE THE TRACE OF THIS PIXEL AND CALCULATE ITS MEAN INTENSITY VALUE
+							scanDataY.get(thisBin, trace);
+							iMean = 0;
+							for (k = 0; k < imp.getStackSize(); k++)
+							{
+								iMean = iMean + trace[k];
+							}
+							iMean = iMean / imp.getStackSize();
+							nTraces++;
 						
-						//CALCULATE Ipixel(j)*Ipixel(j+i)
-						for (i = 0; i < imp.getStackSize() / 2; i++)
-						{
-							for (k = 0; k < imp.getStackSize() - i; k++)
+							//CALCULATE Ipixel(j)*Ipixel(j+i)
+							for (i = 0; i < imp.getStackSize() / 2; i++)
 							{
-								dataY[j][i] = dataY[j][i] + (scanDataY[thisBin][k] - iMean) * (scanDataY[thisBin][k+i] - iMean);
-								dataX[i] = dataX[i] + 1;
+								double sum = 0;
+								for (k = 0; k < imp.getStackSize() - i; k++)
+									sum += (trace[k] - iMean) * (trace[k+i] - iMean);
+								lagSums[i] += sum;
 							}
 						}
 					}
 				}
-			}
 				
-			for (i = 0; i < imp.getStackSize() / 2; i++)
-			{
-				dataY[j][i] = dataY[j][i] / dataX[i];
-				dataX[i] = 0;
-			}
+				for (i = 0; i < imp.getStackSize() / 2; i++)
+				{
+					dataY[j][i] = (float) (lagSums[i] / ((double) nTraces * (imp.getStackSize() - i)));
+				}
 			
-			//NORMALIZE BY THE FIRST VALUE (t = 0)
-			float norm = dataY[j][0];
-			ampY[j] = norm;
+				//NORMALIZE BY THE FIRST VALUE (t = 0)
+				float norm = dataY[j][0];
+				ampY[j] = norm;
 			
-			for (i = 0; i < imp.getStackSize() / 2; i++)
-			{
-				dataY[j][i] = dataY[j][i] / norm;
-			}
+				for (i = 0; i < imp.getStackSize() / 2; i++)
+				{
+					dataY[j][i] = dataY[j][i] / norm;
+				}
 			
-		IJ.showProgress((int) (j+1), (int) resolWav);
 			
+			}
+		}
+		finally
+		{
+			//THE SPILL FILE OF THE TRANSFORMS IS DELETED EVEN IF THE RUN IS CANCELLED
+			transforms.close();
 		}
 		
 		if(debugFilter)
 		{
 			ImagePlus filtDisplay = new ImagePlus("Filters", filtStack);
-			filtDisplay.show();
+			showImage(filtDisplay);
 		}
 
 		//SET THE X-AXIS OF THE GRAPH
@@ -1522,61 +1928,1470 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 			headings[1] = ""+ IJ.d2s(((0.5)*mR*cal.pixelWidth/resolWav), getDigits((0.5)*mR*cal.pixelWidth/resolWav, (0.5)*mR*cal.pixelWidth/resolWav)) + " " + cal.getUnit() + "";
 			ampX[0] = (float) ((0.5)*cal.pixelWidth*mR/resolWav);
 		}
-		else
+		else
+		{
+			headings[1] = ""+ IJ.d2s(((0.5)*mR/resolWav), getDigits((0.5)*mR/resolWav, (0.5)*mR/resolWav)) + " pixel";
+			ampX[0] = (float) ((0.5)*mR/resolWav);
+		}
+		
+		for (i = 1; i < resolWav; i++)
+		{
+			plot.setColor(new Color(colorGeneration(i,1) * 0xff, colorGeneration(i,2) * 0xff, colorGeneration(i,3) * 0xff));
+			plot.addPoints(dataX, dataY[i],2);
+			if (useCalibration)
+			{
+				headings[i+1] = ""+ IJ.d2s(((i + 0.5)*mR*cal.pixelWidth/resolWav), getDigits((i + 0.5)*mR*cal.pixelWidth/resolWav, (i + 0.5)*mR*cal.pixelWidth/resolWav)) + " " + cal.getUnit() + "";
+				ampX[i] = (float) ((i + 0.5)*mR*cal.pixelWidth/resolWav);
+			}
+			else
+			{
+				headings[i+1] = ""+ IJ.d2s(((i + 0.5)*mR/resolWav), getDigits((i + 0.5)*mR/resolWav, (i + 0.5)*mR/resolWav)) + " pixels";
+				ampX[i] = (float) ((i + 0.5)*mR/resolWav);
+			}
+		}		
+		plot.setColor(new Color(0,0,0));		
+		MultyPlotWindowExt wnd = showPlot(plot);
+		wnd.setLineHeadings(headings,false);
+		
+		if (displayAmplitude) //Display the amplitude if selected by the user
+		{
+			if(useCalibration)
+			{
+				plotAmp = new MultyPlotExtScN("Amplitude on " +getImageTitle()+" at (" + X0 + "," + Y0 + "), " + roiShape + " with size = " + mR + "", "Wavelength ["+ cal.getUnit() +"]", "Amplitude", ampX, ampY);
+				headingsAmp[0] = "Wavelength ["+ cal.getUnit() +"]";
+			}
+			else
+			{
+				plotAmp = new MultyPlotExtScN("Amplitude on " +getImageTitle()+" at (" + X0 + "," + Y0 + "), " + roiShape + " with size = " + mR + "", "Wavelength [pixel]", "Amplitude", ampX, ampY);
+				headingsAmp[0] = "Wavelength [pixel]";
+			}
+			
+			double[] extremaAmp;
+			float[] tempAmp = new float[resolWav - 1];
+			for(i = 1; i < resolWav; i++)
+			{
+				tempAmp[i-1] = ampY[i];
+			}
+			
+			minY = ampY[1];
+			maxY = ampY[1];
+			extremaAmp = Tools.getMinMax(tempAmp);
+			minY = (float) extremaAmp[0];
+			maxY = (float) extremaAmp[1];
+			plotAmp.setLimits(ampX[0], ampX[resolWav - 1], minY, maxY);
+			headingsAmp[1] = "Amplitude";
+			MultyPlotWindowExtScN wndAmp = showPlot(plotAmp);
+			wndAmp.setLineHeadings(headingsAmp, false);
+		}
+	}
+
+	// CALCULATE THE RADIALLY AVERAGED SPATIOTEMPORAL ACF C(r,t)
+	public void SpatioTemporalACF(int[] lags)
+	{
+		IJ.log("Start spatiotemporal ACF calculation");
+
+		nBins = (int) (3*mR/4);
+		int Nsize = imp.getStackSize();
+		int nLags = lags.length;
+		int i, j, k;
+		double FFTsize = findFourrierSize(2 * mR);
+		final int maxN = (int) FFTsize;
+		dataX  = new float[nBins];
+		dataY  = new float[nLags][nBins];
+		String[] headings = new String[nLags + 1];
+		float minY, maxY;
+		double[] extrema;
+		String unitName;
+
+		Calibration cal = imp.getCalibration();
+		if (cal == null || cal.getUnit() == "pixel")
+			useCalibration = false;
+		if (cal == null || cal.frameInterval == 0)
+			useTimeCalibration = false;
+
+		//FORWARD FFT OF EVERY FRAME, STORED FOR ALL THE LAGS (SPILLED TO A FILE IF THE MEMORY IS TOO SMALL)
+		final SpectrumStore spectra;
+		try
+		{
+			spectra = new SpectrumStore(Nsize, maxN * maxN, jobScope);
+		}
+		catch (IOException e)
+		{
+			IJ.error("C(r,t)", "Unable to store the spectra: " + e.getMessage());
+			return;
+		}
+		final FHT[] correlations = new FHT[nLags];
+		float norm;
+		FrameSource frames = openFrames();
+		try
+		{
+			for (k = 0; k < Nsize; k++)
+			{
+				ImagePlus psImg = cropROI(getFrame(frames, k));
+				FHT spectrum = new FHT(psImg.getProcessor());
+				spectrum.setShowProgress(false);
+				spectrum.transform();
+				spectra.put(k, (float[]) spectrum.getPixels());
+				checkJob(k + 1, 2 * Nsize);
+			}
+			closeFrames(frames);
+			frames = null;
+
+			//SUM THE CROSS-SPECTRA OF ALL THE FRAME PAIRS FOR EVERY LAG (ONE LAG PER TASK)
+			//The sum is done in the Fourier space, so only one inverse FFT is needed per lag
+			ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (j = 0; j < nLags; j++)
+			{
+				final int lagIndex = j;
+				final int lag = lags[j];
+				tasks.add(new Callable<Void>()
+				{
+					public Void call()
+					{
+						FHT result = new FHT(new FloatProcessor(maxN, maxN, sumCrossSpectra(spectra, lag, maxN), null), true);
+						result.setShowProgress(false);
+						result.inverseTransform();
+						result.swapQuadrants();
+						correlations[lagIndex] = result;
+						return null;
+					}
+				});
+			}
+			runParallel(tasks);
+			IJ.showProgress(1.0);
+
+			//NORMALIZE BY THE VALUE AT THE ORIGIN (r = 0, t = 0)
+			float[] origin = (float[]) correlations[0].getPixels();
+			norm = origin[maxN * (maxN / 2) + maxN / 2];
+			if (lags[0] != 0)
+			{
+				FHT result = new FHT(new FloatProcessor(maxN, maxN, sumCrossSpectra(spectra, 0, maxN), null), true);
+				result.setShowProgress(false);
+				result.inverseTransform();
+				result.swapQuadrants();
+				norm = result.getPixelValue(maxN / 2, maxN / 2);
+			}
+		}
+		finally
+		{
+			if (frames != null)
+				closeFrames(frames);
+			spectra.close();
+		}
+
+		//RADIAL AVERAGE OF EVERY LAG
+		double xmin = (FFTsize / 2) - mR, xmax = (FFTsize / 2) + mR;
+		double ymin = (FFTsize / 2) - mR, ymax = (FFTsize / 2) + mR;
+		FloatProcessor surface = new FloatProcessor(nBins, nLags);
+		for (j = 0; j < nLags; j++)
+		{
+			correlations[j].multiply(1 / norm);
+			dataY[j] = getRadialProfile(correlations[j], xmin, xmax, ymin, ymax, (FFTsize / 2), (FFTsize / 2), 0, true);
+			for (i = 0; i < nBins; i++)
+				surface.setf(i, j, dataY[j][i]);
+
+			if (useTimeCalibration)
+				headings[j + 1] = "t = " + IJ.d2s((lags[j] * cal.frameInterval), getDigits(lags[j] * cal.frameInterval, lags[j] * cal.frameInterval)) + " " + cal.getTimeUnit();
+			else
+				headings[j + 1] = "t = " + lags[j];
+		}
+
+		// GENERATE THE DATAX ARRAY REGARDING THE SPATIAL CALIBRATION OF THE PICTURE
+		if (useCalibration)
+		{
+			if(cal.pixelWidth != cal.pixelHeight)
+			{
+				cal.pixelWidth = ( cal.pixelWidth + cal.pixelHeight ) / 2;
+				IJ.showMessage("WARNING", "Pixel Width is different from pixel\n" +
+				"Height in spatial calibration!\n" +
+				"Average pixel length used instead.");
+			}
+			for (i = 0; i < nBins; i++)
+				dataX[i] = (float) (cal.pixelWidth * mR * ((double)(i + 1) / nBins));
+			unitName = cal.getUnits();
+		}
+		else
+		{
+			for (i = 0; i < nBins; i++)
+				dataX[i] = (float) (mR * ((double) (i + 1) / nBins));
+			unitName = "pixels";
+		}
+
+		// DISPLAY THE C(r,t) SURFACE AS AN IMAGE (RADIUS ALONG X, LAG ALONG Y)
+		ImagePlus surfaceImg = new ImagePlus("C(r,t) on "+getImageTitle()+"", surface);
+		showImage(surfaceImg);
+		IJ.run(surfaceImg, "Enhance Contrast", "saturated=0.35");
+
+		// DISPLAY THE CURVE FAMILY, ONE CURVE PER LAG
+		minY = dataY[0][0];
+		maxY = dataY[0][0];
+		for (j = 0; j < nLags; j++)
+		{
+			extrema = Tools.getMinMax(dataY[j]);
+			if (extrema[0] < minY)
+				minY = (float) extrema[0];
+			if (extrema[1] > maxY)
+				maxY = (float) extrema[1];
+		}
+
+		plot = new MultyPlotExt("Spatiotemporal AutoCorrelation on "+getImageTitle()+"", "Radius ["+unitName+"]", "AutoCorrelation", dataX, dataY[0]);
+		headings[0] = "Radius ["+unitName+"]";
+		plot.setLimits(dataX[0], dataX[nBins - 1], minY, maxY);
+
+		for (j = 1; j < nLags; j++)
+		{
+			plot.setColor(new Color(colorGeneration(j,1) * 0xff, colorGeneration(j,2) * 0xff, colorGeneration(j,3) * 0xff));
+			plot.addPoints(dataX, dataY[j], 2);
+		}
+		plot.setColor(new Color(0,0,0));
+		MultyPlotWindowExt wnd = showPlot(plot);
+		wnd.setLineHeadings(headings, false);
+	}
+
+	// MEAN HARTLEY TRANSFORM OF THE CROSS-CORRELATIONS OF THE FRAMES t AND t + lag
+	//The products are those of FHT.conjugateMultiply, added to the sum without any new array
+	private float[] sumCrossSpectra(SpectrumStore spectra, int lag, int maxN)
+	{
+		float[] sum = new float[maxN * maxN];
+		float[] h1 = bufferPool.floats(maxN * maxN);
+		float[] h2 = bufferPool.floats(maxN * maxN);
+		int nPairs = imp.getStackSize() - lag;
+		for (int t = 0; t < nPairs; t++)
+		{
+			checkCancelled();
+			spectra.get(t, 0, h1);
+			spectra.get(t + lag, 0, h2);
+			for (int r = 0; r < maxN; r++)
+			{
+				int rowMod = (maxN - r) % maxN;
+				for (int c = 0; c < maxN; c++)
+				{
+					int colMod = (maxN - c) % maxN;
+					double h2e = (h2[r * maxN + c] + h2[rowMod * maxN + colMod]) / 2;
+					double h2o = (h2[r * maxN + c] - h2[rowMod * maxN + colMod]) / 2;
+					sum[r * maxN + c] += (float) (h1[r * maxN + c] * h2e - h1[rowMod * maxN + colMod] * h2o);
+				}
+			}
+		}
+		bufferPool.release(h1);
+		bufferPool.release(h2);
+		for (int p = 0; p < sum.length; p++)
+			sum[p] /= nPairs;
+		return sum;
+	}
+
+	// CALCULATE THE RASTER IMAGE CORRELATION SPECTROSCOPY (RICS) 2D SURFACE
+	public void RasterICS()
+	{
+		IJ.log("Start RICS calculation");
+
+		int Nsize = imp.getStackSize();
+		int i, j, k;
+		int cropN = (int) findFourrierSize(2 * mR);
+		final int maxN = 2 * cropN; //Padding twice the size of the crop avoids the circular wrapping of the correlation
+		int half = (int) mR;
+		int window = Math.min(Math.max(movingAverage, 1), Nsize);
+		boolean subtractAverage = window >= 2; //A window of one frame would subtract every frame from itself
+		if (movingAverage > 0 && !subtractAverage)
+			IJ.log("RICS: moving average of " + movingAverage + " frame(s) on " + Nsize + " frame(s), the immobile structures are not subtracted");
+		int nFrames = 0;
+		int nSkipped = 0; // Frames with a ROI mean of zero or less (background subtracted), left out of the surface
+		float[] sum = bufferPool.floats(maxN * maxN);
+		float[] movingSum = bufferPool.floats(maxN * maxN);
+		float[] means = new float[Nsize];
+		ArrayDeque<float[]> windowFrames = new ArrayDeque<float[]>();
+		int windowStart = 0, windowEnd = 0; // Frames currently in the moving average window: [windowStart, windowEnd[
+		int batchSize = 4 * getThreadCount();
+		ArrayList<float[]> batch = new ArrayList<float[]>();
+
+		//GEOMETRY OF THE ROI INSIDE THE PADDED PICTURE, USED FOR THE NORMALIZATION OF THE OVERLAPS
+		Roi roi = roiShape == "Square" ? new Roi(X0 - mR, Y0 - mR, 2 * mR, 2 * mR) : new OvalRoi(X0 - mR, Y0 - mR, 2 * mR, 2 * mR);
+		Rectangle bounds = roi.getBounds();
+		ImageProcessor roiMask = roi.getMask();
+		int xOff = (cropN - bounds.width) / 2 + cropN / 2;
+		int yOff = (cropN - bounds.height) / 2 + cropN / 2;
+		float[] mask = bufferPool.floats(maxN * maxN);
+		for (j = 0; j < bounds.height; j++)
+		{
+			for (i = 0; i < bounds.width; i++)
+			{
+				if (roiMask == null || roiMask.get(i, j) != 0)
+					mask[(j + yOff) * maxN + i + xOff] = 1f;
+			}
+		}
+
+		FrameSource frames = openFrames();
+		try
+		{
+			for (k = 0; k < Nsize; k++)
+			{
+				//SLIDE THE MOVING AVERAGE WINDOW SO THAT IT CONTAINS THE FRAME K (CLAMPED AT THE EDGES OF THE STACK)
+				int start = Math.max(0, Math.min(k - window / 2, Nsize - window));
+				while (windowEnd < start + window)
+				{
+					ImageProcessor frame = getFrame(frames, windowEnd);
+					ImageProcessor cropProc = cropROI(frame).getProcessor();
+					means[windowEnd] = (float) frame.getStatistics().mean; //The frame keeps the ROI set by cropROI
+					FloatProcessor padded = new FloatProcessor(maxN, maxN, bufferPool.floats(maxN * maxN), null);
+					padded.insert(cropProc, cropN / 2, cropN / 2);
+					float[] crop = (float[]) padded.getPixels();
+					for (i = 0; i < crop.length; i++)
+						movingSum[i] += crop[i];
+					windowFrames.addLast(crop);
+					windowEnd++;
+				}
+				while (windowStart < start)
+				{
+					float[] crop = windowFrames.removeFirst();
+					for (i = 0; i < crop.length; i++)
+						movingSum[i] -= crop[i];
+					bufferPool.release(crop);
+					windowStart++;
+				}
+
+				//SUBTRACT THE MOVING AVERAGE (IMMOBILE STRUCTURES) AND SCALE BY THE MEAN INTENSITY
+				if (means[k] > 0)
+				{
+					float[] crop = null;
+					Iterator<float[]> it = windowFrames.iterator();
+					for (j = windowStart; j <= k; j++)
+						crop = it.next();
+					float[] fluct = bufferPool.floats(maxN * maxN);
+					for (i = 0; i < fluct.length; i++)
+					{
+						if (subtractAverage)
+							fluct[i] = mask[i] * (crop[i] - movingSum[i] / window) / means[k];
+						else
+							fluct[i] = crop[i] / means[k];
+					}
+					batch.add(fluct);
+				}
+				else
+					nSkipped++;
+
+				if (batch.size() == batchSize || (k == Nsize - 1 && !batch.isEmpty()))
+				{
+					nFrames += batch.size();
+					addPowerSpectra(batch, sum, maxN);
+					for (float[] picture : batch)
+						bufferPool.release(picture);
+					batch.clear();
+					checkJob(k + 1, Nsize);
+				}
+			}
+		}
+		finally
+		{
+			closeFrames(frames);
+		}
+		for (float[] crop : windowFrames)
+			bufferPool.release(crop);
+		bufferPool.release(movingSum);
+		if (nSkipped > 0)
+			IJ.log("RICS: " + nSkipped + " frame(s) with a mean intensity of zero or less in the ROI left out");
+		if (nFrames == 0)
+		{
+			bufferPool.release(sum);
+			bufferPool.release(mask);
+			throw new IllegalArgumentException("The mean intensity in the ROI is zero or less in every frame: the RICS cannot be normalized.");
+		}
+
+		//INVERSE FFT OF THE MEAN POWER SPECTRUM AND OF THE MASK POWER SPECTRUM
+		FHT maskFHT = new FHT(new FloatProcessor(maxN, maxN, mask, null));
+		bufferPool.release(mask);
+		maskFHT.setShowProgress(false);
+		maskFHT.transform();
+		FHT overlap = maskFHT.conjugateMultiply(maskFHT);
+		overlap.setShowProgress(false);
+		overlap.inverseTransform();
+		overlap.swapQuadrants();
+
+		for (i = 0; i < sum.length; i++)
+			sum[i] /= nFrames;
+		FHT result = new FHT(new FloatProcessor(maxN, maxN, sum, null), true);
+		bufferPool.release(sum);
+		result.setShowProgress(false);
+		result.inverseTransform();
+		result.swapQuadrants();
+
+		//NORMALIZE BY THE NUMBER OF OVERLAPPING PIXELS AND KEEP THE SHIFTS SMALLER THAN THE RADIUS
+		int size = 2 * half + 1;
+		FloatProcessor surface = new FloatProcessor(size, size);
+		for (j = -half; j <= half; j++)
+		{
+			for (i = -half; i <= half; i++)
+			{
+				float count = overlap.getPixelValue(maxN / 2 + i, maxN / 2 + j);
+				if (count >= 1)
+					surface.setf(i + half, j + half, result.getPixelValue(maxN / 2 + i, maxN / 2 + j) / count);
+				else
+					surface.setf(i + half, j + half, Float.NaN);
+			}
+		}
+
+		// DISPLAY THE 2D CORRELATION SURFACE WITH THE SCAN PARAMETERS FOR THE FIT
+		ImagePlus surfaceImg = new ImagePlus("RICS on "+getImageTitle()+"", surface);
+		surfaceImg.setProperty("Info", "Pixel dwell time (us) = " + pixelDwellTime + "\n"
+			+ "Line time (ms) = " + lineTime + "\n"
+			+ "Moving average (frames) = " + (subtractAverage ? window : 0) + "\n"
+			+ "Frames = " + nFrames + "\n"
+			+ "Origin (xi = 0, psi = 0) = (" + half + ", " + half + ")\n");
+		Calibration surfaceCal = surfaceImg.getCalibration();
+		surfaceCal.xOrigin = half;
+		surfaceCal.yOrigin = half;
+		showImage(surfaceImg);
+		IJ.run(surfaceImg, "Enhance Contrast", "saturated=0.35");
+
+		// DISPLAY THE FAST (XI) AND SLOW (PSI) SCAN AXIS OF THE SURFACE
+		dataX = new float[half + 1];
+		dataY = new float[2][half + 1];
+		for (i = 0; i <= half; i++)
+		{
+			dataX[i] = i;
+			dataY[0][i] = surface.getf(half + i, half);
+			dataY[1][i] = surface.getf(half, half + i);
+		}
+		nBins = half + 1;
+
+		String[] headings = new String[3];
+		headings[0] = "Shift [pixels]";
+		headings[1] = "G(xi,0) tp = " + pixelDwellTime + " us";
+		headings[2] = "G(0,psi) tl = " + lineTime + " ms";
+		double[] extrema0 = Tools.getMinMax(dataY[0]);
+		double[] extrema1 = Tools.getMinMax(dataY[1]);
+		plot = new MultyPlotExt("RICS axis on "+getImageTitle()+"", "Shift [pixels]", "G(xi,psi)", dataX, dataY[0]);
+		plot.setLimits(dataX[0], dataX[half], Math.min(extrema0[0], extrema1[0]), Math.max(extrema0[1], extrema1[1]));
+		plot.setColor(new Color(colorGeneration(1,1) * 0xff, colorGeneration(1,2) * 0xff, colorGeneration(1,3) * 0xff));
+		plot.addPoints(dataX, dataY[1], 2);
+		plot.setColor(new Color(0,0,0));
+		MultyPlotWindowExt wnd = showPlot(plot);
+		wnd.setLineHeadings(headings, false);
+	}
+
+	// CALCULATE THE K-SPACE IMAGE CORRELATION SPECTROSCOPY (kICS) FUNCTION r(|k|,t)
+	public void kSpaceICS(int[] lags)
+	{
+		IJ.log("Start kICS calculation");
+
+		final int Nsize = imp.getStackSize();
+		final int maxN = (int) findFourrierSize(2 * mR);
+		final int nShells = maxN / 2;
+		int i, j, k;
+		String unitName;
+
+		Calibration cal = imp.getCalibration();
+		if (cal == null || cal.getUnit() == "pixel")
+			useCalibration = false;
+		if (cal == null || cal.frameInterval == 0)
+			useTimeCalibration = false;
+
+		//SORT THE FOURIER COEFFICIENTS BY |k| SHELL, WITHOUT THE k = 0 TERM
+		//For a symmetric shell, the sum of Re[F1(k)F2*(k)] is the sum of the Hartley products H1(k)H2(k)
+		final int[] shellStart = new int[nShells + 1];
+		int[] shellOf = new int[maxN * maxN];
+		for (int row = 0; row < maxN; row++)
+		{
+			int ky = row < maxN / 2 ? row : row - maxN;
+			for (int col = 0; col < maxN; col++)
+			{
+				int kx = col < maxN / 2 ? col : col - maxN;
+				int shell = (int) Math.round(Math.sqrt(kx * kx + ky * ky));
+				shellOf[row * maxN + col] = (shell == 0 || shell > nShells) ? -1 : shell - 1;
+				if (shellOf[row * maxN + col] >= 0)
+					shellStart[shell]++;
+			}
+		}
+		for (i = 0; i < nShells; i++)
+			shellStart[i + 1] += shellStart[i];
+		final int recordSize = shellStart[nShells];
+		final int[] order = new int[recordSize];
+		int[] fill = Arrays.copyOf(shellStart, nShells);
+		for (i = 0; i < maxN * maxN; i++)
+		{
+			if (shellOf[i] >= 0)
+				order[fill[shellOf[i]]++] = i;
+		}
+
+		//FORWARD FFT OF EVERY FRAME, STORED ONCE IN SHELL ORDER
+		final int[] allLags = new int[lags.length + 1];
+		System.arraycopy(lags, 0, allLags, 1, lags.length);
+		final double[][] correlation = new double[nShells][allLags.length];
+		SpectrumStore spectra;
+		try
+		{
+			spectra = new SpectrumStore(Nsize, recordSize, jobScope);
+		}
+		catch (IOException e)
+		{
+			IJ.error("kICS", "Unable to store the spectra: " + e.getMessage());
+			return;
+		}
+		final SpectrumStore store = spectra;
+		FrameSource frames = openFrames();
+		try
+		{
+			int batchSize = 4 * getThreadCount();
+			for (k = 0; k < Nsize; k += batchSize)
+			{
+				ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for (j = k; j < Math.min(k + batchSize, Nsize); j++)
+				{
+					final ImageProcessor cropProc = cropROI(getFrame(frames, j)).getProcessor();
+					final int frame = j;
+					tasks.add(new Callable<Void>()
+					{
+						public Void call()
+						{
+							FHT h = new FHT(cropProc);
+							h.setShowProgress(false);
+							h.transform();
+							float[] coefficients = (float[]) h.getPixels();
+							float[] record = new float[recordSize];
+							for (int n = 0; n < recordSize; n++)
+								record[n] = coefficients[order[n]];
+							store.put(frame, record);
+							return null;
+						}
+					});
+				}
+				runParallel(tasks);
+				checkJob(Math.min(k + batchSize, Nsize), 2 * Nsize);
+			}
+
+			//CORRELATE THE COEFFICIENTS OF EVERY SHELL IN TIME, ONE SHELL PER TASK
+			ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (i = 0; i < nShells; i++)
+			{
+				final int shell = i;
+				tasks.add(new Callable<Void>()
+				{
+					public Void call()
+					{
+						int size = shellStart[shell + 1] - shellStart[shell];
+						float[][] coefficients = bufferPool.floats(Nsize, size);
+						for (int t = 0; t < Nsize; t++)
+							store.get(t, shellStart[shell], coefficients[t]);
+						for (int l = 0; l < allLags.length; l++)
+						{
+							double sum = 0;
+							for (int t = 0; t < Nsize - allLags[l]; t++)
+							{
+								float[] c1 = coefficients[t];
+								float[] c2 = coefficients[t + allLags[l]];
+								for (int m = 0; m < size; m++)
+									sum += c1[m] * c2[m];
+							}
+							correlation[shell][l] = sum / ((double) (Nsize - allLags[l]) * size);
+						}
+						bufferPool.release(coefficients);
+						return null;
+					}
+				});
+			}
+			runParallel(tasks);
+			IJ.showProgress(1.0);
+		}
+		finally
+		{
+			closeFrames(frames);
+			store.close();
+		}
+
+		// GENERATE THE |k|^2 VALUES REGARDING THE SPATIAL CALIBRATION OF THE PICTURE
+		double pixelSize = 1;
+		if (useCalibration)
+		{
+			pixelSize = (cal.pixelWidth + cal.pixelHeight) / 2;
+			unitName = cal.getUnits();
+		}
+		else
+			unitName = "pixels";
+
+		// FILL THE TABLE WITH r(|k|,t) AND ITS LOGARITHM FOR THE LINEAR FITS
+		nBins = nShells;
+		dataX = new float[nShells];
+		dataY = new float[lags.length][nShells];
+		ResultsTable rt = new ResultsTable();
+		for (i = 0; i < nShells; i++)
+		{
+			double kValue = 2 * Math.PI * (i + 1) / (maxN * pixelSize);
+			dataX[i] = (float) (kValue * kValue);
+			rt.incrementCounter();
+			rt.addValue("|k|^2 ["+unitName+"^-2]", dataX[i]);
+			rt.addValue("r(|k|,0)", correlation[i][0]);
+			for (j = 0; j < lags.length; j++)
+			{
+				String lagName;
+				if (useTimeCalibration)
+					lagName = IJ.d2s(lags[j] * cal.frameInterval, getDigits(lags[j] * cal.frameInterval, lags[j] * cal.frameInterval)) + " " + cal.getTimeUnit();
+				else
+					lagName = "" + lags[j];
+				dataY[j][i] = (float) (correlation[i][j + 1] / correlation[i][0]);
+				rt.addValue("r(|k|,"+lagName+")", correlation[i][j + 1]);
+				rt.addValue("ln r(|k|,"+lagName+")/r(|k|,0)", Math.log(dataY[j][i]));
+			}
+		}
+		showTable(rt, "kICS on "+getImageTitle()+"");
+	}
+
+	// ADD THE POWER SPECTRA OF A BATCH OF PADDED PICTURES TO A SUM, THE FFT BEING PERFORMED IN PARALLEL
+	private static void addPowerSpectra(ArrayList<float[]> pictures, float[] sum, final int maxN)
+	{
+		final float[][] spectra = new float[pictures.size()][];
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int n = 0; n < pictures.size(); n++)
+		{
+			final int index = n;
+			final float[] picture = pictures.get(n);
+			tasks.add(new Callable<Void>()
+			{
+				public Void call()
+				{
+					FHT h = new FHT(new FloatProcessor(maxN, maxN, picture, null));
+					h.setShowProgress(false);
+					h.transform();
+					spectra[index] = (float[]) h.conjugateMultiply(h).getPixels();
+					return null;
+				}
+			});
+		}
+		runParallel(tasks);
+
+		for (int n = 0; n < spectra.length; n++)
+		{
+			for (int p = 0; p < sum.length; p++)
+				sum[p] += spectra[n][p];
+		}
+	}
+
+	// CALCULATE THE SPATIAL AND TIME CROSS-CORRELATIONS BETWEEN TWO CHANNELS IN ONE READ OF THE DATA
+	public void CrossCorrelationICS()
+	{
+		ImageStack stack1 = imp.getStack();
+		ImageStack stack2;
+		int[] index1, index2;
+		int Nsize;
+		int i, j, k;
+
+		//GET THE TWO CHANNELS, FROM A TWO-CHANNEL HYPERSTACK OR FROM A SECOND IMAGE
+		if (imp.getNChannels() == 2)
+		{
+			Nsize = imp.getNFrames() > 1 ? imp.getNFrames() : imp.getNSlices();
+			stack2 = stack1;
+			index1 = new int[Nsize];
+			index2 = new int[Nsize];
+			for (k = 0; k < Nsize; k++)
+			{
+				if (imp.getNFrames() > 1)
+				{
+					index1[k] = imp.getStackIndex(1, imp.getSlice(), k + 1);
+					index2[k] = imp.getStackIndex(2, imp.getSlice(), k + 1);
+				}
+				else
+				{
+					index1[k] = imp.getStackIndex(1, k + 1, 1);
+					index2[k] = imp.getStackIndex(2, k + 1, 1);
+				}
+			}
+		}
+		else
+		{
+			int[] idList = WindowManager.getIDList();
+			ArrayList<String> titles = new ArrayList<String>();
+			ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+			for (i = 0; idList != null && i < idList.length; i++)
+			{
+				ImagePlus other = WindowManager.getImage(idList[i]);
+				if (other != null && other != imp && other.getWidth() == imp.getWidth() && other.getHeight() == imp.getHeight() && other.getStackSize() == imp.getStackSize())
+				{
+					titles.add(other.getTitle());
+					images.add(other);
+				}
+			}
+			if (images.size() == 0)
+			{
+				IJ.showMessage("Error", "Two-channel hyperstack or second stack with the same size required");
+				return;
+			}
+			GenericDialog channelDialog = new GenericDialog("Cross-correlation");
+			channelDialog.addChoice("Second channel:", titles.toArray(new String[titles.size()]), titles.get(0));
+			channelDialog.showDialog();
+			if (channelDialog.wasCanceled())
+				return;
+			stack2 = images.get(channelDialog.getNextChoiceIndex()).getStack();
+			Nsize = imp.getStackSize();
+			index1 = new int[Nsize];
+			for (k = 0; k < Nsize; k++)
+				index1[k] = k + 1;
+			index2 = index1;
+		}
+
+		IJ.log("Start dual-channel cross-correlation calculation");
+
+		nBins = (int) (3*mR/4);
+		final int maxN = (int) findFourrierSize(2 * mR);
+		int width = imp.getWidth();
+		int height = imp.getHeight();
+		double xmin = X0 - mR, ymin = Y0 - mR;
+		double a, b, c, d, R;
+		String unitName, timeUnitName;
+
+		Calibration cal = imp.getCalibration();
+		if (cal == null || cal.getUnit() == "pixel")
+			useCalibration = false;
+		if (cal == null || cal.frameInterval == 0)
+			useTimeCalibration = false;
+
+		//LIST THE PIXELS OF THE ROI
+		ArrayList<Integer> roiPixels = new ArrayList<Integer>();
+		for (b = 0; b < 2 * mR; b++)
+		{
+			for (a = 0; a < 2 * mR; a++)
+			{
+				c = a + xmin;
+				d = b + ymin;
+				R = Math.sqrt((c - X0) * (c - X0) + (d - Y0) * (d - Y0));
+				if ((R <= mR || roiShape == "Square") && c >= 0 && d >= 0 && c < width && d < height)
+					roiPixels.add((int) c + (int) d * width);
+			}
+		}
+		int nPixels = roiPixels.size();
+		final float[][] traces1 = bufferPool.floats(nPixels, Nsize);
+		final float[][] traces2 = bufferPool.floats(nPixels, Nsize);
+
+		//SINGLE READ OF BOTH CHANNELS: PIXEL TRACES AND SPECTRA OF THE CROPPED FRAMES
+		double[][] spatialSums = bufferPool.doubles(3, maxN * maxN);
+		int batchSize = 4 * getThreadCount();
+		ArrayList<ImageProcessor> batch1 = new ArrayList<ImageProcessor>();
+		ArrayList<ImageProcessor> batch2 = new ArrayList<ImageProcessor>();
+		for (k = 0; k < Nsize; k++)
+		{
+			ImageProcessor ip1 = stack1.getProcessor(index1[k]);
+			ImageProcessor ip2 = stack2.getProcessor(index2[k]);
+			for (i = 0; i < nPixels; i++)
+			{
+				traces1[i][k] = ip1.getf(roiPixels.get(i));
+				traces2[i][k] = ip2.getf(roiPixels.get(i));
+			}
+			batch1.add(cropROI(ip1).getProcessor());
+			batch2.add(cropROI(ip2).getProcessor());
+
+			if (batch1.size() == batchSize || k == Nsize - 1)
+			{
+				addCrossSpectra(batch1, batch2, spatialSums, maxN);
+				batch1.clear();
+				batch2.clear();
+				checkJob(k + 1, Nsize);
+			}
+		}
+
+		//SPATIAL FUNCTIONS: INVERSE FFT OF THE SUMMED SPECTRA AND RADIAL AVERAGE
+		FHT[] spatial = new FHT[3];
+		for (j = 0; j < 3; j++)
+		{
+			float[] sum = bufferPool.floats(maxN * maxN);
+			for (i = 0; i < sum.length; i++)
+				sum[i] = (float) (spatialSums[j][i] / Nsize);
+			spatial[j] = new FHT(new FloatProcessor(maxN, maxN, sum, null), true);
+			bufferPool.release(sum);
+			spatial[j].setShowProgress(false);
+			spatial[j].inverseTransform();
+			spatial[j].swapQuadrants();
+		}
+		float norm1 = spatial[0].getPixelValue(maxN / 2, maxN / 2);
+		float norm2 = spatial[1].getPixelValue(maxN / 2, maxN / 2);
+		spatial[0].multiply(1 / norm1);
+		spatial[1].multiply(1 / norm2);
+		spatial[2].multiply(1 / Math.sqrt(norm1 * norm2));
+
+		float[] spatialX = new float[nBins];
+		float[][] spatialY = new float[3][];
+		for (j = 0; j < 3; j++)
+			spatialY[j] = getRadialProfile(spatial[j], (maxN / 2) - mR, (maxN / 2) + mR, (maxN / 2) - mR, (maxN / 2) + mR, maxN / 2, maxN / 2, 0, true);
+
+		//TIME FUNCTIONS OF THE PIXEL TRACES
+		bufferPool.release(spatialSums);
+		double[][] temporal = correlateTraces(traces1, traces2, Nsize / 2);
+		bufferPool.release(traces1);
+		bufferPool.release(traces2);
+		float[] timeX = new float[Nsize / 2];
+		float[][] timeY = new float[3][Nsize / 2];
+		for (i = 0; i < Nsize / 2; i++)
+		{
+			timeY[0][i] = (float) (temporal[0][i] / temporal[0][0]);
+			timeY[1][i] = (float) (temporal[1][i] / temporal[1][0]);
+			timeY[2][i] = (float) (temporal[2][i] / Math.sqrt(temporal[0][0] * temporal[1][0]));
+		}
+
+		// GENERATE THE X AXIS REGARDING THE CALIBRATIONS OF THE PICTURE
+		if (useCalibration)
+		{
+			for (i = 0; i < nBins; i++)
+				spatialX[i] = (float) (((cal.pixelWidth + cal.pixelHeight) / 2) * mR * ((double)(i + 1) / nBins));
+			unitName = cal.getUnits();
+		}
+		else
+		{
+			for (i = 0; i < nBins; i++)
+				spatialX[i] = (float) (mR * ((double) (i + 1) / nBins));
+			unitName = "pixels";
+		}
+		if (useTimeCalibration)
+		{
+			for (i = 0; i < Nsize / 2; i++)
+				timeX[i] = (float) (cal.frameInterval * (double) i);
+			timeUnitName = cal.getTimeUnit();
+		}
+		else
+		{
+			for (i = 0; i < Nsize / 2; i++)
+				timeX[i] = i;
+			timeUnitName = "picture";
+		}
+
+		// DISPLAY THE SPATIAL AND THE TIME FUNCTIONS
+		String[] headings = new String[4];
+		headings[1] = "ACF channel 1";
+		headings[2] = "ACF channel 2";
+		headings[3] = "Cross-correlation";
+
+		headings[0] = "Radius ["+unitName+"]";
+		plot = createCurvesPlot("Spatial Cross-Correlation on "+getImageTitle()+"", headings[0], "Correlation", spatialX, spatialY);
+		MultyPlotWindowExt wnd = showPlot(plot);
+		wnd.setLineHeadings(headings, false);
+
+		headings[0] = "Time ["+timeUnitName+"]";
+		plot = createCurvesPlot("Pixel Cross-Correlation on "+getImageTitle()+"", headings[0], "Correlation", timeX, timeY);
+		wnd = showPlot(plot);
+		wnd.setLineHeadings(headings, false);
+
+		dataX = timeX;
+		dataY = timeY;
+		nBins = Nsize / 2;
+	}
+
+	// CALCULATE THE NORMALIZED TIME ACF OF EVERY PIXEL AND STORE IT IN AN (X, Y, LAG) HYPERSTACK
+	public void PixelACFHyperstack(boolean wholeImage, int maxLag, int budgetMB)
+	{
+		int Nsize = imp.getStackSize();
+		int x0, y0, width, height;
+		int k;
+
+		if (wholeImage)
+		{
+			x0 = 0;
+			y0 = 0;
+			width = imp.getWidth();
+			height = imp.getHeight();
+		}
+		else
+		{
+			x0 = Math.max(0, (int) (X0 - mR));
+			y0 = Math.max(0, (int) (Y0 - mR));
+			width = Math.min(imp.getWidth(), (int) Math.ceil(X0 + mR)) - x0;
+			height = Math.min(imp.getHeight(), (int) Math.ceil(Y0 + mR)) - y0;
+		}
+		int nLags = Math.max(1, Math.min(maxLag, Nsize - 1) + 1);
+		int[] lags = new int[nLags];
+		for (k = 0; k < nLags; k++)
+			lags[k] = k;
+
+		//CHECK THAT THE RESULT FITS IN MEMORY
+		long outputBytes = 4L * width * height * nLags;
+		if (IJ.maxMemory() > 0 && outputBytes > IJ.maxMemory() - IJ.currentMemory())
+		{
+			IJ.showMessage("Error", "The ACF hyperstack needs " + (outputBytes >> 20) + " MB, reduce the maximum lag or the field");
+			return;
+		}
+
+		float[][] lagPixels = computePixelACFs(x0, y0, width, height, lags, budgetMB, true);
+
+		// DISPLAY THE RESULT AS A HYPERSTACK WITH THE LAGS AS FRAMES
+		ImageStack acfStack = new ImageStack(width, height);
+		for (k = 0; k < nLags; k++)
+			acfStack.addSlice("lag = " + k, new FloatProcessor(width, height, lagPixels[k], null));
+		ImagePlus acfImg = new ImagePlus("Pixel ACF on "+getImageTitle()+"", acfStack);
+		acfImg.setDimensions(1, 1, nLags);
+		acfImg.setOpenAsHyperStack(true);
+		Calibration acfCal = imp.getCalibration().copy();
+		acfCal.xOrigin = acfCal.xOrigin - x0;
+		acfCal.yOrigin = acfCal.yOrigin - y0;
+		acfImg.setCalibration(acfCal);
+		acfImg.getProcessor().setMinAndMax(-0.2, 1);
+		showImage(acfImg);
+	}
+
+	// CALCULATE THE TIME ACF <d(t)d(t+lag)> OF EVERY PIXEL OF A FIELD FOR A SET OF LAGS, NORMALIZED BY LAG 0 IF REQUIRED
+	//The field is processed in tiles of rows so that the traces fit in the memory budget
+	private float[][] computePixelACFs(int x0, int y0, int width, int height, final int[] lags, int budgetMB, final boolean normalize)
+	{
+		final int Nsize = imp.getStackSize();
+		final int nLags = lags.length;
+		final int fieldWidth = width;
+		final int maxLag = lags[nLags - 1];
+		int i, j, k;
+
+		int tileRows = (int) Math.max(1, Math.min(height, ((long) budgetMB << 20) / (4L * width * Nsize)));
+		int nTiles = (height + tileRows - 1) / tileRows;
+
+		//SEVERAL TILES WOULD READ THE STACK SEVERAL TIMES: THE TRACES ARE TRANSPOSED ONCE INTO THE TRACE CACHE
+		TraceCache cache = TraceCache.find(traceCacheKey(), x0, y0, width, height);
+		if (cache != null && cache.getFrameCount() != Nsize)
+			cache = null;
+		if (cache == null && nTiles > 1)
+			cache = getTraceCache(x0, y0, width, height);
+
+		IJ.log("Start per-pixel ACF on " + width + "x" + height + " pixels, " + nTiles + " tile(s) of " + tileRows + " rows");
+
+		final float[][] lagPixels = new float[nLags][width * height];
+		for (int tile = 0; tile < nTiles; tile++)
+		{
+			final int firstRow = tile * tileRows;
+			final int rows = Math.min(tileRows, height - firstRow);
+			final float[][] traces = bufferPool.floats(rows * width, Nsize);
+
+			//READ THE ROWS OF THE TILE FROM THE TRACE CACHE, OR IN EVERY FRAME
+			if (cache != null)
+			{
+				for (int row = 0; row < rows; row++)
+				{
+					checkJob(tile * Nsize + row * Nsize / rows, nTiles * Nsize);
+					for (i = 0; i < width; i++)
+						cache.readTrace(x0 + i, y0 + firstRow + row, traces[row * width + i]);
+				}
+			}
+			else
+			{
+				FrameSource frames = openFrames();
+				float[] region = bufferPool.floats(rows * width);
+				try
+				{
+					for (j = 0; j < Nsize; j++)
+					{
+						checkJob(tile * Nsize + j, nTiles * Nsize);
+						frames.readRegion(j, x0, y0 + firstRow, width, rows, region);
+						for (i = 0; i < region.length; i++)
+							traces[i][j] = region[i];
+					}
+				}
+				finally
+				{
+					closeFrames(frames);
+				}
+				bufferPool.release(region);
+			}
+
+			//ACF OF THE PIXELS OF THE TILE, TWO PIXELS PER COMPLEX FFT, IN PARALLEL
+			final int nPairs = (traces.length + 1) / 2;
+			final int nTasks = Math.min(nPairs, 4 * getThreadCount());
+			ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (k = 0; k < nTasks; k++)
+			{
+				final int task = k;
+				tasks.add(new Callable<Void>()
+				{
+					public Void call()
+					{
+						int fftSize = (int) nextPowerOfTwo(2 * Nsize);
+						double[] re = bufferPool.doubles(fftSize);
+						double[] im = bufferPool.doubles(fftSize);
+						double[] acf1 = new double[maxLag + 1];
+						double[] acf2 = new double[maxLag + 1];
+						for (int pair = task; pair < nPairs; pair += nTasks)
+						{
+							checkCancelled();
+							int p1 = 2 * pair;
+							int p2 = Math.min(p1 + 1, traces.length - 1);
+							pairAutocorrelation(traces[p1], traces[p2], re, im, acf1, acf2);
+							double norm1 = normalize ? acf1[0] : 1;
+							double norm2 = normalize ? acf2[0] : 1;
+							int out1 = firstRow * fieldWidth + p1;
+							int out2 = firstRow * fieldWidth + p2;
+							for (int l = 0; l < nLags; l++)
+							{
+								lagPixels[l][out1] = (float) (acf1[lags[l]] / norm1);
+								lagPixels[l][out2] = (float) (acf2[lags[l]] / norm2);
+							}
+						}
+						bufferPool.release(re);
+						bufferPool.release(im);
+						return null;
+					}
+				});
+			}
+			runParallel(tasks);
+			bufferPool.release(traces);
+		}
+		return lagPixels;
+	}
+
+	// PRECOMPUTE THE PER-PIXEL LAG PRODUCTS OF THE WHOLE IMAGE AND THEIR SUMMED-AREA TABLES FOR THE LIVE ROI ACF
+	public void PrecomputeLagCube(int[] lags)
+	{
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		int k;
+
+		//THE LAG 0 IS ALWAYS NEEDED FOR THE NORMALIZATION
+		if (lags[0] != 0)
+		{
+			int[] withZero = new int[lags.length + 1];
+			System.arraycopy(lags, 0, withZero, 1, lags.length);
+			lags = withZero;
+		}
+
+		long tableBytes = 8L * (width + 1) * (height + 1) * lags.length + 4L * width * height * lags.length;
+		if (IJ.maxMemory() > 0 && tableBytes > IJ.maxMemory() - IJ.currentMemory())
+		{
+			IJ.showMessage("Error", "The lag-product cube needs " + (tableBytes >> 20) + " MB, reduce the number of lags");
+			return;
+		}
+
+		lagTables = null;
+		final float[][] products = computePixelACFs(0, 0, width, height, lags, memoryBudget, false);
+
+		//ONE SUMMED-AREA TABLE PER LAG, BUILT IN PARALLEL
+		final double[][] tables = new double[lags.length][];
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (k = 0; k < lags.length; k++)
+		{
+			final int lag = k;
+			tasks.add(new Callable<Void>()
+			{
+				public Void call()
+				{
+					double[] table = new double[(width + 1) * (height + 1)];
+					float[] values = products[lag];
+					for (int y = 0; y < height; y++)
+					{
+						double rowSum = 0;
+						for (int x = 0; x < width; x++)
+						{
+							rowSum += values[y * width + x];
+							table[(y + 1) * (width + 1) + x + 1] = table[y * (width + 1) + x + 1] + rowSum;
+						}
+					}
+					tables[lag] = table;
+					products[lag] = null;
+					return null;
+				}
+			});
+		}
+		runParallel(tasks);
+
+		cubeLags = lags;
+		lagTables = tables;
+		IJ.log("Lag-product cube ready: the ROI ACF is updated while the ROI is moved");
+		updateLagCubePlot();
+	}
+
+	// CALCULATE THE ROI-AVERAGED TIME ACF FROM THE SUMMED-AREA TABLES AND UPDATE THE LIVE PLOT
+	private void updateLagCubePlot()
+	{
+		int width = imp.getWidth();
+		int height = imp.getHeight();
+		int nLags = cubeLags.length;
+		double[] sums = new double[nLags];
+		long count = 0;
+		int x1, x2, y, k;
+
+		//SUM THE TABLES ROW BY ROW ON THE SPANS OF THE ROI: O(LAGS x ROWS)
+		for (y = Math.max(0, (int) Math.ceil(Y0 - mR)); y <= Math.min(height - 1, (int) Math.floor(Y0 + mR)); y++)
+		{
+			if (roiShape == "Circle")
+			{
+				double half = Math.sqrt(Math.max(0, mR * mR - (y - Y0) * (y - Y0)));
+				x1 = (int) Math.ceil(X0 - half);
+				x2 = (int) Math.floor(X0 + half);
+			}
+			else
+			{
+				x1 = (int) Math.ceil(X0 - mR);
+				x2 = (int) Math.floor(X0 + mR);
+			}
+			x1 = Math.max(0, x1);
+			x2 = Math.min(width - 1, x2);
+			if (x2 < x1)
+				continue;
+			count += x2 - x1 + 1;
+			int top = y * (width + 1), bottom = (y + 1) * (width + 1);
+			for (k = 0; k < nLags; k++)
+			{
+				double[] table = lagTables[k];
+				sums[k] += table[bottom + x2 + 1] - table[bottom + x1] - table[top + x2 + 1] + table[top + x1];
+			}
+		}
+		if (count == 0 || sums[0] == 0)
+			return;
+
+		Calibration cal = imp.getCalibration();
+		boolean timeCalibrated = useTimeCalibration && cal != null && cal.frameInterval != 0;
+		dataX = new float[nLags];
+		dataY = new float[1][nLags];
+		for (k = 0; k < nLags; k++)
+		{
+			dataX[k] = timeCalibrated ? (float) (cubeLags[k] * cal.frameInterval) : cubeLags[k];
+			dataY[0][k] = (float) (sums[k] / sums[0]);
+		}
+		nBins = nLags;
+
+		String unitName = timeCalibrated ? cal.getTimeUnit() : "picture";
+		MultyPlotExt livePlot = new MultyPlotExt("Live Pixel AutoCorrelation on "+getImageTitle()+"", "Time ["+ unitName +"]", "AutoCorrelation", dataX, dataY[0]);
+		double[] extrema = Tools.getMinMax(dataY[0]);
+		livePlot.setLimits(dataX[0], dataX[nLags - 1], Math.min(0, extrema[0]), 1);
+		if (scrubWindow == null || scrubWindow.isClosed())
+		{
+			String[] headings = {"Time ["+ unitName +"]", "AutoCorrelation"};
+			scrubWindow = showPlot(livePlot);
+			scrubWindow.setLineHeadings(headings, false);
+		}
+		else
+			scrubWindow.drawPlot(livePlot);
+	}
+
+	// FIT A DECAY MODEL TO EVERY PIXEL OF AN ACF HYPERSTACK AND DISPLAY THE MAPS OF THE PARAMETERS
+	public void FitACFHyperstack(ImagePlus acfImg, final int model, int firstLag, int lastLag)
+	{
+		int nLags = acfImg.getNFrames() > 1 ? acfImg.getNFrames() : acfImg.getStackSize();
+		lastLag = Math.min(lastLag, nLags - 1);
+		firstLag = Math.max(0, firstLag);
+		final int nPoints = lastLag - firstLag + 1;
+		final int nParams = model == STRETCHED_EXPONENTIAL ? 4 : 3;
+		final int width = acfImg.getWidth();
+		final int height = acfImg.getHeight();
+		int i, k;
+
+		if (nPoints < nParams + 1)
+		{
+			IJ.showMessage("Error", "At least " + (nParams + 1) + " lags are required for the fit");
+			return;
+		}
+
+		Calibration cal = acfImg.getCalibration();
+		double lagTime = (useTimeCalibration && cal != null && cal.frameInterval != 0) ? cal.frameInterval : 1;
+		final double[] x = new double[nPoints];
+		final float[][] lagPixels = new float[nPoints][];
+		ImageStack stack = acfImg.getStack();
+		for (k = 0; k < nPoints; k++)
+		{
+			x[k] = (firstLag + k) * lagTime;
+			lagPixels[k] = (float[]) stack.getProcessor(firstLag + k + 1).convertToFloat().getPixels();
+		}
+
+		IJ.log("Fit of " + (width * height) + " curves with the " + fitModels[model] + " model");
+
+		//FIT ALL THE PIXELS IN PARALLEL, ONE BLOCK OF ROWS PER TASK
+		final float[][] maps = new float[nParams + 1][width * height];
+		final int nTasks = Math.min(height, 4 * getThreadCount());
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (k = 0; k < nTasks; k++)
+		{
+			final int task = k;
+			tasks.add(new Callable<Void>()
+			{
+				public Void call()
+				{
+					double[] y = new double[nPoints];
+					double[] params = new double[nParams];
+					double[] work = new double[fitWorkSize(nPoints, nParams)];
+					for (int row = task; row < height; row += nTasks)
+					{
+						checkCancelled();
+						for (int p = row * width; p < (row + 1) * width; p++)
+						{
+							boolean valid = true;
+							for (int n = 0; n < nPoints; n++)
+							{
+								y[n] = lagPixels[n][p];
+								if (Double.isNaN(y[n]))
+									valid = false;
+							}
+							double residual = valid ? fitACFModel(model, x, y, params, work) : Double.NaN;
+							for (int n = 0; n < nParams; n++)
+								maps[n][p] = valid ? (float) params[n] : Float.NaN;
+							maps[nParams][p] = (float) residual;
+						}
+					}
+					return null;
+				}
+			});
+		}
+		runParallel(tasks);
+
+		// DISPLAY THE MAPS AS A STACK: TAU, AMPLITUDE, OFFSET, (BETA) AND RESIDUAL
+		String[] names = {"tau", "amplitude", "offset", "beta"};
+		ImageStack mapStack = new ImageStack(width, height);
+		for (k = 0; k < nParams; k++)
+			mapStack.addSlice(names[k], new FloatProcessor(width, height, maps[k], null));
+		mapStack.addSlice("residual (rms)", new FloatProcessor(width, height, maps[nParams], null));
+		ImagePlus mapImg = new ImagePlus(fitModels[model] + " fit of "+acfImg.getTitle()+"", mapStack);
+		Calibration mapCal = cal == null ? new Calibration() : cal.copy();
+		mapCal.frameInterval = 0;
+		mapImg.setCalibration(mapCal);
+		mapImg.setProperty("Info", "Model = " + fitModels[model] + "\nFitted lags = " + firstLag + " to " + lastLag + "\nTau unit = " + (lagTime == 1 ? "frame" : cal.getTimeUnit()) + "\n");
+		showImage(mapImg);
+	}
+
+	// CALCULATE THE PAIR-CORRELATION FUNCTION (pCF) BETWEEN PIXELS AT A FIXED DISTANCE ALONG A LINE OR A CIRCLE
+	public void PairCorrelationFunction(boolean alongCircle, double angle, int distance)
+	{
+		int Nsize = imp.getStackSize();
+		int nPoints, nPairs;
+		int i, j;
+		int binsPerDecade = 16;
+
+		//POSITIONS OF THE PIXELS ALONG THE PATH, ONE PIXEL APART
+		if (alongCircle)
+			nPoints = (int) Math.round(2 * Math.PI * mR);
+		else
+			nPoints = (int) (2 * mR) + 1;
+		int[] xs = new int[nPoints];
+		int[] ys = new int[nPoints];
+		for (i = 0; i < nPoints; i++)
+		{
+			double x, y;
+			if (alongCircle)
+			{
+				double theta = 2 * Math.PI * i / nPoints;
+				x = X0 + mR * Math.cos(theta);
+				y = Y0 - mR * Math.sin(theta);
+			}
+			else
+			{
+				x = X0 + (i - mR) * Math.cos(Math.toRadians(angle));
+				y = Y0 - (i - mR) * Math.sin(Math.toRadians(angle));
+			}
+			xs[i] = Math.max(0, Math.min(imp.getWidth() - 1, (int) Math.round(x)));
+			ys[i] = Math.max(0, Math.min(imp.getHeight() - 1, (int) Math.round(y)));
+		}
+
+		nPairs = alongCircle ? nPoints : nPoints - distance;
+		if (distance < 0 || distance >= nPoints || nPairs <= 0)
+		{
+			IJ.showMessage("Error", "The pair distance must be between 0 and " + (nPoints - 1) + " pixels");
+			return;
+		}
+
+		IJ.log("Start pair-correlation calculation on " + nPairs + " pairs");
+
+		//READ EVERY FRAME ONCE TO GET THE TRACES OF ALL THE PIXELS OF THE PATH
+		final float[][] traces = getPixelTraces(xs, ys);
+
+		//LOGARITHMIC LAG BINS, FROM 1 TO HALF OF THE STACK
+		ArrayList<Integer> edges = new ArrayList<Integer>();
+		edges.add(1);
+		for (i = 1; edges.get(edges.size() - 1) < Nsize / 2; i++)
+		{
+			int edge = Math.min(Nsize / 2, (int) Math.floor(Math.pow(10, (double) i / binsPerDecade)));
+			if (edge > edges.get(edges.size() - 1))
+				edges.add(edge);
+		}
+		final int nLagBins = edges.size() - 1;
+		final int[] binEdges = new int[edges.size()];
+		for (i = 0; i < binEdges.length; i++)
+			binEdges[i] = edges.get(i);
+		if (nLagBins < 1)
+		{
+			IJ.showMessage("Error", "Stack too short for the pair-correlation function");
+			return;
+		}
+
+		//CROSS-CORRELATE ALL THE PAIRS WITH THE FFT, IN PARALLEL BATCHES OF PAIRS
+		final int pairCount = nPairs;
+		final int nPointsFinal = nPoints;
+		final int pairDistance = distance;
+		final float[][] carpet = new float[nLagBins][nPairs];
+		final int nTasks = Math.min(nPairs, 4 * getThreadCount());
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int n = 0; n < nTasks; n++)
+		{
+			final int task = n;
+			tasks.add(new Callable<Void>()
+			{
+				public Void call()
+				{
+					int fftSize = (int) nextPowerOfTwo(2 * traces[0].length);
+					double[] re = bufferPool.doubles(fftSize);
+					double[] im = bufferPool.doubles(fftSize);
+					double[] correlation = new double[binEdges[binEdges.length - 1]];
+					for (int p = task; p < pairCount; p += nTasks)
+					{
+						pairCorrelation(traces[p], traces[(p + pairDistance) % nPointsFinal], re, im, correlation);
+						for (int m = 0; m < nLagBins; m++)
+						{
+							double sum = 0;
+							for (int lag = binEdges[m]; lag < binEdges[m + 1]; lag++)
+								sum += correlation[lag];
+							carpet[m][p] = (float) (sum / (binEdges[m + 1] - binEdges[m]));
+						}
+					}
+					bufferPool.release(re);
+					bufferPool.release(im);
+					return null;
+				}
+			});
+		}
+		runParallel(tasks);
+		bufferPool.release(traces);
+
+		// DISPLAY THE CARPET (POSITION ALONG X, LOGARITHMIC LAG ALONG Y)
+		FloatProcessor carpetProc = new FloatProcessor(nPairs, nLagBins);
+		Calibration cal = imp.getCalibration();
+		if (cal == null || cal.frameInterval == 0)
+			useTimeCalibration = false;
+		StringBuilder info = new StringBuilder("Pair distance (pixels) = " + distance + "\nPath = " + (alongCircle ? "circle" : "line at " + angle + " degrees") + "\nRow\tFirst lag\tLast lag\n");
+		dataX = new float[nLagBins];
+		dataY = new float[nPairs][nLagBins];
+		for (j = 0; j < nLagBins; j++)
+		{
+			for (i = 0; i < nPairs; i++)
+			{
+				carpetProc.setf(i, j, carpet[j][i]);
+				dataY[i][j] = carpet[j][i];
+			}
+			dataX[j] = (float) Math.sqrt((double) binEdges[j] * (binEdges[j + 1] - 1));
+			if (useTimeCalibration)
+				dataX[j] = (float) (dataX[j] * cal.frameInterval);
+			info.append(j + "\t" + binEdges[j] + "\t" + (binEdges[j + 1] - 1) + "\n");
+		}
+		nBins = nLagBins;
+
+		ImagePlus carpetImg = new ImagePlus("pCF(" + distance + ") carpet on "+getImageTitle()+"", carpetProc);
+		carpetImg.setProperty("Info", info.toString());
+		showImage(carpetImg);
+		IJ.run(carpetImg, "Enhance Contrast", "saturated=0.35");
+	}
+
+	// READ EVERY FRAME OF THE STACK ONCE AND RETURN THE INTENSITY TRACES OF A LIST OF PIXELS
+	private float[][] getPixelTraces(int[] xs, int[] ys)
+	{
+		int Nsize = imp.getStackSize();
+		float[][] traces = bufferPool.floats(xs.length, Nsize);
+
+		FrameSource frames = openFrames();
+		try
+		{
+			for (int j = 0; j < Nsize; j++)
+			{
+				ImageProcessor ip = getFrame(frames, j);
+				for (int i = 0; i < xs.length; i++)
+					traces[i][j] = ip.getPixelValue(xs[i], ys[i]);
+				checkJob(j + 1, Nsize);
+			}
+		}
+		finally
 		{
-			headings[1] = ""+ IJ.d2s(((0.5)*mR/resolWav), getDigits((0.5)*mR/resolWav, (0.5)*mR/resolWav)) + " pixel";
-			ampX[0] = (float) ((0.5)*mR/resolWav);
+			closeFrames(frames);
 		}
-		
-		for (i = 1; i < resolWav; i++)
+		return traces;
+	}
+
+	// ADD THE AUTO- AND CROSS-SPECTRA OF TWO BATCHES OF CROPPED PICTURES, THE FFT BEING PERFORMED IN PARALLEL
+	private static void addCrossSpectra(ArrayList<ImageProcessor> batch1, ArrayList<ImageProcessor> batch2, double[][] sums, final int maxN)
+	{
+		final float[][][] spectra = new float[batch1.size()][][];
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int n = 0; n < batch1.size(); n++)
 		{
-			plot.setColor(new Color(colorGeneration(i,1) * 0xff, colorGeneration(i,2) * 0xff, colorGeneration(i,3) * 0xff));
-			plot.addPoints(dataX, dataY[i],2);
-			if (useCalibration)
-			{
-				headings[i+1] = ""+ IJ.d2s(((i + 0.5)*mR*cal.pixelWidth/resolWav), getDigits((i + 0.5)*mR*cal.pixelWidth/resolWav, (i + 0.5)*mR*cal.pixelWidth/resolWav)) + " " + cal.getUnit() + "";
-				ampX[i] = (float) ((i + 0.5)*mR*cal.pixelWidth/resolWav);
-			}
-			else
+			final int index = n;
+			final ImageProcessor crop1 = batch1.get(n);
+			final ImageProcessor crop2 = batch2.get(n);
+			tasks.add(new Callable<Void>()
 			{
-				headings[i+1] = ""+ IJ.d2s(((i + 0.5)*mR/resolWav), getDigits((i + 0.5)*mR/resolWav, (i + 0.5)*mR/resolWav)) + " pixels";
-				ampX[i] = (float) ((i + 0.5)*mR/resolWav);
-			}
-		}		
-		plot.setColor(new Color(0,0,0));		
-		MultyPlotWindowExt wnd = plot.show();
-		wnd.setLineHeadings(headings,false);
-		
-		if (displayAmplitude) //Display the amplitude if selected by the user
+				public Void call()
+				{
+					FHT h1 = new FHT(crop1);
+					FHT h2 = new FHT(crop2);
+					h1.setShowProgress(false);
+					h2.setShowProgress(false);
+					h1.transform();
+					h2.transform();
+					spectra[index] = new float[3][];
+					spectra[index][0] = (float[]) h1.conjugateMultiply(h1).getPixels();
+					spectra[index][1] = (float[]) h2.conjugateMultiply(h2).getPixels();
+					spectra[index][2] = (float[]) h1.conjugateMultiply(h2).getPixels();
+					return null;
+				}
+			});
+		}
+		runParallel(tasks);
+
+		for (int n = 0; n < spectra.length; n++)
 		{
-			if(useCalibration)
+			for (int j = 0; j < 3; j++)
 			{
-				plotAmp = new MultyPlotExtScN("Amplitude on " +getImageTitle()+" at (" + X0 + "," + Y0 + "), " + roiShape + " with size = " + mR + "", "Wavelength ["+ cal.getUnit() +"]", "Amplitude", ampX, ampY);
-				headingsAmp[0] = "Wavelength ["+ cal.getUnit() +"]";
+				for (int p = 0; p < sums[j].length; p++)
+					sums[j][p] += spectra[n][j][p];
 			}
-			else
+		}
+	}
+
+	// CALCULATE THE MEAN AUTO- AND CROSS-CORRELATIONS OF TWO SETS OF PIXEL TRACES WITH THE FFT
+	//Return {G11, G22, G12} for the lags 0 to maxLag-1, G12(t) being <d1(j) d2(j+t)>
+	public static double[][] correlateTraces(final float[][] traces1, final float[][] traces2, final int maxLag)
+	{
+		final int nPixels = traces1.length;
+		final int Nsize = traces1[0].length;
+		final int fftSize = (int) nextPowerOfTwo(2 * Nsize);
+		final int nTasks = Math.min(nPixels, 4 * getThreadCount());
+		final double[][][] partialSums = new double[nTasks][4][fftSize];
+
+		//THE TWO REAL TRACES ARE TRANSFORMED TOGETHER AS ONE COMPLEX SIGNAL d1 + i*d2
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int n = 0; n < nTasks; n++)
+		{
+			final int task = n;
+			tasks.add(new Callable<Void>()
 			{
-				plotAmp = new MultyPlotExtScN("Amplitude on " +getImageTitle()+" at (" + X0 + "," + Y0 + "), " + roiShape + " with size = " + mR + "", "Wavelength [pixel]", "Amplitude", ampX, ampY);
-				headingsAmp[0] = "Wavelength [pixel]";
-			}
-			
-			double[] extremaAmp;
-			float[] tempAmp = new float[resolWav - 1];
-			for(i = 1; i < resolWav; i++)
+				public Void call()
+				{
+					double[] re = bufferPool.doubles(fftSize);
+					double[] im = bufferPool.doubles(fftSize);
+					double[][] sums = partialSums[task];
+					for (int p = task; p < nPixels; p += nTasks)
+					{
+						transformPair(traces1[p], traces2[p], re, im);
+						for (int f = 0; f < fftSize; f++)
+						{
+							int g = (fftSize - f) % fftSize;
+							double re1 = (re[f] + re[g]) / 2, im1 = (im[f] - im[g]) / 2; //Spectrum of d1
+							double re2 = (im[f] + im[g]) / 2, im2 = (re[g] - re[f]) / 2; //Spectrum of d2
+							sums[0][f] += re1 * re1 + im1 * im1;
+							sums[1][f] += re2 * re2 + im2 * im2;
+							sums[2][f] += re1 * re2 + im1 * im2; //conj(D1)*D2
+							sums[3][f] += re1 * im2 - im1 * re2;
+						}
+					}
+					bufferPool.release(re);
+					bufferPool.release(im);
+					return null;
+				}
+			});
+		}
+		runParallel(tasks);
+
+		//SUM THE PARTIAL SPECTRA AND GO BACK TO THE TIME DOMAIN
+		double[][] result = new double[3][maxLag];
+		double[] re = new double[fftSize];
+		double[] im = new double[fftSize];
+		for (int j = 0; j < 3; j++)
+		{
+			Arrays.fill(re, 0);
+			Arrays.fill(im, 0);
+			for (int n = 0; n < nTasks; n++)
 			{
-				tempAmp[i-1] = ampY[i];
+				for (int f = 0; f < fftSize; f++)
+				{
+					re[f] += partialSums[n][j][f];
+					if (j == 2)
+						im[f] += partialSums[n][3][f];
+				}
 			}
-			
-			minY = ampY[1];
-			maxY = ampY[1];
-			extremaAmp = Tools.getMinMax(tempAmp);
-			minY = (float) extremaAmp[0];
-			maxY = (float) extremaAmp[1];
-			plotAmp.setLimits(ampX[0], ampX[resolWav - 1], minY, maxY);
-			headingsAmp[1] = "Amplitude";
-			MultyPlotWindowExtScN wndAmp = plotAmp.show();
-			wndAmp.setLineHeadings(headingsAmp, false);
+			fft(re, im, true);
+			for (int t = 0; t < maxLag; t++)
+				result[j][t] = re[t] / ((double) nPixels * (Nsize - t));
 		}
+		return result;
 	}
 
 	// CALCULATE THE RADIAL PROFILE OF INTENSITY
@@ -1691,67 +3506,20 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 	{
 		nBins = (int) (3*mR)/4;
 
-		double minFFTsize = 2* mR;
-		double FFTsize = findFourrierSize(minFFTsize);
-		double xmin, xmax, ymin, ymax;
-
 		IJ.log("Prepare the picture for the FFT");
 
-		float[] fourierDataY;
-			
-		ImageProcessor epsID = impToCheck.getProcessor();
-			
-		ImagePlus psImg = new ImagePlus("resized", epsID);
-		psImg = cropROI(epsID);
-		
-		/*	
-		if(debugDisplay)
-		{
-			psImg.show();
-			debugDisplay = false;
-		}
-		*/
-		
-		FHT h1;
-		ImageProcessor fht1;
-		fht1  = (ImageProcessor)psImg.getProperty("FHT");
-		if (fht1!=null)
-			h1 = new FHT(fht1);
-		else {
-			ImageProcessor ip1 = psImg.getProcessor();
-			h1 = new FHT(ip1);
-		}
-		if (fht1==null) {
-			h1.transform();
-		}
-		FHT result1=null;
-		result1 = h1.conjugateMultiply(h1);
-		result1.inverseTransform();
-		result1.swapQuadrants();
-		result1.resetMinAndMax();
-		Calibration cal1 = psImg.getCalibration();
-		ImagePlus psImg2 = new ImagePlus("FFT", result1);
-		psImg2.setCalibration(cal1);
-		cal1.disableDensityCalibration();		
-		ImageProcessor psFFT;
-		psFFT = psImg2.getProcessor();		
-		float norm = psFFT.getPixelValue((int) FFTsize/2, (int) FFTsize/2); //Normalisation of the ACF
-		psFFT.multiply(1 / norm); 
+		ACFParameters params = getEngineParameters().build();
+		float[] fourierDataY = new SpatialACFEngine(new SlicePipeline.Settings(), bufferPool).radialProfile(new StackFrameSource(impToCheck.getProcessor()), 0, params);
+		if (fourierDataY == null)
+			fourierDataY = new float[nBins];
 
 		IJ.log("FFT achieved correctly");
-			
-		//RADIAL PROFILE ANGLE EXTENDED (Modded from Philippe Carl)
-		xmin = (FFTsize / 2) - mR;
-		xmax = (FFTsize / 2) + mR;
-		ymin = (FFTsize / 2) - mR;
-		ymax = (FFTsize / 2) + mR;
-
-		fourierDataY = getRadialProfile(psFFT, xmin, xmax, ymin, ymax, (FFTsize / 2), (FFTsize / 2), 0, useFFT);
 
 		return fourierDataY;
 	}
 
 	// CROP THE ROI FROM THE PICTURE FOR MEASUREMENT
+	//The ROI of the displayed image is left as it is, the crop can be made by the analysis thread
 	public ImagePlus cropROI(ImageProcessor cropProc)
 	{
 		int xOff, yOff;
@@ -1770,9 +3538,8 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		
 		if (roiShape == "Square")
 		{
-			imp.setRoi(croi);
-			mean = imp.getStatistics().mean; //Calculate the mean of intensity in the ROI
 			cropProc.setRoi(croi);
+			mean = cropProc.getStatistics().mean; //Calculate the mean of intensity in the ROI of the cropped processor (any slice or channel)
 			cropProc = cropProc.crop(); //Crop the picture to the size of the ROI (still rectangular)
 			FloatProcessor psID = new FloatProcessor(cropProc.getWidth(), cropProc.getHeight()); //Create a new float ImageProcessor of the size of the cropped previous one
 			psID = cropProc.convertToFloatProcessor(); //Copy the first ImageProcessor into the new one, as float
@@ -1792,7 +3559,6 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 			else
 				s1 = new ShapeRoi(roi);
 			s2 = new ShapeRoi(new Roi(0,0, imp.getWidth(), imp.getHeight()));
-			Undo.setup(Undo.ROI, imp);
 			if(s1.xor(s2) == null)
 			{
 				psID2.setRoi(s1.xor(s2)); //<--
@@ -1802,9 +3568,8 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		}
 		else if (roiShape == "Circle")
 		{
-			imp.setRoi(oroi); //Set the ROI on the ImagePlus
-			mean = imp.getStatistics().mean; //Calculate the mean of intensity in the ROI
 			cropProc.setRoi(oroi); //Set the ROI on the ImageProcessor
+			mean = cropProc.getStatistics().mean; //Calculate the mean of intensity in the ROI of the cropped processor (any slice or channel)
 			cropProc = cropProc.crop(); //Crop the picture to the size of the ROI (still rectangular)
 			FloatProcessor psID = new FloatProcessor(cropProc.getWidth(), cropProc.getHeight()); //Create a new float ImageProcessor of the size of the cropped previous one
 			psID = cropProc.convertToFloatProcessor(); //Copy the first ImageProcessor into the new one, as float
@@ -1824,7 +3589,6 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 			else
 				s1 = new ShapeRoi(roi);
 			s2 = new ShapeRoi(new Roi(0,0, FFTsize, FFTsize));
-			Undo.setup(Undo.ROI, imp);
 			psID2.setRoi(s2.not(s1)); //Correction of the initial code in the case of a circular ROI
 			psID2.setValue(0.0); //Set the intensity inside the new ROI to 0.0
 			psID2.fill(psID2.getMask());
@@ -1833,6 +3597,195 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		return psImg;
 	}
 
+	//---------------------------------##
+	// LIVE PREVIEW OF THE SPATIAL ACF ##
+	//---------------------------------##
+
+	// REQUEST A NEW PREVIEW OF THE RADIAL ACF OF THE CURRENT FRAME, CANCELLING THE PENDING ONE
+	private void requestRadialPreview()
+	{
+		if (cbPreview == null || !cbPreview.getState() || mR < 2)
+			return;
+
+		if (previewExecutor == null)
+		{
+			previewExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "ACF preview");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		if (previewTask != null)
+			previewTask.cancel(true);
+
+		//SNAPSHOT OF THE ROI: THE GUI CAN CHANGE IT WHILE THE PREVIEW IS COMPUTED
+		final int generation = ++previewGeneration;
+		final FrameSource frame = new StackFrameSource(imp.getProcessor());
+		final ACFParameters params = getEngineParameters().build();
+		final double radius = mR;
+		previewTask = previewExecutor.submit(new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				//DEBOUNCE: ONLY THE LAST OF A BURST OF REQUESTS IS COMPUTED
+				Thread.sleep(PREVIEW_DELAY);
+
+				//COARSE PASS ON A DOWNSAMPLED ROI, THEN REFINED AT FULL RESOLUTION
+				int factor = (int) Math.max(1, Math.ceil(2 * radius / PREVIEW_SIZE));
+				while (true)
+				{
+					final float[] profile = new SpatialACFEngine(new SlicePipeline.Settings(), bufferPool).radialProfile(frame, 0, params.toBuilder().binning(factor).build());
+					if (Thread.currentThread().isInterrupted() || profile == null)
+						return null;
+					final int shownFactor = factor;
+					EventQueue.invokeLater(new Runnable()
+					{
+						public void run()
+						{
+							if (generation == previewGeneration)
+								showRadialPreview(profile, radius, shownFactor);
+						}
+					});
+					if (factor == 1)
+						return null;
+					factor = 1;
+				}
+			}
+		});
+	}
+
+	// DISPLAY THE PREVIEW OF THE RADIAL ACF, UPDATING THE PREVIEW WINDOW IN PLACE
+	private void showRadialPreview(float[] profile, double radius, int factor)
+	{
+		int nPoints = profile.length;
+		Calibration cal = imp.getCalibration();
+		boolean calibrated = useCalibration && cal != null && cal.getUnit() != "pixel";
+		double pixelSize = calibrated ? (cal.pixelWidth + cal.pixelHeight) / 2 : 1;
+		String unitName = calibrated ? cal.getUnits() : "pixels";
+
+		float[] previewX = new float[nPoints];
+		for (int i = 0; i < nPoints; i++)
+			previewX[i] = (float) (pixelSize * radius * ((double) (i + 1) / nPoints));
+
+		String resolution = factor > 1 ? " (binned " + factor + "x" + factor + ")" : "";
+		MultyPlotExt previewPlot = new MultyPlotExt("AutoCorrelation preview on "+getImageTitle()+"", "Radius ["+unitName+"]", "AutoCorrelation" + resolution, previewX, profile);
+		double[] extrema = Tools.getMinMax(profile);
+		previewPlot.setLimits(previewX[0], previewX[nPoints - 1], Math.min(0, extrema[0]), 1);
+		if (previewWindow == null || previewWindow.isClosed())
+		{
+			String[] headings = {"Radius ["+unitName+"]", "AutoCorrelation"};
+			previewWindow = showPlot(previewPlot);
+			previewWindow.setLineHeadings(headings, false);
+		}
+		else
+			previewWindow.drawPlot(previewPlot);
+	}
+
+	//-------------------------------------##
+	// STORAGE OF THE SPECTRA OF THE STACK ##
+	//-------------------------------------##
+
+	// STORE ONE FLOAT RECORD PER FRAME, IN MEMORY OR IN A MEMORY-MAPPED SPILL FILE IF THE MEMORY IS TOO SMALL
+	//With a scope, the records are copied into its buffers off the heap
+	static class SpectrumStore
+	{
+		private static final long MAX_MAP_SIZE = OffHeapScope.MAX_BUFFER;	// Bytes of a mapping or of an off-heap buffer
+		private final int recordSize;
+		private final int framesPerMap;
+		private float[][] records;
+		private FloatBuffer[] maps;
+		private RandomAccessFile spillFile;
+		private File spillPath;
+
+		SpectrumStore(int nFrames, int recordSize, OffHeapScope scope) throws IOException
+		{
+			this.recordSize = recordSize;
+			long bytes = 4L * nFrames * recordSize;
+			long freeMemory = IJ.maxMemory() - IJ.currentMemory();
+			framesPerMap = (int) Math.max(1, MAX_MAP_SIZE / (4L * recordSize));
+
+			//THE DIRECT MEMORY IS LIMITED TO THE MAXIMUM HEAP SIZE BY DEFAULT
+			if (scope != null && (IJ.maxMemory() == 0 || bytes < (IJ.maxMemory() - OffHeapScope.getTotalBytes()) / 2))
+			{
+				maps = new FloatBuffer[(nFrames + framesPerMap - 1) / framesPerMap];
+				for (int i = 0; i < maps.length; i++)
+					maps[i] = scope.allocateFloats(Math.min(nFrames - i * framesPerMap, framesPerMap) * recordSize);
+			}
+			else if (scope == null && (IJ.maxMemory() == 0 || bytes < freeMemory / 2))
+				records = new float[nFrames][];
+			else
+			{
+				IJ.log("Spectra larger than the free memory, spilled to a memory-mapped file");
+				spillPath = File.createTempFile("acf_spectra", ".raw");
+				spillPath.deleteOnExit();
+				spillFile = new RandomAccessFile(spillPath, "rw");
+				spillFile.setLength(bytes);
+				FileChannel channel = spillFile.getChannel();
+				maps = new FloatBuffer[(nFrames + framesPerMap - 1) / framesPerMap];
+				for (int i = 0; i < maps.length; i++)
+				{
+					long start = 4L * i * framesPerMap * recordSize;
+					long size = Math.min(bytes - start, 4L * framesPerMap * recordSize);
+					maps[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size).asFloatBuffer();
+				}
+			}
+		}
+
+		int getRecordSize()
+		{
+			return recordSize;
+		}
+
+		// SAVE THE RECORD OF A FRAME (THE ARRAY MUST NOT BE MODIFIED AFTERWARDS)
+		void put(int frame, float[] record)
+		{
+			if (records != null)
+				records[frame] = record;
+			else
+			{
+				FloatBuffer view = maps[frame / framesPerMap].duplicate();
+				view.position((frame % framesPerMap) * recordSize);
+				view.put(record);
+			}
+		}
+
+		// READ dest.length VALUES OF THE RECORD OF A FRAME, STARTING AT offset
+		void get(int frame, int offset, float[] dest)
+		{
+			if (records != null)
+				System.arraycopy(records[frame], offset, dest, 0, dest.length);
+			else
+			{
+				FloatBuffer view = maps[frame / framesPerMap].duplicate();
+				view.position((frame % framesPerMap) * recordSize + offset);
+				view.get(dest);
+			}
+		}
+
+		// RELEASE THE MEMORY AND THE SPILL FILE
+		void close()
+		{
+			records = null;
+			maps = null;
+			if (spillFile != null)
+			{
+				try
+				{
+					spillFile.close();
+				}
+				catch (IOException e)
+				{
+				}
+				spillPath.delete();
+				spillFile = null;
+			}
+		}
+	}
+
 	//---------##
 	// UNKNOWN ##
 	//---------##
@@ -1875,6 +3828,194 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		return null;
 	}
 
+	//--------------------------------------##
+	// BACKGROUND EXECUTION OF THE ANALYSES ##
+	//--------------------------------------##
+
+	// START THE ANALYSIS OF ONE OF THE MAIN BUTTONS ON A WORKER THREAD
+	private void startAnalysis(Object source)
+	{
+		if (source == button0)
+			runJob("ACF over time", new Runnable() { public void run() { calculateOverTime(); } });
+		else if (source == button1)
+			runJob("ACF over radius", new Runnable() { public void run() { calculateRadialAutoCorrelation(); } });
+		else if (source == button2)
+			runJob("ACF over time and modes", new Runnable() { public void run() { testWaveACF(); } });
+	}
+
+	// RUN AN ANALYSIS ON A WORKER THREAD, THE GUI STAYS RESPONSIVE AND THE ANALYSIS CAN BE CANCELLED
+	private void runJob(final String name, final Runnable analysis)
+	{
+		if (jobThread != null && jobThread.isAlive())
+		{
+			IJ.showMessage("Error", "The analysis \"" + jobName + "\" is still running");
+			return;
+		}
+
+		jobName = name;
+		jobCancelled = false;
+		jobStart = System.currentTimeMillis();
+		jobLastReport = 0;
+		IJ.resetEscape();
+		setJobState(true);
+
+		jobThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					jobScope = offHeapBuffers ? new OffHeapScope() : null;
+					analysis.run();
+					String offHeap = jobScope != null && jobScope.getBytes() > 0 ? ", " + IJ.d2s(jobScope.getBytes() / 1048576.0, 1) + " MB off the heap" : "";
+					IJ.log(name + " done in " + IJ.d2s((System.currentTimeMillis() - jobStart) / 1000.0, 1) + " s" + offHeap + ", " + bufferPool);
+				}
+				catch (CancellationException e)
+				{
+					IJ.log(name + " cancelled");
+					IJ.showStatus(name + " cancelled");
+				}
+				catch (OutOfMemoryError e)
+				{
+					bufferPool.trim();
+					IJ.outOfMemory(name);
+				}
+				catch (IllegalArgumentException e)
+				{
+					//WRONG SETTINGS OF THE ANALYSIS (ROI OUTSIDE OF THE PICTURE, LAGS...)
+					IJ.log(name + " stopped: " + e.getMessage());
+					IJ.showMessage("Error", e.getMessage());
+				}
+				catch (RuntimeException e)
+				{
+					IJ.handleException(e);
+				}
+				finally
+				{
+					//EVERY THREAD OF THE ANALYSIS IS STOPPED: ITS BUFFERS CAN BE FREED
+					if (jobScope != null)
+						jobScope.close();
+					jobScope = null;
+					jobName = null;
+					if (traceCachesStale)
+					{
+						traceCachesStale = false;
+						TraceCache.release(traceCacheKey());
+					}
+					IJ.showProgress(1.0);
+					EventQueue.invokeLater(new Runnable()
+					{
+						public void run()
+						{
+							setJobState(false);
+						}
+					});
+				}
+			}
+		}, "ACF analysis");
+		jobThread.start();
+	}
+
+	// ENABLE THE CANCEL BUTTON WHILE A JOB RUNS, AND THE ANALYSIS BUTTONS AND THE ROI OTHERWISE
+	private void setJobState(boolean running)
+	{
+		if (button4 == null)
+			return;
+		boolean stack = imp.getStackSize() > 1;
+		button0.setEnabled(!running && stack);
+		button1.setEnabled(!running);
+		button2.setEnabled(!running && stack);
+		button3.setEnabled(!running && stack);
+		button4.setEnabled(running);
+
+		//THE ROI CANNOT BE EDITED WHILE THE ANALYSIS CROPS THE FRAMES WITH IT
+		for (int i = X_CENTER; i <= RADIUS; i++)
+			numericFields[i].setEditable(!running);
+		if (!running)
+		{
+			Checkbox shape = ((CheckboxGroup) gd.getRadioButtonGroups().elementAt(0)).getSelectedCheckbox();
+			if (shape != null && shape.getLabel() != roiShape)
+			{
+				roiShape = shape.getLabel();
+				plotROI();
+			}
+		}
+	}
+
+	// STOP THE RUNNING JOB IF IT WAS CANCELLED WITH THE BUTTON OR THE ESCAPE KEY
+	void checkCancelled()
+	{
+		if (jobName != null && (jobCancelled || IJ.escapePressed()))
+		{
+			jobCancelled = true;
+			throw new CancellationException();
+		}
+	}
+
+	// REPORT THE PROGRESS OF THE RUNNING JOB WITH ITS THROUGHPUT AND ETA, AND STOP IT IF IT WAS CANCELLED
+	void checkJob(int done, int total)
+	{
+		checkCancelled();
+		IJ.showProgress(done, total);
+
+		long now = System.currentTimeMillis();
+		if (jobName == null || done == 0 || now - jobLastReport < 500)
+			return;
+		jobLastReport = now;
+		double rate = 1000.0 * done / Math.max(1, now - jobStart);
+		long remaining = (long) ((total - done) / rate);
+		IJ.showStatus(jobName + ": " + done + "/" + total + " frames, " + IJ.d2s(rate, 1) + " frames/s, ETA " + (remaining / 60) + " min " + (remaining % 60) + " s (Esc to cancel)");
+	}
+
+	// RUN A DISPLAY STEP ON THE EVENT DISPATCH THREAD AND WAIT FOR IT
+	static void runOnEventThread(Runnable display)
+	{
+		if (EventQueue.isDispatchThread())
+		{
+			display.run();
+			return;
+		}
+		try
+		{
+			EventQueue.invokeAndWait(display);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (java.lang.reflect.InvocationTargetException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	// DISPLAY A PLOT ON THE EVENT DISPATCH THREAD AND RETURN ITS WINDOW
+	static MultyPlotWindowExt showPlot(final MultyPlotExt plotToShow)
+	{
+		final MultyPlotWindowExt[] window = new MultyPlotWindowExt[1];
+		runOnEventThread(new Runnable() { public void run() { window[0] = plotToShow.show(); } });
+		return window[0];
+	}
+
+	static MultyPlotWindowExtScN showPlot(final MultyPlotExtScN plotToShow)
+	{
+		final MultyPlotWindowExtScN[] window = new MultyPlotWindowExtScN[1];
+		runOnEventThread(new Runnable() { public void run() { window[0] = plotToShow.show(); } });
+		return window[0];
+	}
+
+	// DISPLAY AN IMAGE ON THE EVENT DISPATCH THREAD
+	static void showImage(final ImagePlus image)
+	{
+		runOnEventThread(new Runnable() { public void run() { image.show(); } });
+	}
+
+	// DISPLAY A RESULTS TABLE ON THE EVENT DISPATCH THREAD
+	static void showTable(final ResultsTable table, final String title)
+	{
+		runOnEventThread(new Runnable() { public void run() { table.show(title); } });
+	}
+
 	//------------------------------------------##
 	// GRAPHIC USER INTERFACE RELATED FUNCTIONS ##
 	//------------------------------------------##
@@ -1903,8 +4044,13 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		gd.addCheckbox		("Display Amplitudes for each modes", displayAmplitude);
 		gd.addCheckbox		("Display filtered stack", displayFilter);
 		gd.addSlider		("Select Filter", 1.0, (double) resolWav, 1.0);
+		gd.addPanel		(addPanel4());
 		gd.addMessage		("--------------------------------");
 		gd.addCheckbox		("!!!--DEBUG MODE--!!!", debugMode);
+		gd.addStringField	("Threads per stage (e.g. read:1, fft:4)", pipelineThreads, 20);
+		gd.addStringField	("Time lags (e.g. 1,2,5,10-20, empty for all)", timeLags, 20);
+		gd.addChoice		("Trace storage", traceStorages, traceStorage);
+		gd.addCheckbox		("Off-heap buffers", offHeapBuffers);
 		gd.setOKLabel		("Cancel");
 		gd.hideCancelButton();
 		gd.addHelp		("http://www.ics-cnrs.unistra.fr/Mcube/spip.php?article238&lang=en");
@@ -1933,6 +4079,7 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		{
 			button0.setEnabled(true);
 			button2.setEnabled(true);
+			button3.setEnabled(true);
 			cb0.setEnabled(true);
 			cb3.setEnabled(true);
 			cb5.setEnabled(true);
@@ -1944,6 +4091,7 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		{
 			button0.setEnabled(false);
 			button2.setEnabled(false);
+			button3.setEnabled(false);
 			cb0.setEnabled(false);
 			cb3.setEnabled(false);
 			cb5.setEnabled(false);
@@ -1969,10 +4117,17 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 	// EDIT THE PARAMETERS AND THE GUI IF SOMETHING IS MODIFIED
 	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e)
 	{	
-		X0					=		gd.getNextNumber();
-		Y0					=		gd.getNextNumber();
-		mR					=		gd.getNextNumber();
-		roiShape			=		gd.getNextRadioButton();
+		double x			=		gd.getNextNumber();
+		double y			=		gd.getNextNumber();
+		double r			=		gd.getNextNumber();
+		String shape		=		gd.getNextRadioButton();
+		if (jobName == null) //The ROI of a running analysis is kept until it is done
+		{
+			X0				=		x;
+			Y0				=		y;
+			mR				=		r;
+			roiShape		=		shape;
+		}
 		useTimeCalibration	=		gd.getNextBoolean();
 		useCalibration		=		gd.getNextBoolean();
 		typeACF				=		gd.getNextRadioButton();
@@ -1985,6 +4140,10 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		displayAmplitude	=		gd.getNextBoolean();
 		displayFilter		=		gd.getNextBoolean();
 		debugMode			=		gd.getNextBoolean();
+		pipelineThreads		=		gd.getNextString();
+		timeLags			=		gd.getNextString();
+		traceStorage		=		gd.getNextChoice();
+		offHeapBuffers		=		gd.getNextBoolean();
 
 		displayFiltNumber	=		slider0.getValue();
 		
@@ -2069,10 +4228,19 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 	private Panel addPanel2()
 	{
 		Panel panel2 = new Panel();
-		panel2.setLayout(new GridLayout(1, 1));
+		panel2.setLayout(new GridLayout(2, 1));
 		button1 = new Button("Calculate ACF over radius (q)");
 		button1.addActionListener(this);
 		panel2.add(button1);
+		cbPreview = new Checkbox("Live preview of the ACF over radius", false);
+		cbPreview.addItemListener(new ItemListener()
+		{
+			public void itemStateChanged(ItemEvent e)
+			{
+				requestRadialPreview();
+			}
+		});
+		panel2.add(cbPreview);
 
 		return panel2;
 	}
@@ -2086,6 +4254,24 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 
 		return panel3;
 	}
+	private Panel addPanel4()
+	{
+		Panel panel4 = new Panel();
+		panel4.setLayout(new GridLayout(3, 1));
+		choice2 = new Choice();
+		for (int i = 0; i < extraModes.length; i++)
+			choice2.add(extraModes[i]);
+		panel4.add(choice2);
+		button3 = new Button("Calculate selected analysis");
+		button3.addActionListener(this);
+		panel4.add(button3);
+		button4 = new Button("Cancel running analysis (Esc)");
+		button4.addActionListener(this);
+		button4.setEnabled(false);
+		panel4.add(button4);
+
+		return panel4;
+	}
 
 	// SET THE PARAMETERS AND BOOLEAN USED IN THE GRAPHIC USER INTERFACE
 	public void setParams(double X_Center, double Y_Center, double Radius, boolean Pixel_Intensity, boolean Pixel_Mean, boolean Use_FFT, boolean Use_Calibration, boolean Make_Stack_Analysis, boolean Make_Stack_Mean)
@@ -2103,6 +4289,9 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 	private void plotROI()
 	{
 		plotIntegrationROI();
+		if (lagTables != null)
+			updateLagCubePlot();
+		requestRadialPreview();
 	}
 
 	// PLOT THE ROI ON THE PICTURE
@@ -2159,6 +4348,51 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		return FFTsize;
 	}
 
+	// ASK THE USER FOR THE SET OF LAGS (IN FRAMES) TO CALCULATE
+	private int[] askLagSet(String title, int maxLag)
+	{
+		GenericDialog lagDialog = new GenericDialog(title);
+		lagDialog.addStringField("Lags (frames, e.g. 1,2,5,10-20):", lagSet, 25);
+		lagDialog.showDialog();
+		if (lagDialog.wasCanceled())
+			return null;
+
+		lagSet = lagDialog.getNextString();
+		int[] lags = parseLagSet(lagSet, maxLag);
+		if (lags.length == 0)
+		{
+			IJ.showMessage("Error", "No valid lag between 0 and " + maxLag);
+			return null;
+		}
+		return lags;
+	}
+
+	// CREATE A PLOT WITH ONE CURVE PER LINE OF THE Y ARRAY
+	private MultyPlotExt createCurvesPlot(String title, String xLabel, String yLabel, float[] x, float[][] y)
+	{
+		float minY = y[0][0];
+		float maxY = y[0][0];
+		double[] extrema;
+		for (int j = 0; j < y.length; j++)
+		{
+			extrema = Tools.getMinMax(y[j]);
+			if (extrema[0] < minY)
+				minY = (float) extrema[0];
+			if (extrema[1] > maxY)
+				maxY = (float) extrema[1];
+		}
+
+		MultyPlotExt curves = new MultyPlotExt(title, xLabel, yLabel, x, y[0]);
+		curves.setLimits(x[0], x[x.length - 1], minY, maxY);
+		for (int j = 1; j < y.length; j++)
+		{
+			curves.setColor(new Color(colorGeneration(j,1) * 0xff, colorGeneration(j,2) * 0xff, colorGeneration(j,3) * 0xff));
+			curves.addPoints(x, y[j], 2);
+		}
+		curves.setColor(new Color(0,0,0));
+		return curves;
+	}
+
 	// GENERATE COLORS FOR MULTI GRAPH PLOT
 	public int colorGeneration(int val, int axis)
 	{
@@ -2223,12 +4457,12 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 	{
 		Object b = e.getSource();
 
-		if (b == button0)
-			calculateOverTime();
-		else if (b == button1)
-			calculateRadialAutoCorrelation();
-		else if (b == button2)
-			testWaveACF();
+		if (b == button3)
+			calculateExtraMode();
+		else if (b == button4)
+			jobCancelled = true;
+		else
+			startAnalysis(b);
 	}
 	
 	// LISTENER ON THE KEYBOARD
@@ -2238,6 +4472,9 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		int flags   = e.getModifiers();
 		e.consume();
 
+		if (jobName != null && keyCode != e.VK_G && keyCode != e.VK_Q) //The ROI of a running analysis is kept until it is done
+			return;
+
 		if (keyCode == KeyEvent.VK_RIGHT || keyCode == KeyEvent.VK_NUMPAD6)
 		{ 
 			if (flags == KeyEvent.SHIFT_MASK)
@@ -2317,14 +4554,16 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 			plotROI();
 		}
 		else if (keyCode == e.VK_G)
-			calculateOverTime();
+			startAnalysis(button0);
 		else if (keyCode == e.VK_Q)
-			calculateRadialAutoCorrelation();
+			startAnalysis(button1);
 	}
 
 	// MODIFY THE ROI CENTER ON A MOUSE DRAG
 	public void mouseDragged(MouseEvent e)
 	{
+		if (jobName != null)
+			return;
 		X0 = canvas.offScreenX(e.getX());
 		Y0 = canvas.offScreenY(e.getY());
 		numericFields[X_CENTER].setText(IJ.d2s(X0, 2));
@@ -2355,6 +4594,8 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 	// MODIFY A NUMERIC VALUES IN A TEXT FIELD ON A MOUSE WHEEL TURN
 	void mouseWheelOnNumericField(MouseWheelEvent e, int fieldIndex)
 	{
+		if (jobName != null && fieldIndex <= RADIUS)
+			return;							// ROI of a running analysis, kept until it is done
 		double value = Tools.parseDouble(numericFields[fieldIndex].getText());
 		if (Double.isNaN(value))
 			return;							// invalid number, can't increment/decrement
@@ -2392,15 +4633,26 @@ public class AutoCorrelation_Function implements PlugInFilter, ImageListener, Ac
 		{
 			removeListeners(imp);
 			gd.dispose();
+			if (previewExecutor != null)
+				previewExecutor.shutdownNow();
+			TraceCache.release(traceCacheKey());
 		}
 	}
 
-	// EMPTY LISTENERS - FOR OVERLOADING
-	public void imageOpened(ImagePlus imp)
+	// DROP THE TRACE CACHES WHEN THE STACK IS CHANGED (FILTERS, BACKGROUND SUBTRACTION...), THEY WOULD HOLD THE OLD PIXELS
+	//The frame on display is compared with the caches, so that browsing the frames keeps them; the caches read by a running analysis are dropped once it is done
+	public void imageUpdated(ImagePlus imp)
 	{
+		if (imp != this.imp || TraceCache.isCurrent(traceCacheKey(), new StackFrameSource(imp.getStack()), imp.getCurrentSlice() - 1))
+			return;
+		if (jobName != null)
+			traceCachesStale = true;
+		else
+			TraceCache.release(traceCacheKey());
 	}
-	
-	public void imageUpdated(ImagePlus imp)
+
+	// EMPTY LISTENERS - FOR OVERLOADING
+	public void imageOpened(ImagePlus imp)
 	{
 	}
 	
@@ -0,0 +1,194 @@
+package acf_engine;
+
+/** PARAMETERS OF AN ACF ANALYSIS
+ *
+ *  Immutable description of the ROI and of the options of a calculation.
+ *  It is built once with a Builder, then it can be shared by any number of
+ *  engines running on different threads.
+ */
+
+public final class ACFParameters
+{
+	public final static int CIRCLE = 0, SQUARE = 1;
+
+	private final double xCenter;		// X center in pixels of the ROI
+	private final double yCenter;		// Y center in pixels of the ROI
+	private final double radius;		// Radius in pixels of the ROI
+	private final int shape;			// CIRCLE or SQUARE
+	private final boolean subtractFrameMean;	// Subtract the ROI mean of every frame before the time ACF
+	private final int binning;			// Downsampling factor of the ROI for the spatial ACF
+	private final int[] lags;			// Lags of the time ACF, null for every lag up to half the stack
+	private final int traceStorage;		// TraceStore format of the pixel traces
+
+	private ACFParameters(Builder builder)
+	{
+		xCenter = builder.xCenter;
+		yCenter = builder.yCenter;
+		radius = builder.radius;
+		shape = builder.shape;
+		subtractFrameMean = builder.subtractFrameMean;
+		binning = builder.binning;
+		lags = builder.lags == null ? null : builder.lags.clone();
+		traceStorage = builder.traceStorage;
+	}
+
+	public double getXCenter()
+	{
+		return xCenter;
+	}
+
+	public double getYCenter()
+	{
+		return yCenter;
+	}
+
+	public double getRadius()
+	{
+		return radius;
+	}
+
+	public int getShape()
+	{
+		return shape;
+	}
+
+	public boolean getSubtractFrameMean()
+	{
+		return subtractFrameMean;
+	}
+
+	public int getBinning()
+	{
+		return binning;
+	}
+
+	// FORMAT OF THE PIXEL TRACES: TraceStore.FLOAT KEEPS THEM AS READ (INTEGERS FOR 8- AND 16-BIT STACKS)
+	public int getTraceStorage()
+	{
+		return traceStorage;
+	}
+
+	// LAGS OF THE TIME ACF, OR EVERY LAG BELOW HALF OF THE NUMBER OF FRAMES IF NO LAG SET WAS GIVEN
+	public int[] getLags(int nFrames)
+	{
+		if (lags != null)
+			return lags.clone();
+		int[] allLags = new int[Math.max(1, nFrames / 2)];
+		for (int i = 0; i < allLags.length; i++)
+			allLags[i] = i;
+		return allLags;
+	}
+
+	// CHECK IF A PIXEL IS ONE OF THE TRACES OF THE PIXEL ACF
+	//The ROI is sampled on a grid of 1 pixel from its top-left corner (xCenter - radius, yCenter - radius), every sample being tested
+	//against the circle and giving the pixel containing it: the pixel x is sampled at a = ceil(x - xCenter + radius), for 0 <= a < 2 radius
+	public boolean isSampled(int x, int y)
+	{
+		double a = Math.ceil(x - (xCenter - radius)), b = Math.ceil(y - (yCenter - radius));
+		if (a < 0 || a >= 2 * radius || b < 0 || b >= 2 * radius)
+			return false;
+		return shape == SQUARE || (a - radius) * (a - radius) + (b - radius) * (b - radius) <= radius * radius;
+	}
+
+	// CHECK IF THE CENTER OF A PIXEL IS INSIDE THE ROI
+	public boolean isInside(double x, double y)
+	{
+		return isInside(x, y, radius);
+	}
+
+	// CHECK IF THE CENTER OF A PIXEL IS INSIDE THE ROI SCALED TO ANOTHER RADIUS
+	public boolean isInside(double x, double y, double scaledRadius)
+	{
+		double dx = x + 0.5 - xCenter, dy = y + 0.5 - yCenter;
+		if (shape == SQUARE)
+			return Math.abs(dx) <= scaledRadius && Math.abs(dy) <= scaledRadius;
+		return dx * dx + dy * dy <= scaledRadius * scaledRadius;
+	}
+
+	// COPY THE PARAMETERS INTO A BUILDER TO DERIVE NEW ONES
+	public Builder toBuilder()
+	{
+		Builder builder = new Builder();
+		builder.xCenter = xCenter;
+		builder.yCenter = yCenter;
+		builder.radius = radius;
+		builder.shape = shape;
+		builder.subtractFrameMean = subtractFrameMean;
+		builder.binning = binning;
+		builder.lags = lags;
+		builder.traceStorage = traceStorage;
+		return builder;
+	}
+
+	public String toString()
+	{
+		return "ROI (" + xCenter + ", " + yCenter + ") R=" + radius + (shape == SQUARE ? " square" : " circle");
+	}
+
+	//---------------------------##
+	// BUILDER OF THE PARAMETERS ##
+	//---------------------------##
+
+	public static final class Builder
+	{
+		private double xCenter, yCenter, radius = 1;
+		private int shape = CIRCLE;
+		private boolean subtractFrameMean = false;
+		private int binning = 1;
+		private int[] lags = null;
+		private int traceStorage = TraceStore.FLOAT;
+
+		public Builder roi(double xCenter, double yCenter, double radius)
+		{
+			this.xCenter = xCenter;
+			this.yCenter = yCenter;
+			this.radius = radius;
+			return this;
+		}
+
+		public Builder shape(int shape)
+		{
+			this.shape = shape;
+			return this;
+		}
+
+		public Builder subtractFrameMean(boolean subtractFrameMean)
+		{
+			this.subtractFrameMean = subtractFrameMean;
+			return this;
+		}
+
+		public Builder binning(int binning)
+		{
+			this.binning = binning;
+			return this;
+		}
+
+		public Builder lags(int[] lags)
+		{
+			this.lags = lags == null ? null : lags.clone();
+			return this;
+		}
+
+		public Builder traceStorage(int traceStorage)
+		{
+			this.traceStorage = traceStorage;
+			return this;
+		}
+
+		public ACFParameters build()
+		{
+			if (!(radius > 0))
+				throw new IllegalArgumentException("The radius of the ROI must be positive");
+			if (shape != CIRCLE && shape != SQUARE)
+				throw new IllegalArgumentException("Unknown ROI shape " + shape);
+			if (binning < 1)
+				throw new IllegalArgumentException("The binning must be at least 1");
+			if (lags != null && lags.length == 0)
+				throw new IllegalArgumentException("The lag set is empty");
+			if (traceStorage != TraceStore.FLOAT && traceStorage != TraceStore.HALF && traceStorage != TraceStore.DELTA)
+				throw new IllegalArgumentException("Unknown trace storage " + traceStorage);
+			return new ACFParameters(this);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package acf_engine;
+
+/** RESULT OF AN ACF CALCULATION
+ *
+ *  Immutable set of curves sharing the same x axis (radius in pixels or lag
+ *  in frames), with the per-pixel moments when they were computed in the
+ *  same pass.
+ */
+
+public final class ACFResult
+{
+	private final String xLabel;
+	private final float[] x;
+	private final String[] names;
+	private final float[][] curves;
+	private final MomentMaps moments;
+
+	public ACFResult(String xLabel, float[] x, String[] names, float[][] curves, MomentMaps moments)
+	{
+		if (names.length != curves.length)
+			throw new IllegalArgumentException("One name is required per curve");
+		this.xLabel = xLabel;
+		this.x = x.clone();
+		this.names = names.clone();
+		this.curves = new float[curves.length][];
+		for (int i = 0; i < curves.length; i++)
+			this.curves[i] = curves[i].clone();
+		this.moments = moments;
+	}
+
+	public String getXLabel()
+	{
+		return xLabel;
+	}
+
+	public int size()
+	{
+		return x.length;
+	}
+
+	public float[] getX()
+	{
+		return x.clone();
+	}
+
+	public int getCurveCount()
+	{
+		return curves.length;
+	}
+
+	public String getCurveName(int curve)
+	{
+		return names[curve];
+	}
+
+	public float[] getCurve(int curve)
+	{
+		return curves[curve].clone();
+	}
+
+	// PER-PIXEL MEAN AND VARIANCE, OR NULL IF THEY WERE NOT COMPUTED
+	public MomentMaps getMoments()
+	{
+		return moments;
+	}
+
+	//--------------------------------------##
+	// PER-PIXEL MEAN AND VARIANCE OF A ROI ##
+	//--------------------------------------##
+
+	public static final class MomentMaps
+	{
+		private final int x, y, width, height;
+		private final float[] mean, variance;	// NaN for the pixels outside of the ROI
+
+		public MomentMaps(int x, int y, int width, int height, float[] mean, float[] variance)
+		{
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.mean = mean.clone();
+			this.variance = variance.clone();
+		}
+
+		public int getX()
+		{
+			return x;
+		}
+
+		public int getY()
+		{
+			return y;
+		}
+
+		public int getWidth()
+		{
+			return width;
+		}
+
+		public int getHeight()
+		{
+			return height;
+		}
+
+		public float[] getMean()
+		{
+			return mean.clone();
+		}
+
+		public float[] getVariance()
+		{
+			return variance.clone();
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package acf_engine;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** HEADLESS BATCH PROCESSING OF A FOLDER OF STACKS
+ *
+ *  java -Djava.awt.headless=true -cp ij.jar:plugins acf_engine.BatchRunner <parameters> <input folder> <output folder>
+ *
+ *  The parameter file uses the key = value format of java.util.Properties:
+ *    mode     = time-pixels, time-area, time-pyramid or radial-stack
+ *    rois     = x,y,r; x,y,r; ...       (list of ROIs, in pixels)
+ *    grid     = spacing, radius         (ROIs on a regular grid, used when no list is given)
+ *    shape    = circle or square
+ *    lags     = 1-10, 20, 50            (time modes, every lag below half of the stack by default)
+ *    binning  = 1                       (downsampling of the ROI before the FFT, radial mode)
+ *    storage  = float                   (pixel traces: float, half or delta for lossless integer packing)
+ *    offheap  = false                   (keep the pixel traces off the heap, freed after every ROI)
+ *    threads  = 2                       (stacks processed at the same time)
+ *    suffix   = .tif                    (files of the input folder to process)
+ *    prefetch = 2                       (stacks decoded ahead while the others are analysed)
+ *    memory   = 1024                    (MB of decoded stacks held at once, half of the heap by default)
+ *    virtual  = false                   (open uncompressed TIFF as virtual stacks, read frame by frame)
+ *    frames   = 16                      (frames of a virtual stack decoded ahead)
+ *    readers  = 2                       (threads decoding the frames of a virtual stack)
+ *    mapped   = false                   (map uncompressed 16-bit TIFF and raw files in memory, without decoding them)
+ *    raw      = width, height, offset, little   (format of the raw files to map, big-endian unless 'little')
+ *    stages   = read:1, fft:2           (threads per stage of the frame pipelines of the engines)
+ *    queue    = 4                       (frames waiting between two stages)
+ *    report   = false                   (print the occupancy of the stages after every ROI)
+ *
+ *  One <stack>_acf.tsv file is written per stack, with one line per ROI and curve
+ *  under a header line holding the x values, and batch_summary.tsv lists the
+ *  time and status of every stack.
+ */
+
+public final class BatchRunner
+{
+	public final static String TIME_PIXELS = "time-pixels", TIME_AREA = "time-area", TIME_PYRAMID = "time-pyramid", RADIAL_STACK = "radial-stack";
+
+	private final Properties settings;
+	private final String mode;
+	private final int threads;
+	private final SlicePipeline.Settings pipeline;
+	private final boolean offHeap;
+	private final BufferPool buffers = new BufferPool();	// Work arrays shared by the stacks analysed at the same time
+
+	public BatchRunner(Properties settings)
+	{
+		this.settings = settings;
+		mode = settings.getProperty("mode", TIME_PIXELS).trim();
+		threads = Math.max(1, Integer.parseInt(settings.getProperty("threads", "2").trim()));
+		if (!mode.equals(TIME_PIXELS) && !mode.equals(TIME_AREA) && !mode.equals(TIME_PYRAMID) && !mode.equals(RADIAL_STACK))
+			throw new IllegalArgumentException("Unknown mode " + mode);
+
+		pipeline = new SlicePipeline.Settings().parse(settings.getProperty("stages", ""));
+		pipeline.queueSize(Integer.parseInt(settings.getProperty("queue", "4").trim()));
+		offHeap = Boolean.parseBoolean(settings.getProperty("offheap", "false").trim());
+		if (Boolean.parseBoolean(settings.getProperty("report", "false").trim()))
+			pipeline.monitor(new SlicePipeline.Monitor()
+			{
+				public void pipelineDone(SlicePipeline.Report report)
+				{
+					System.out.println(report);
+				}
+			});
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		System.setProperty("java.awt.headless", "true");
+		if (args.length < 3)
+		{
+			System.err.println("Usage: BatchRunner <parameter file> <input folder> <output folder>");
+			System.exit(1);
+		}
+
+		Properties settings = new Properties();
+		Reader reader = new FileReader(args[0]);
+		try
+		{
+			settings.load(reader);
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		int failed = new BatchRunner(settings).run(new File(args[1]), new File(args[2]));
+		System.exit(failed == 0 ? 0 : 2);
+	}
+
+	// PROCESS EVERY STACK OF THE INPUT FOLDER WITH A BOUNDED POOL OF THREADS, RETURN THE NUMBER OF FAILURES
+	public int run(File inputFolder, File outputFolder) throws IOException, InterruptedException
+	{
+		final String suffix = settings.getProperty("suffix", ".tif").trim().toLowerCase();
+		File[] files = inputFolder.listFiles(new FileFilter()
+		{
+			public boolean accept(File file)
+			{
+				return file.isFile() && file.getName().toLowerCase().endsWith(suffix);
+			}
+		});
+		if (files == null)
+			throw new IOException("Cannot list the folder " + inputFolder);
+		Arrays.sort(files);
+		if (!outputFolder.isDirectory() && !outputFolder.mkdirs())
+			throw new IOException("Cannot create the folder " + outputFolder);
+
+		long start = System.currentTimeMillis();
+		System.out.println("Batch " + mode + " on " + files.length + " stack(s) with " + threads + " thread(s), " + LagCorrelator.getKernels() + " lag kernels");
+
+		//THE NEXT STACKS ARE DECODED IN THE BACKGROUND WHILE AT MOST threads STACKS ARE ANALYSED
+		long memory = settings.getProperty("memory") != null ? Long.parseLong(settings.getProperty("memory").trim()) << 20 : Runtime.getRuntime().maxMemory() / 2;
+		StackPrefetcher prefetcher = new StackPrefetcher(files, Integer.parseInt(settings.getProperty("prefetch", "2").trim()), memory,
+			Boolean.parseBoolean(settings.getProperty("virtual", "false").trim()), Boolean.parseBoolean(settings.getProperty("mapped", "false").trim()),
+			Integer.parseInt(settings.getProperty("frames", "16").trim()), Integer.parseInt(settings.getProperty("readers", "2").trim()));
+		String raw = settings.getProperty("raw");
+		if (raw != null && raw.trim().length() > 0)
+		{
+			String[] values = raw.split(",");
+			if (values.length < 2 || values.length > 4)
+				throw new IllegalArgumentException("The raw format is given as width, height, offset, little and not as " + raw);
+			prefetcher.setRawFormat(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()), values.length > 2 ? Long.parseLong(values[2].trim()) : 0,
+				values.length > 3 && values[3].trim().equalsIgnoreCase("little"));
+		}
+		prefetcher.start();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final Semaphore computeSlots = new Semaphore(threads);
+		ArrayList<Future<String>> summaries = new ArrayList<Future<String>>();
+		long waitedForStacks = 0;
+		try
+		{
+			for (int i = 0; i < files.length; i++)
+			{
+				computeSlots.acquire();
+				long waitStart = System.currentTimeMillis();
+				final StackPrefetcher.Loaded stack = prefetcher.take();
+				waitedForStacks += System.currentTimeMillis() - waitStart;
+				final File output = outputFolder;
+				summaries.add(pool.submit(new Callable<String>()
+				{
+					public String call()
+					{
+						try
+						{
+							return processStack(stack, output);
+						}
+						finally
+						{
+							stack.release();
+							computeSlots.release();
+						}
+					}
+				}));
+			}
+		}
+		finally
+		{
+			prefetcher.stop();
+			pool.shutdown();
+		}
+
+		// WRITE THE SUMMARY OF THE RUN IN THE ORDER OF THE FILES
+		int failed = 0;
+		PrintWriter summary = new PrintWriter(new BufferedWriter(new FileWriter(new File(outputFolder, "batch_summary.tsv"))));
+		try
+		{
+			summary.println("file\twidth\theight\tframes\trois\tseconds\tstatus");
+			for (Future<String> line : summaries)
+			{
+				String text;
+				try
+				{
+					text = line.get();
+				}
+				catch (ExecutionException e)
+				{
+					text = "?\t\t\t\t\t\terror: " + e.getCause();
+				}
+				if (!text.endsWith("\tok"))
+					failed++;
+				summary.println(text);
+			}
+		}
+		finally
+		{
+			summary.close();
+		}
+
+		System.out.println("Batch done in " + (System.currentTimeMillis() - start) / 1000.0 + " s, " + failed + " failure(s)");
+		System.out.println("Waiting for the loading: " + waitedForStacks / 1000.0 + " s, loading waiting for memory: " + prefetcher.getWaitedMillis() / 1000.0 + " s");
+		System.out.println("Work arrays: " + buffers);
+		return failed;
+	}
+
+	// CALCULATE THE ACF OF EVERY ROI OF A LOADED STACK AND WRITE THE RESULT FILE, RETURN THE LINE OF THE SUMMARY
+	String processStack(StackPrefetcher.Loaded stack, File outputFolder)
+	{
+		long start = System.currentTimeMillis();
+		String name = stack.getFile().getName();
+		if (stack.getSource() == null)
+			return name + "\t\t\t\t\t\terror: " + stack.getError().getMessage();
+		try
+		{
+			FrameSource source = stack.getSource();
+			ArrayList<ACFParameters> rois = getRois(source.getWidth(), source.getHeight());
+
+			String base = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+			PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(new File(outputFolder, base + "_acf.tsv"))));
+			try
+			{
+				float[] header = null;
+				for (ACFParameters roi : rois)
+				{
+					ACFResult result = analyse(source, roi);
+
+					//A NEW HEADER IS WRITTEN WHEN THE X AXIS CHANGES (RADIAL ACF OF ROIS OF DIFFERENT SIZES)
+					if (!Arrays.equals(header, result.getX()))
+					{
+						header = result.getX();
+						writeHeader(out, result);
+					}
+					writeResult(out, roi, result);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+
+			double seconds = (System.currentTimeMillis() - start) / 1000.0;
+			System.out.println(name + ": loaded in " + stack.getLoadMillis() / 1000.0 + " s, " + rois.size() + " ROI(s) in " + seconds + " s");
+			return name + "\t" + source.getWidth() + "\t" + source.getHeight() + "\t" + source.getFrameCount() + "\t" + rois.size() + "\t" + seconds + "\tok";
+		}
+		catch (Exception e)
+		{
+			System.err.println(name + ": " + e);
+			return name + "\t\t\t\t\t" + (System.currentTimeMillis() - start) / 1000.0 + "\terror: " + e.getMessage();
+		}
+	}
+
+	// CALCULATE THE ACF OF THE MODE FOR ONE ROI
+	ACFResult analyse(FrameSource source, ACFParameters roi)
+	{
+		if (mode.equals(TIME_AREA))
+			return new TimeACFEngine(pipeline, null, buffers).areaACF(source, roi, null);
+		else if (mode.equals(TIME_PYRAMID))
+			return new TimeACFEngine(pipeline, null, buffers).pyramidACF(source, roi, 4, null);
+		else if (mode.equals(RADIAL_STACK))
+			return new SpatialACFEngine(pipeline, buffers).stackRadialACF(source, roi, true, null);
+		if (!offHeap)
+			return new TimeACFEngine(pipeline, null, buffers).pixelACF(source, roi, false, null);
+
+		//THE TRACES OF THE ROI ARE FREED AS SOON AS ITS ACF IS CALCULATED
+		OffHeapScope scope = new OffHeapScope();
+		try
+		{
+			return new TimeACFEngine(pipeline, scope, buffers).pixelACF(source, roi, false, null);
+		}
+		finally
+		{
+			scope.close();
+		}
+	}
+
+	// BUILD THE ROIS OF THE PARAMETER FILE, FROM THE LIST OR FROM THE GRID
+	ArrayList<ACFParameters> getRois(int width, int height)
+	{
+		ACFParameters.Builder builder = new ACFParameters.Builder();
+		builder.shape(settings.getProperty("shape", "circle").trim().equalsIgnoreCase("square") ? ACFParameters.SQUARE : ACFParameters.CIRCLE);
+		builder.binning(Integer.parseInt(settings.getProperty("binning", "1").trim()));
+		builder.traceStorage(TraceStore.parseFormat(settings.getProperty("storage", "float")));
+		String lagSet = settings.getProperty("lags");
+		if (lagSet != null && lagSet.trim().length() > 0)
+			builder.lags(CorrelationKernels.parseLagSet(lagSet, Integer.MAX_VALUE));
+
+		ArrayList<ACFParameters> rois = new ArrayList<ACFParameters>();
+		String list = settings.getProperty("rois");
+		if (list != null && list.trim().length() > 0)
+		{
+			String[] items = list.split(";");
+			for (int i = 0; i < items.length; i++)
+			{
+				if (items[i].trim().length() == 0)
+					continue;
+				String[] values = items[i].split(",");
+				if (values.length != 3)
+					throw new IllegalArgumentException("A ROI is given as x,y,r and not as " + items[i]);
+				rois.add(builder.roi(Double.parseDouble(values[0].trim()), Double.parseDouble(values[1].trim()), Double.parseDouble(values[2].trim())).build());
+			}
+		}
+		else
+		{
+			String[] grid = settings.getProperty("grid", "").split(",");
+			if (grid.length != 2)
+				throw new IllegalArgumentException("Either a list of rois or a grid = spacing, radius is required");
+			double spacing = Double.parseDouble(grid[0].trim());
+			double radius = Double.parseDouble(grid[1].trim());
+			for (double y = spacing / 2; y + radius <= height; y += spacing)
+				for (double x = spacing / 2; x + radius <= width; x += spacing)
+					if (x >= radius && y >= radius)
+						rois.add(builder.roi(x, y, radius).build());
+		}
+		if (rois.isEmpty())
+			throw new IllegalArgumentException("No ROI fits in the " + width + "x" + height + " frames");
+		return rois;
+	}
+
+	// WRITE THE HEADER OF A RESULT FILE: THE ROI COLUMNS THEN THE X VALUES
+	static void writeHeader(PrintWriter out, ACFResult result)
+	{
+		out.print("x\ty\tradius\tcurve\t" + result.getXLabel());
+		float[] x = result.getX();
+		for (int i = 0; i < x.length; i++)
+			out.print("\t" + x[i]);
+		out.println();
+	}
+
+	// WRITE ONE LINE PER CURVE OF A RESULT
+	static void writeResult(PrintWriter out, ACFParameters roi, ACFResult result)
+	{
+		for (int c = 0; c < result.getCurveCount(); c++)
+		{
+			out.print(roi.getXCenter() + "\t" + roi.getYCenter() + "\t" + roi.getRadius() + "\t" + result.getCurveName(c) + "\t");
+			float[] curve = result.getCurve(c);
+			for (int i = 0; i < curve.length; i++)
+				out.print("\t" + curve[i]);
+			out.println();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package acf_engine;
+
+import java.lang.ref.*;
+import java.util.*;
+
+/** ARRAYS BORROWED BY THE ANALYSES AND GIVEN BACK FOR THE NEXT ONES
+ *
+ *  The work arrays of an analysis (traces, frame regions, FFT buffers) are
+ *  borrowed from the pool and released once the analysis is done. Released
+ *  arrays wait in one size class per type and length, and the next borrow
+ *  of the same size takes one of them, filled with zeros, instead of a new
+ *  array: an analysis repeated on a ROI of the same size allocates nothing
+ *  after the first run. The waiting arrays are held by soft references, so
+ *  that the garbage collector can take them back before running out of
+ *  memory, and the pool empties itself when the free heap gets low. The
+ *  pool is thread-safe: only the size classes and the counts are locked,
+ *  the arrays are cleared or allocated outside of the lock. A pool keeping
+ *  nothing (UNPOOLED) allocates without any lock and counts nothing.
+ */
+
+public final class BufferPool
+{
+	public final static BufferPool UNPOOLED = new BufferPool(0);	// Keeps nothing: every borrow is a new array
+
+	private final static int FLOAT = 0, DOUBLE = 1, BYTE = 2, SHORT = 3;
+	private final static int[] BYTES = {4, 8, 1, 2};
+
+	private final long maxIdleBytes;
+	private final boolean pooled;		// False if nothing is kept: no lock and no counts
+	private final HashMap<Long, ArrayList<Idle>> classes = new HashMap<Long, ArrayList<Idle>>();
+	private final ReferenceQueue<Object> cleared = new ReferenceQueue<Object>();
+	private long idleBytes, borrowedBytes, highWaterBytes;
+	private long borrows, reuses;
+
+	// RELEASED ARRAY WAITING IN ITS SIZE CLASS
+	private final static class Idle extends SoftReference<Object>
+	{
+		final long key, bytes;
+
+		Idle(Object array, long key, long bytes, ReferenceQueue<Object> queue)
+		{
+			super(array, queue);
+			this.key = key;
+			this.bytes = bytes;
+		}
+	}
+
+	// POOL KEEPING AT MOST A QUARTER OF THE MAXIMUM HEAP IN RELEASED ARRAYS
+	public BufferPool()
+	{
+		this(Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	public BufferPool(long maxIdleBytes)
+	{
+		this.maxIdleBytes = maxIdleBytes;
+		pooled = maxIdleBytes > 0;
+	}
+
+	public float[] floats(int length)
+	{
+		return (float[]) borrow(FLOAT, length);
+	}
+
+	public double[] doubles(int length)
+	{
+		return (double[]) borrow(DOUBLE, length);
+	}
+
+	public byte[] bytes(int length)
+	{
+		return (byte[]) borrow(BYTE, length);
+	}
+
+	public short[] shorts(int length)
+	{
+		return (short[]) borrow(SHORT, length);
+	}
+
+	// ROWS OF THE SAME LENGTH, EVERY ROW BORROWED FROM THE POOL
+	public float[][] floats(int rows, int length)
+	{
+		float[][] arrays = new float[rows][];
+		for (int r = 0; r < rows; r++)
+			arrays[r] = floats(length);
+		return arrays;
+	}
+
+	public double[][] doubles(int rows, int length)
+	{
+		double[][] arrays = new double[rows][];
+		for (int r = 0; r < rows; r++)
+			arrays[r] = doubles(length);
+		return arrays;
+	}
+
+	public byte[][] bytes(int rows, int length)
+	{
+		byte[][] arrays = new byte[rows][];
+		for (int r = 0; r < rows; r++)
+			arrays[r] = bytes(length);
+		return arrays;
+	}
+
+	public short[][] shorts(int rows, int length)
+	{
+		short[][] arrays = new short[rows][];
+		for (int r = 0; r < rows; r++)
+			arrays[r] = shorts(length);
+		return arrays;
+	}
+
+	// GIVE BACK AN ARRAY, OR EVERY ROW OF A 2D ARRAY (null IS IGNORED), ONCE; THE ARRAY MUST NOT BE USED AFTERWARDS
+	public void release(Object array)
+	{
+		if (!pooled)
+			return;
+		if (array instanceof Object[])
+		{
+			for (Object row : (Object[]) array)
+				release(row);
+			return;
+		}
+		int kind = array instanceof float[] ? FLOAT : array instanceof double[] ? DOUBLE : array instanceof byte[] ? BYTE : array instanceof short[] ? SHORT : -1;
+		if (kind < 0)
+			return;
+		int length = kind == FLOAT ? ((float[]) array).length : kind == DOUBLE ? ((double[]) array).length : kind == BYTE ? ((byte[]) array).length : ((short[]) array).length;
+		long bytes = (long) BYTES[kind] * length;
+
+		synchronized (this)
+		{
+			borrowedBytes = Math.max(0, borrowedBytes - bytes);
+			purge();
+			if (idleBytes + bytes > maxIdleBytes)
+				return;
+			long key = key(kind, length);
+			ArrayList<Idle> idle = classes.get(key);
+			if (idle == null)
+			{
+				idle = new ArrayList<Idle>();
+				classes.put(key, idle);
+			}
+			idle.add(new Idle(array, key, bytes, cleared));
+			idleBytes += bytes;
+			highWater();
+		}
+	}
+
+	// DROP EVERY RELEASED ARRAY
+	public synchronized void trim()
+	{
+		classes.clear();
+		idleBytes = 0;
+		while (cleared.poll() != null)
+			;
+	}
+
+	// BYTES OF THE ARRAYS BORROWED AND NOT RELEASED YET
+	public synchronized long getBorrowedBytes()
+	{
+		return borrowedBytes;
+	}
+
+	// BYTES OF THE RELEASED ARRAYS WAITING IN THE POOL
+	public synchronized long getIdleBytes()
+	{
+		purge();
+		return idleBytes;
+	}
+
+	// LARGEST MEMORY HELD AT ONCE BY THE POOL, BORROWED AND WAITING ARRAYS TOGETHER
+	public synchronized long getHighWaterBytes()
+	{
+		return highWaterBytes;
+	}
+
+	// FRACTION OF THE BORROWS SERVED BY A RELEASED ARRAY
+	public synchronized double getReuseRatio()
+	{
+		return borrows > 0 ? (double) reuses / borrows : 0;
+	}
+
+	public String toString()
+	{
+		return "buffer pool: " + megabytes(getHighWaterBytes()) + " MB at most, " + megabytes(getIdleBytes()) + " MB kept, " + Math.round(100 * getReuseRatio()) + "% of the arrays reused";
+	}
+
+	// TAKE A RELEASED ARRAY OF THE SIZE, CLEARED, OR A NEW ONE
+	private Object borrow(int kind, int length)
+	{
+		Object array = pooled ? take(kind, length) : null;
+		if (array == null)
+			return allocate(kind, length);
+
+		//CLEARED OUTSIDE OF THE LOCK, THE ARRAY BELONGS TO THIS THREAD ONLY
+		if (kind == FLOAT)
+			Arrays.fill((float[]) array, 0);
+		else if (kind == DOUBLE)
+			Arrays.fill((double[]) array, 0);
+		else if (kind == BYTE)
+			Arrays.fill((byte[]) array, (byte) 0);
+		else
+			Arrays.fill((short[]) array, (short) 0);
+		return array;
+	}
+
+	// COUNT A BORROW AND REMOVE A RELEASED ARRAY OF THE SIZE FROM ITS CLASS, NULL IF THERE IS NONE
+	private synchronized Object take(int kind, int length)
+	{
+		long bytes = (long) BYTES[kind] * length;
+		borrows++;
+		borrowedBytes += bytes;
+		purge();
+
+		//LOW MEMORY: THE RELEASED ARRAYS ARE GIVEN BACK TO THE GARBAGE COLLECTOR
+		Runtime runtime = Runtime.getRuntime();
+		if (idleBytes > 0 && runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory() < runtime.maxMemory() / 8)
+			trim();
+
+		ArrayList<Idle> idle = classes.get(key(kind, length));
+		while (idle != null && !idle.isEmpty())
+		{
+			Idle reference = idle.remove(idle.size() - 1);
+			Object array = reference.get();
+			idleBytes -= reference.bytes;
+			if (array == null)
+				continue;
+			reference.clear();
+			reuses++;
+			return array;
+		}
+		highWater();
+		return null;
+	}
+
+	// NEW ARRAY OF THE KIND AND LENGTH
+	private static Object allocate(int kind, int length)
+	{
+		if (kind == FLOAT)
+			return new float[length];
+		if (kind == DOUBLE)
+			return new double[length];
+		if (kind == BYTE)
+			return new byte[length];
+		return new short[length];
+	}
+
+	// FORGET THE ARRAYS TAKEN BACK BY THE GARBAGE COLLECTOR
+	private void purge()
+	{
+		Reference<?> reference;
+		while ((reference = cleared.poll()) != null)
+		{
+			Idle idle = (Idle) reference;
+			ArrayList<Idle> list = classes.get(idle.key);
+			if (list != null && list.remove(idle))
+				idleBytes -= idle.bytes;
+		}
+	}
+
+	private void highWater()
+	{
+		highWaterBytes = Math.max(highWaterBytes, borrowedBytes + idleBytes);
+	}
+
+	private static String megabytes(long bytes)
+	{
+		return String.valueOf(Math.round(bytes / 104857.6) / 10.0);
+	}
+
+	private static long key(int kind, int length)
+	{
+		return ((long) kind << 32) | length;
+	}
+}
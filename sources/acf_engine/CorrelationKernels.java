@@ -0,0 +1,254 @@
+package acf_engine;
+
+import ij.Prefs;
+import ij.util.Tools;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** KERNELS SHARED BY THE ACF ENGINES AND THE PLUG-IN
+ *
+ *  Stateless static functions: lag sets, thread pool helper, FFT and the
+ *  correlation of pixel traces. Every function only works on its arguments,
+ *  so they can be called from any number of threads at once.
+ */
+
+public final class CorrelationKernels
+{
+	private CorrelationKernels()
+	{
+	}
+
+	// CONVERT A LIST OF LAGS AND RANGES OF LAGS INTO A SORTED ARRAY WITHOUT DUPLICATES
+	public static int[] parseLagSet(String text, int maxLag)
+	{
+		TreeSet<Integer> lagTree = new TreeSet<Integer>();
+		String[] items = text.split("[,;\\s]+");
+		for (int i = 0; i < items.length; i++)
+		{
+			if (items[i].length() == 0)
+				continue;
+			int dash = items[i].indexOf('-', 1);
+			double first, last;
+			if (dash > 0)
+			{
+				first = Tools.parseDouble(items[i].substring(0, dash));
+				last = Tools.parseDouble(items[i].substring(dash + 1));
+			}
+			else
+			{
+				first = Tools.parseDouble(items[i]);
+				last = first;
+			}
+			if (Double.isNaN(first) || Double.isNaN(last))
+				continue;
+			for (int lag = (int) first; lag <= (int) last; lag++)
+			{
+				if (lag >= 0 && lag <= maxLag)
+					lagTree.add(lag);
+			}
+		}
+
+		int[] lags = new int[lagTree.size()];
+		int i = 0;
+		for (Integer lag : lagTree)
+			lags[i++] = lag;
+		return lags;
+	}
+
+	// GET THE NUMBER OF THREADS USED FOR THE PARALLEL CALCULATIONS
+	public static int getThreadCount()
+	{
+		return Math.max(1, Math.min(Prefs.getThreads(), Runtime.getRuntime().availableProcessors()));
+	}
+
+	// RUN A LIST OF INDEPENDENT TASKS ON ALL THE AVAILABLE CORES AND WAIT FOR THEM
+	public static void runParallel(Collection<? extends Callable<Void>> tasks)
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(getThreadCount(), Math.max(1, tasks.size())));
+		try
+		{
+			for (Future<Void> future : pool.invokeAll(tasks))
+				future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Calculation interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			stopPool(pool);
+		}
+	}
+
+	// STOP THE THREADS OF A POOL AND WAIT FOR THEM, EVEN IF THE CALLER IS INTERRUPTED
+	//No task may still use the buffers of an OffHeapScope once its analysis is stopped and the scope closed
+	public static void stopPool(ExecutorService pool)
+	{
+		pool.shutdownNow();
+		boolean interrupted = Thread.interrupted();
+		while (!pool.isTerminated())
+		{
+			try
+			{
+				pool.awaitTermination(1, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	// GET THE SMALLEST POWER OF 2 LARGER OR EQUAL TO A SIZE
+	public static long nextPowerOfTwo(long size)
+	{
+		long power = 1;
+		while (power < size)
+			power = power * 2;
+		return power;
+	}
+
+	// FFT OF TWO MEAN-SUBTRACTED REAL TRACES, TRANSFORMED TOGETHER AS THE COMPLEX SIGNAL d1 + i*d2
+	//The arrays re and im must be at least twice as long as the traces; the means of the traces are returned
+	public static double[] transformPair(float[] trace1, float[] trace2, double[] re, double[] im)
+	{
+		int Nsize = trace1.length;
+		double mean1 = 0, mean2 = 0;
+		for (int t = 0; t < Nsize; t++)
+		{
+			mean1 += trace1[t];
+			mean2 += trace2[t];
+		}
+		mean1 /= Nsize;
+		mean2 /= Nsize;
+		Arrays.fill(re, 0);
+		Arrays.fill(im, 0);
+		for (int t = 0; t < Nsize; t++)
+		{
+			re[t] = trace1[t] - mean1;
+			im[t] = trace2[t] - mean2;
+		}
+		fft(re, im, false);
+		return new double[] {mean1, mean2};
+	}
+
+	// CALCULATE THE NORMALIZED CROSS-CORRELATION <d1(t)d2(t+lag)>/(<I1><I2>) OF ONE PAIR OF TRACES WITH THE FFT
+	//re and im are work arrays of a power of 2 size at least twice the length of the traces
+	public static void pairCorrelation(float[] trace1, float[] trace2, double[] re, double[] im, double[] correlation)
+	{
+		int Nsize = trace1.length;
+		int fftSize = re.length;
+		double[] means = transformPair(trace1, trace2, re, im);
+
+		//Replace the spectrum by conj(D1)*D2, using the symmetries of the spectra of real signals
+		for (int f = 0; f <= fftSize / 2; f++)
+		{
+			int g = (fftSize - f) % fftSize;
+			double re1 = (re[f] + re[g]) / 2, im1 = (im[f] - im[g]) / 2;
+			double re2 = (im[f] + im[g]) / 2, im2 = (re[g] - re[f]) / 2;
+			double crossRe = re1 * re2 + im1 * im2;
+			double crossIm = re1 * im2 - im1 * re2;
+			re[f] = crossRe;
+			im[f] = crossIm;
+			re[g] = crossRe;
+			im[g] = -crossIm;
+		}
+		fft(re, im, true);
+
+		double norm = means[0] * means[1];
+		if (norm == 0)
+			norm = 1;
+		for (int t = 0; t < correlation.length && t < Nsize; t++)
+			correlation[t] = re[t] / ((Nsize - t) * norm);
+	}
+
+	// CALCULATE THE UNNORMALIZED AUTOCORRELATIONS <d(t)d(t+lag)> OF TWO TRACES WITH ONE FORWARD AND ONE INVERSE FFT
+	//The power spectra of both traces are real and even, so they are inverted together as P1 + i*P2
+	public static void pairAutocorrelation(float[] trace1, float[] trace2, double[] re, double[] im, double[] acf1, double[] acf2)
+	{
+		int Nsize = trace1.length;
+		int fftSize = re.length;
+		transformPair(trace1, trace2, re, im);
+
+		for (int f = 0; f <= fftSize / 2; f++)
+		{
+			int g = (fftSize - f) % fftSize;
+			double re1 = (re[f] + re[g]) / 2, im1 = (im[f] - im[g]) / 2;
+			double re2 = (im[f] + im[g]) / 2, im2 = (re[g] - re[f]) / 2;
+			double power1 = re1 * re1 + im1 * im1;
+			double power2 = re2 * re2 + im2 * im2;
+			re[f] = power1;
+			im[f] = power2;
+			re[g] = power1;
+			im[g] = power2;
+		}
+		fft(re, im, true);
+
+		for (int t = 0; t < acf1.length && t < Nsize; t++)
+		{
+			acf1[t] = re[t] / (Nsize - t);
+			acf2[t] = im[t] / (Nsize - t);
+		}
+	}
+
+	// IN-PLACE RADIX-2 COMPLEX FFT (THE INVERSE TRANSFORM IS SCALED BY 1/N)
+	public static void fft(double[] re, double[] im, boolean inverse)
+	{
+		int n = re.length;
+		int i, j, k, len;
+
+		for (i = 1, j = 0; i < n; i++)
+		{
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+			j ^= bit;
+			if (i < j)
+			{
+				double tmp = re[i]; re[i] = re[j]; re[j] = tmp;
+				tmp = im[i]; im[i] = im[j]; im[j] = tmp;
+			}
+		}
+
+		for (len = 2; len <= n; len <<= 1)
+		{
+			double angle = 2 * Math.PI / len * (inverse ? 1 : -1);
+			double wRe = Math.cos(angle), wIm = Math.sin(angle);
+			for (i = 0; i < n; i += len)
+			{
+				double uRe = 1, uIm = 0;
+				for (k = 0; k < len / 2; k++)
+				{
+					int p = i + k, q = i + k + len / 2;
+					double vRe = re[q] * uRe - im[q] * uIm;
+					double vIm = re[q] * uIm + im[q] * uRe;
+					re[q] = re[p] - vRe;
+					im[q] = im[p] - vIm;
+					re[p] += vRe;
+					im[p] += vIm;
+					double nextRe = uRe * wRe - uIm * wIm;
+					uIm = uRe * wIm + uIm * wRe;
+					uRe = nextRe;
+				}
+			}
+		}
+
+		if (inverse)
+		{
+			for (i = 0; i < n; i++)
+			{
+				re[i] /= n;
+				im[i] /= n;
+			}
+		}
+	}
+}
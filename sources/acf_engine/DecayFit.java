@@ -0,0 +1,190 @@
+package acf_engine;
+
+/** FIT OF DECAY MODELS TO THE ACF
+ *
+ *  Levenberg-Marquardt fit of y = offset + amplitude * g(x) with analytical
+ *  Jacobians. All the temporary arrays are held in a work array given by the
+ *  caller, so a thread can fit millions of curves without allocation.
+ */
+
+public final class DecayFit
+{
+	public final static int EXPONENTIAL = 0, STRETCHED_EXPONENTIAL = 1, DIFFUSION_2D = 2;
+
+	private DecayFit()
+	{
+	}
+
+	// SIZE OF THE WORK ARRAY USED BY fitACFModel
+	public static int fitWorkSize(int nPoints, int nParams)
+	{
+		return nPoints * (nParams + 1) + 2 * nParams * nParams + 4 * nParams;
+	}
+
+	// FIT A DECAY MODEL TO AN ACF WITH THE LEVENBERG-MARQUARDT ALGORITHM AND ANALYTICAL JACOBIANS
+	//The models are y = offset + amplitude * g(x), with g = exp(-x/tau), exp(-(x/tau)^beta) or 1/(1+x/tau)
+	//params = {tau, amplitude, offset (, beta)}, the root mean square residual is returned
+	public static double fitACFModel(int model, double[] x, double[] y, double[] params, double[] work)
+	{
+		int nPoints = x.length;
+		int nParams = params.length;
+		int jacobian = 0, residuals = nPoints * nParams, normal = residuals + nPoints, gradient = normal + nParams * nParams;
+		int step = gradient + nParams, saved = step + nParams, augmented = saved + nParams;
+		int i, j, n, iteration;
+		double lambda = 1e-3;
+
+		//INITIAL GUESS: AMPLITUDE FROM THE FIRST POINT, TAU FROM THE 1/e CROSSING
+		params[0] = x[nPoints - 1];
+		for (n = 1; n < nPoints; n++)
+		{
+			if (y[n] < y[0] / Math.E)
+			{
+				params[0] = Math.max(x[n], 1e-6);
+				break;
+			}
+		}
+		params[1] = y[0];
+		params[2] = 0;
+		if (nParams > 3)
+			params[3] = 1;
+
+		double chi2 = modelResiduals(model, x, y, params, work, jacobian, false);
+		for (iteration = 0; iteration < 100; iteration++)
+		{
+			modelResiduals(model, x, y, params, work, jacobian, true);
+
+			//NORMAL EQUATIONS J^T J AND J^T r
+			for (i = 0; i < nParams; i++)
+			{
+				double g = 0;
+				for (n = 0; n < nPoints; n++)
+					g += work[jacobian + n * nParams + i] * work[residuals + n];
+				work[gradient + i] = g;
+				for (j = 0; j <= i; j++)
+				{
+					double h = 0;
+					for (n = 0; n < nPoints; n++)
+						h += work[jacobian + n * nParams + i] * work[jacobian + n * nParams + j];
+					work[normal + i * nParams + j] = h;
+					work[normal + j * nParams + i] = h;
+				}
+			}
+
+			//TRY DAMPED STEPS UNTIL THE CHI2 DECREASES
+			boolean improved = false;
+			while (lambda < 1e10)
+			{
+				if (solveDamped(work, normal, gradient, step, augmented, nParams, lambda))
+				{
+					for (i = 0; i < nParams; i++)
+					{
+						work[saved + i] = params[i];
+						params[i] += work[step + i];
+					}
+					if (params[0] > 0 && (nParams < 4 || (params[3] > 0 && params[3] <= 2)))
+					{
+						double newChi2 = modelResiduals(model, x, y, params, work, jacobian, false);
+						if (newChi2 < chi2)
+						{
+							improved = (chi2 - newChi2) > 1e-10 * chi2;
+							chi2 = newChi2;
+							lambda = Math.max(lambda / 10, 1e-12);
+							break;
+						}
+					}
+					for (i = 0; i < nParams; i++)
+						params[i] = work[saved + i];
+				}
+				lambda *= 10;
+			}
+			if (!improved)
+				break;
+		}
+		return Math.sqrt(chi2 / nPoints);
+	}
+
+	// SUM OF THE SQUARED RESIDUALS OF A MODEL, AND THE RESIDUALS AND JACOBIAN IN work IF REQUIRED
+	private static double modelResiduals(int model, double[] x, double[] y, double[] params, double[] work, int jacobian, boolean withJacobian)
+	{
+		int nParams = params.length;
+		double chi2 = 0;
+		for (int n = 0; n < x.length; n++)
+		{
+			double tau = params[0], amplitude = params[1];
+			double g, dTau, dBeta = 0;
+			if (model == EXPONENTIAL)
+			{
+				g = Math.exp(-x[n] / tau);
+				dTau = amplitude * g * x[n] / (tau * tau);
+			}
+			else if (model == STRETCHED_EXPONENTIAL)
+			{
+				double u = x[n] > 0 ? Math.pow(x[n] / tau, params[3]) : 0;
+				g = Math.exp(-u);
+				dTau = amplitude * g * u * params[3] / tau;
+				dBeta = x[n] > 0 ? -amplitude * g * u * Math.log(x[n] / tau) : 0;
+			}
+			else
+			{
+				g = 1 / (1 + x[n] / tau);
+				dTau = amplitude * g * g * x[n] / (tau * tau);
+			}
+			double r = y[n] - (params[2] + amplitude * g);
+			chi2 += r * r;
+			if (withJacobian)
+			{
+				work[jacobian + x.length * nParams + n] = r;
+				work[jacobian + n * nParams] = dTau;
+				work[jacobian + n * nParams + 1] = g;
+				work[jacobian + n * nParams + 2] = 1;
+				if (nParams > 3)
+					work[jacobian + n * nParams + 3] = dBeta;
+			}
+		}
+		return chi2;
+	}
+
+	// SOLVE (J^T J + lambda diag(J^T J)) step = J^T r BY GAUSSIAN ELIMINATION, IN THE WORK ARRAY
+	private static boolean solveDamped(double[] work, int normal, int gradient, int step, int augmented, int nParams, double lambda)
+	{
+		int i, j, k;
+		for (i = 0; i < nParams; i++)
+		{
+			for (j = 0; j < nParams; j++)
+				work[augmented + i * (nParams + 1) + j] = work[normal + i * nParams + j];
+			work[augmented + i * (nParams + 1) + i] *= (1 + lambda);
+			work[augmented + i * (nParams + 1) + nParams] = work[gradient + i];
+		}
+		for (i = 0; i < nParams; i++)
+		{
+			int pivot = i;
+			for (k = i + 1; k < nParams; k++)
+			{
+				if (Math.abs(work[augmented + k * (nParams + 1) + i]) > Math.abs(work[augmented + pivot * (nParams + 1) + i]))
+					pivot = k;
+			}
+			if (Math.abs(work[augmented + pivot * (nParams + 1) + i]) < 1e-300)
+				return false;
+			for (j = 0; j <= nParams; j++)
+			{
+				double tmp = work[augmented + i * (nParams + 1) + j];
+				work[augmented + i * (nParams + 1) + j] = work[augmented + pivot * (nParams + 1) + j];
+				work[augmented + pivot * (nParams + 1) + j] = tmp;
+			}
+			for (k = i + 1; k < nParams; k++)
+			{
+				double factor = work[augmented + k * (nParams + 1) + i] / work[augmented + i * (nParams + 1) + i];
+				for (j = i; j <= nParams; j++)
+					work[augmented + k * (nParams + 1) + j] -= factor * work[augmented + i * (nParams + 1) + j];
+			}
+		}
+		for (i = nParams - 1; i >= 0; i--)
+		{
+			double sum = work[augmented + i * (nParams + 1) + nParams];
+			for (j = i + 1; j < nParams; j++)
+				sum -= work[augmented + i * (nParams + 1) + j] * work[step + j];
+			work[step + i] = sum / work[augmented + i * (nParams + 1) + i];
+		}
+		return true;
+	}
+}
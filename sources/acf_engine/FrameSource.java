@@ -0,0 +1,19 @@
+package acf_engine;
+
+/** SOURCE OF THE FRAMES ANALYSED BY THE ENGINES
+ *
+ *  Frames are numbered from 0. Implementations must allow concurrent calls
+ *  of readRegion from several threads.
+ */
+
+public interface FrameSource
+{
+	int getWidth();
+
+	int getHeight();
+
+	int getFrameCount();
+
+	// COPY A RECTANGLE OF A FRAME, ROW BY ROW, INTO dest (THE RECTANGLE IS INSIDE THE FRAME)
+	void readRegion(int frame, int x, int y, int width, int height, float[] dest);
+}
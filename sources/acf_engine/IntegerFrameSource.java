@@ -0,0 +1,20 @@
+package acf_engine;
+
+/** FRAME SOURCE GIVING THE PIXELS OF 8- OR 16-BIT STACKS AS INTEGERS
+ *
+ *  The temporal engines keep the traces of such stacks in byte[] or short[]
+ *  arrays and use integer kernels, instead of converting every frame to
+ *  float. The values are unsigned: they are read with & 0xff or & 0xffff.
+ */
+
+public interface IntegerFrameSource extends FrameSource
+{
+	// BITS PER PIXEL: 8 OR 16, OR 0 IF THE FRAMES ARE NOT INTEGERS (ONLY THE FLOAT readRegion CAN BE USED)
+	int getBitDepth();
+
+	// COPY A RECTANGLE OF A FRAME OF 8 BITS, ROW BY ROW, INTO dest
+	void readRegion(int frame, int x, int y, int width, int height, byte[] dest);
+
+	// COPY A RECTANGLE OF A FRAME OF 8 OR 16 BITS, ROW BY ROW, INTO dest
+	void readRegion(int frame, int x, int y, int width, int height, short[] dest);
+}
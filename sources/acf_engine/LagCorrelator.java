@@ -0,0 +1,151 @@
+package acf_engine;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** DIRECT CORRELATOR OF FRAME-MAJOR TRACES FOR A SET OF LAGS
+ *
+ *  The traces are given frame by frame: frames[t][k] is the value of the
+ *  trace k at the time t. The means are subtracted from the frames once,
+ *  then, for every lag, the products of two frames are added to the sums
+ *  of the traces by the LagKernels, vector kernels across the traces, so
+ *  the cost is N x (number of lags) frame products instead of the N^2 / 2
+ *  of every lag up to N/2; the number of products of a lag is N - lag. The
+ *  frames are taken in blocks of about 256 kB, each block being used for
+ *  every lag before the next one, and the traces are split between the
+ *  threads. The sum of every trace is added in time order, as the
+ *  trace-major kernels of TimeACFEngine do.
+ */
+
+final class LagCorrelator
+{
+	private final static int BLOCK_BYTES = 1 << 18;	// Frames of a block, kept in the L2 cache for all the lags
+	private final static int MIN_SLICE = 64;		// Fewest traces given to a thread
+
+	private final static LagKernels KERNELS = LagKernels.BEST;
+
+	private LagCorrelator()
+	{
+	}
+
+	// NAME OF THE KERNELS IN USE, "scalar" OR "vector"
+	static String getKernels()
+	{
+		return KERNELS.toString();
+	}
+
+	// WORK ON THE TRACES FROM first (INCLUDED) TO last (EXCLUDED)
+	private interface Slice
+	{
+		void run(int first, int last);
+	}
+
+	// MEAN OF EVERY TRACE, SUMMED IN float IN TIME ORDER AS Traces.accumulate DOES
+	//If rawMeans is not null, the mean and variance of the traces plus the frame means are given in rawMeans and rawVariances (Welford)
+	static float[] means(final float[][] frames, final float[] frameMeans, final float[] rawMeans, final float[] rawVariances)
+	{
+		final int N = frames.length;
+		final float[] means = new float[frames[0].length];
+		forSlices(means.length, new Slice()
+		{
+			public void run(int first, int last)
+			{
+				double[] welfordMean = new double[last - first];
+				double[] welfordM2 = new double[last - first];
+				for (int t = 0; t < N; t++)
+				{
+					float[] frame = frames[t];
+					KERNELS.add(frame, means, first, last);
+					if (rawMeans == null)
+						continue;
+					float frameMean = frameMeans[t];
+					for (int k = first; k < last; k++)
+					{
+						double value = frame[k] + frameMean;
+						double delta = value - welfordMean[k - first];
+						welfordMean[k - first] += delta / (t + 1);
+						welfordM2[k - first] += delta * (value - welfordMean[k - first]);
+					}
+				}
+				for (int k = first; k < last; k++)
+				{
+					means[k] = means[k] / N;
+					if (rawMeans != null)
+					{
+						rawMeans[k] = (float) welfordMean[k - first];
+						rawVariances[k] = (float) (welfordM2[k - first] / N);
+					}
+				}
+			}
+		});
+		return means;
+	}
+
+	// SUMS OF THE LAG PRODUCTS AROUND THE MEANS: sums[l][k] FOR lags[l] AND THE TRACE k, AND THE LAG 0 IN THE LAST LINE
+	//The means are subtracted from the frames in place; the listener is called once per block and can stop every thread
+	static double[][] correlate(final float[][] frames, final float[] means, final int[] lags, final ProgressListener listener)
+	{
+		final int N = frames.length;
+		final double[][] sums = new double[lags.length + 1][means.length];
+		final AtomicBoolean stopped = new AtomicBoolean();
+		forSlices(means.length, new Slice()
+		{
+			public void run(int first, int last)
+			{
+				for (int t = 0; t < N; t++)
+					KERNELS.subtract(frames[t], means, first, last);
+
+				int block = Math.max(1, BLOCK_BYTES / (4 * (last - first)));
+				for (int t0 = 0; t0 < N; t0 += block)
+				{
+					if (stopped.get())
+						return;
+					if (first == 0 && listener != null)
+					{
+						try
+						{
+							listener.progress(t0, N);
+						}
+						catch (RuntimeException e)
+						{
+							//CANCELLED: THE OTHER THREADS STOP AT THEIR NEXT BLOCK
+							stopped.set(true);
+							throw e;
+						}
+					}
+					int t1 = Math.min(N, t0 + block);
+					for (int l = 0; l <= lags.length; l++)
+					{
+						int lag = l < lags.length ? lags[l] : 0;
+						int end = Math.min(t1, N - lag);
+						for (int t = t0; t < end; t++)
+							KERNELS.addProducts(frames[t], frames[t + lag], sums[l], first, last);
+					}
+				}
+			}
+		});
+		return sums;
+	}
+
+	// SPLIT THE TRACES BETWEEN THE THREADS, AT LEAST MIN_SLICE TRACES EACH
+	private static void forSlices(int nTraces, final Slice slice)
+	{
+		int nSlices = Math.max(1, Math.min(CorrelationKernels.getThreadCount(), nTraces / MIN_SLICE));
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int s = 0; s < nSlices; s++)
+		{
+			final int first = (int) ((long) nTraces * s / nSlices);
+			final int last = (int) ((long) nTraces * (s + 1) / nSlices);
+			tasks.add(new Callable<Void>()
+			{
+				public Void call()
+				{
+					slice.run(first, last);
+					return null;
+				}
+			});
+		}
+		CorrelationKernels.runParallel(tasks);
+	}
+}
@@ -0,0 +1,65 @@
+package acf_engine;
+
+/** ELEMENTWISE KERNELS OF THE LagCorrelator
+ *
+ *  The loops over the traces of a frame: sum of the frames, subtraction of
+ *  the means and sum of the products of two frames. This class holds their
+ *  scalar version, which the JIT may vectorize on its own; VectorLagKernels
+ *  writes them with the Vector API, and is used when the JVM was started
+ *  with --add-modules jdk.incubator.vector (Java 16 or later). It lives in
+ *  its own source folder, vector/, compiled separately with the module:
+ *  without the class, the module, or on an older JVM, the scalar kernels
+ *  are selected. Both give the same values: the operations are
+ *  the same, lane by lane.
+ */
+
+class LagKernels
+{
+	final static LagKernels SCALAR = new LagKernels();
+	final static LagKernels BEST = load();
+
+	// ADD THE VALUES OF A FRAME TO THE float SUMS OF THE TRACES FROM first TO last
+	void add(float[] values, float[] sums, int first, int last)
+	{
+		for (int k = first; k < last; k++)
+			sums[k] = sums[k] + values[k];
+	}
+
+	// SUBTRACT THE MEANS OF THE TRACES FROM first TO last FROM A FRAME
+	void subtract(float[] values, float[] means, int first, int last)
+	{
+		for (int k = first; k < last; k++)
+			values[k] = values[k] - means[k];
+	}
+
+	// ADD a b TO THE SUM OF EVERY TRACE FROM first TO last, THE float PRODUCT BEING SUMMED IN double
+	void addProducts(float[] a, float[] b, double[] sums, int first, int last)
+	{
+		for (int k = first; k < last; k++)
+			sums[k] += a[k] * b[k];
+	}
+
+	public String toString()
+	{
+		return "scalar";
+	}
+
+	// VECTOR KERNELS IF THE INCUBATOR MODULE IS PRESENT, THE SCALAR ONES OTHERWISE
+	private static LagKernels load()
+	{
+		try
+		{
+			Class.forName("jdk.incubator.vector.FloatVector");
+			return (LagKernels) Class.forName("acf_engine.VectorLagKernels").getDeclaredConstructor().newInstance();
+		}
+		catch (Exception e)
+		{
+			//NO MODULE jdk.incubator.vector
+		}
+		catch (LinkageError e)
+		{
+			//JVM OLDER THAN THE VECTOR KERNELS
+		}
+		return SCALAR;
+	}
+}
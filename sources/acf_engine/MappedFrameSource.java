@@ -0,0 +1,209 @@
+package acf_engine;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/** FRAME SOURCE MAPPING AN UNCOMPRESSED 16-BIT TIFF OR RAW FILE IN MEMORY
+ *
+ *  Only the header of the file is read: the pixels are mapped with
+ *  FileChannel.map, and every frame is a read-only ShortBuffer view of the
+ *  mapping. Opening a stack takes the same time whatever its size, and the
+ *  frames are kept by the page cache of the system instead of the Java heap.
+ *  The frames give the unsigned pixel values, as ImageJ does (signed 16-bit
+ *  files are shifted by 32768).
+ */
+
+public final class MappedFrameSource implements IntegerFrameSource
+{
+	private final File file;
+	private final int width, height;
+	private final boolean signed;
+	private final ShortBuffer[] frames;
+
+	private MappedFrameSource(File file, int width, int height, long[] offsets, ByteOrder order, boolean signed) throws IOException
+	{
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		this.signed = signed;
+		long frameBytes = 2L * width * height;
+		if (frameBytes > Integer.MAX_VALUE)
+			throw new IOException("The frames of " + file.getName() + " are too large to be mapped");
+		frames = new ShortBuffer[offsets.length];
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			int f = 0;
+			while (f < offsets.length)
+			{
+				//MAP AS MANY SUCCESSIVE FRAMES AS A MAPPING OF AT MOST 2 GB HOLDS
+				long start = offsets[f];
+				int last = f;
+				while (last + 1 < offsets.length && offsets[last + 1] >= start && offsets[last + 1] + frameBytes - start <= Integer.MAX_VALUE)
+					last++;
+				long end = 0;
+				for (int g = f; g <= last; g++)
+					end = Math.max(end, offsets[g] + frameBytes);
+				if (end > length)
+					throw new IOException(file.getName() + " is truncated: frame " + last + " ends after the end of the file");
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+
+				for (int g = f; g <= last; g++)
+				{
+					ByteBuffer bytes = map.duplicate();
+					bytes.position((int) (offsets[g] - start));
+					bytes.limit((int) (offsets[g] - start + frameBytes));
+					frames[g] = bytes.slice().order(order).asShortBuffer();
+				}
+				f = last + 1;
+			}
+		}
+		finally
+		{
+			//THE MAPPINGS STAY VALID ONCE THE FILE IS CLOSED
+			raf.close();
+		}
+	}
+
+	// MAP A TIFF FILE, OR THROW AN IOException IF IT IS NOT AN UNCOMPRESSED 16-BIT STACK
+	public static MappedFrameSource open(File file) throws IOException
+	{
+		FileInfo[] info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+		if (info == null || info.length == 0)
+			throw new IOException(file.getName() + " is not a TIFF file");
+		if (info.length == 1)
+			return open(info[0]);
+
+		//ONE IMAGE FILE DIRECTORY PER FRAME
+		long[] offsets = new long[info.length];
+		for (int i = 0; i < info.length; i++)
+		{
+			check(info[i], file);
+			if (info[i].width != info[0].width || info[i].height != info[0].height || info[i].fileType != info[0].fileType || info[i].intelByteOrder != info[0].intelByteOrder)
+				throw new IOException("The frames of " + file.getName() + " do not have the same format");
+			offsets[i] = info[i].getOffset();
+		}
+		return new MappedFrameSource(file, info[0].width, info[0].height, offsets, info[0].intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN, info[0].fileType == FileInfo.GRAY16_SIGNED);
+	}
+
+	// MAP THE FILE DESCRIBED BY AN IMAGEJ FILE INFO: nImages FRAMES FROM THE OFFSET, SEPARATED BY gapBetweenImages BYTES
+	public static MappedFrameSource open(FileInfo info) throws IOException
+	{
+		File file = new File(info.directory, info.fileName);
+		check(info, file);
+		long[] offsets = new long[Math.max(1, info.nImages)];
+		for (int i = 0; i < offsets.length; i++)
+			offsets[i] = info.getOffset() + i * (2L * info.width * info.height + info.gapBetweenImages);
+		return new MappedFrameSource(file, info.width, info.height, offsets, info.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN, info.fileType == FileInfo.GRAY16_SIGNED);
+	}
+
+	// MAP A RAW FILE OF UNSIGNED 16-BIT FRAMES STORED ONE AFTER THE OTHER FROM AN OFFSET, AS MANY AS THE FILE HOLDS
+	public static MappedFrameSource openRaw(File file, int width, int height, long offset, boolean littleEndian) throws IOException
+	{
+		if (width < 1 || height < 1 || offset < 0)
+			throw new IllegalArgumentException("Wrong raw format " + width + "x" + height + " from " + offset);
+		FileInfo info = new FileInfo();
+		info.directory = file.getParent();
+		info.fileName = file.getName();
+		info.fileType = FileInfo.GRAY16_UNSIGNED;
+		info.width = width;
+		info.height = height;
+		info.longOffset = offset;
+		info.intelByteOrder = littleEndian;
+		info.nImages = (int) Math.min(Integer.MAX_VALUE, (file.length() - offset) / (2L * width * height));
+		if (info.nImages < 1)
+			throw new IOException(file.getName() + " does not hold a single " + width + "x" + height + " frame");
+		return open(info);
+	}
+
+	// ONLY UNCOMPRESSED 16-BIT PIXELS ARE MAPPED
+	private static void check(FileInfo info, File file) throws IOException
+	{
+		if (info.compression != FileInfo.COMPRESSION_NONE && info.compression != FileInfo.COMPRESSION_UNKNOWN)
+			throw new IOException(file.getName() + " is compressed");
+		if (info.fileType != FileInfo.GRAY16_UNSIGNED && info.fileType != FileInfo.GRAY16_SIGNED)
+			throw new IOException(file.getName() + " does not hold 16-bit pixels");
+		if (info.width < 1 || info.height < 1)
+			throw new IOException(file.getName() + " has no frame");
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getFrameCount()
+	{
+		return frames.length;
+	}
+
+	public int getBitDepth()
+	{
+		return 16;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	// TRUE IF THE FILE HOLDS SIGNED VALUES, READ AS value + 32768
+	public boolean isSigned()
+	{
+		return signed;
+	}
+
+	// READ-ONLY VIEW OF THE PIXELS OF A FRAME, ROW BY ROW, WITHOUT ANY COPY
+	//The view is shared: use absolute get(index), or a duplicate() to move its position
+	public ShortBuffer getFrame(int frame)
+	{
+		return frames[frame];
+	}
+
+	public void readRegion(int frame, int x, int y, int width, int height, float[] dest)
+	{
+		ShortBuffer pixels = frames[frame].duplicate();
+		short[] row = new short[width];
+		for (int r = 0; r < height; r++)
+		{
+			pixels.position((y + r) * this.width + x);
+			pixels.get(row, 0, width);
+			int offset = r * width;
+			if (signed)
+				for (int i = 0; i < width; i++)
+					dest[offset + i] = row[i] + 32768;
+			else
+				for (int i = 0; i < width; i++)
+					dest[offset + i] = row[i] & 0xffff;
+		}
+	}
+
+	public void readRegion(int frame, int x, int y, int width, int height, byte[] dest)
+	{
+		throw new IllegalStateException("The frames of " + file.getName() + " have 16 bits");
+	}
+
+	public void readRegion(int frame, int x, int y, int width, int height, short[] dest)
+	{
+		ShortBuffer pixels = frames[frame].duplicate();
+		for (int r = 0; r < height; r++)
+		{
+			pixels.position((y + r) * this.width + x);
+			pixels.get(dest, r * width, width);
+			if (signed)
+				for (int i = r * width; i < (r + 1) * width; i++)
+					dest[i] ^= 0x8000;
+		}
+	}
+}
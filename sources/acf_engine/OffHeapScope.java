@@ -0,0 +1,128 @@
+package acf_engine;
+
+import java.lang.reflect.*;
+import java.nio.*;
+import java.util.*;
+
+/** NATIVE MEMORY OF AN ANALYSIS, OUTSIDE OF THE JAVA HEAP
+ *
+ *  The big numeric buffers of an analysis (traces, spectra) are allocated
+ *  as direct buffers in the native byte order: the garbage collector never
+ *  copies nor scans them, and the kernels read and write them in place.
+ *  Every buffer belongs to a scope, opened at the start of an analysis and
+ *  closed at its end: close() gives the memory back at once instead of
+ *  waiting for a garbage collection, and the buffers must not be used
+ *  afterwards. The memory is limited by -XX:MaxDirectMemorySize, which is
+ *  the maximum heap size by default. MemorySegment arenas would give the
+ *  same scopes, but they need Java 22.
+ */
+
+public final class OffHeapScope
+{
+	public final static int MAX_BUFFER = Integer.MAX_VALUE & ~7;	// Largest buffer in bytes
+	private final static Object UNSAFE;			// Frees a buffer since Java 9
+	private final static Method INVOKE_CLEANER;
+	static
+	{
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		}
+		catch (Exception e)
+		{
+			//JAVA 8 OR OLDER: THE CLEANER OF THE BUFFER IS CALLED
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+	private static long totalBytes;				// Bytes of the scopes not closed yet
+
+	private final ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+	private long bytes;
+	private boolean closed;
+
+	// BUFFER OF A NUMBER OF BYTES, FILLED WITH ZEROS
+	public ByteBuffer allocate(long size)
+	{
+		if (size < 0 || size > MAX_BUFFER)
+			throw new IllegalArgumentException("A buffer holds at most " + MAX_BUFFER + " bytes, not " + size);
+		synchronized (this)
+		{
+			if (closed)
+				throw new IllegalStateException("The memory scope is closed");
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+			buffers.add(buffer);
+			bytes += size;
+			synchronized (OffHeapScope.class)
+			{
+				totalBytes += size;
+			}
+			return buffer;
+		}
+	}
+
+	public FloatBuffer allocateFloats(int count)
+	{
+		return allocate(4L * count).asFloatBuffer();
+	}
+
+	public ShortBuffer allocateShorts(int count)
+	{
+		return allocate(2L * count).asShortBuffer();
+	}
+
+	// FREE EVERY BUFFER OF THE SCOPE
+	public synchronized void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		for (ByteBuffer buffer : buffers)
+			free(buffer);
+		buffers.clear();
+		synchronized (OffHeapScope.class)
+		{
+			totalBytes -= bytes;
+		}
+	}
+
+	// BYTES ALLOCATED IN THE SCOPE
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	// BYTES OF EVERY SCOPE NOT CLOSED YET
+	public static synchronized long getTotalBytes()
+	{
+		return totalBytes;
+	}
+
+	// GIVE THE MEMORY OF A DIRECT BUFFER BACK NOW, OR LEAVE IT TO THE GARBAGE COLLECTOR IF THE JVM DOES NOT ALLOW IT
+	private static void free(ByteBuffer buffer)
+	{
+		try
+		{
+			if (INVOKE_CLEANER != null)
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			else
+			{
+				Method getCleaner = buffer.getClass().getMethod("cleaner");
+				getCleaner.setAccessible(true);
+				Object cleaner = getCleaner.invoke(buffer);
+				if (cleaner != null)
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		}
+		catch (Exception e)
+		{
+			//FREED BY THE GARBAGE COLLECTOR
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package acf_engine;
+
+/** PROGRESS OF A CALCULATION
+ *
+ *  Called by the engines between frames. An implementation can stop the
+ *  calculation by throwing a java.util.concurrent.CancellationException.
+ */
+
+public interface ProgressListener
+{
+	void progress(int done, int total);
+}
@@ -0,0 +1,166 @@
+package acf_engine;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** FRAME SOURCE DECODING THE NEXT FRAMES ON BACKGROUND THREADS
+ *
+ *  Meant for disk-backed (virtual) stacks read in frame order: while the
+ *  engine works on frame j, the frames j+1 ... j+depth are read and decoded
+ *  by a small pool of threads, and handed over in order. Frames passed over
+ *  by a slightly later request are kept for a while, so that several
+ *  threads reading in almost sequential order do not disturb the read-ahead.
+ *  A request far from the current window restarts the read-ahead at the
+ *  requested frame. close() stops the background threads.
+ */
+
+public final class ReadAheadFrameSource implements FrameSource
+{
+	private final FrameSource source;
+	private final int depth;
+	private final int width, height;
+	private final ExecutorService readers;
+	private final ArrayDeque<Future<float[]>> window = new ArrayDeque<Future<float[]>>();	// Frames firstFrame, firstFrame + 1 ... being read
+	private final TreeMap<Integer, Future<float[]>> skipped = new TreeMap<Integer, Future<float[]>>();	// Frames passed over, kept for a late request
+	private int firstFrame = -1;
+	private boolean closed;
+
+	// READ AHEAD AT MOST depth FRAMES ON ONE THREAD
+	public ReadAheadFrameSource(FrameSource source, int depth, long maxBytes)
+	{
+		this(source, depth, maxBytes, 1);
+	}
+
+	// READ AHEAD AT MOST depth FRAMES ON A NUMBER OF THREADS, AND NEVER HOLD MORE THAN maxBytes OF DECODED PIXELS
+	//Half of the memory is for the frames ahead, the other half for the frames passed over
+	public ReadAheadFrameSource(FrameSource source, int depth, long maxBytes, int threads)
+	{
+		this.source = source;
+		width = source.getWidth();
+		height = source.getHeight();
+		this.depth = (int) Math.max(1, Math.min(depth, maxBytes / (8L * width * height)));
+		readers = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Frame read-ahead");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getFrameCount()
+	{
+		return source.getFrameCount();
+	}
+
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	public void readRegion(int frame, int x, int y, int width, int height, float[] dest)
+	{
+		if (frame < 0 || frame >= source.getFrameCount())
+			throw new IllegalArgumentException("No frame " + frame);
+
+		//TAKE THE FRAME FROM THE FRAMES PASSED OVER OR FROM THE WINDOW, SLIDING IT UP TO THE FRAME
+		Future<float[]> pending;
+		synchronized (this)
+		{
+			if (closed)
+				throw new IllegalStateException("The frame source is closed");
+			pending = skipped.remove(frame);
+			if (pending == null)
+			{
+				if (firstFrame < 0 || frame < firstFrame || frame >= firstFrame + window.size())
+					restart(frame);
+				while (firstFrame < frame)
+					skipped.put(firstFrame++, window.poll());
+				pending = window.poll();
+				firstFrame++;
+				while (skipped.size() > depth)
+					skipped.pollFirstEntry().getValue().cancel(false);
+				fill();
+			}
+		}
+
+		float[] pixels;
+		try
+		{
+			pixels = pending.get();
+		}
+		catch (CancellationException e)
+		{
+			//DROPPED BY A RESTART FROM ANOTHER THREAD, THE FRAME IS READ DIRECTLY
+			pixels = new float[this.width * this.height];
+			source.readRegion(frame, 0, 0, this.width, this.height, pixels);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Frame reading interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Cannot read the frame " + frame, e.getCause());
+		}
+
+		for (int row = 0; row < height; row++)
+			System.arraycopy(pixels, (y + row) * this.width + x, dest, row * width, width);
+	}
+
+	// START READING AHEAD FROM A GIVEN FRAME, DROPPING THE FRAMES ALREADY REQUESTED
+	private void restart(int frame)
+	{
+		for (Future<float[]> future : window)
+			future.cancel(false);
+		for (Future<float[]> future : skipped.values())
+			future.cancel(false);
+		window.clear();
+		skipped.clear();
+		firstFrame = frame;
+		fill();
+	}
+
+	// KEEP depth FRAMES BEING READ AHEAD
+	private void fill()
+	{
+		int nFrames = source.getFrameCount();
+		while (window.size() < depth && firstFrame + window.size() < nFrames)
+		{
+			final int frame = firstFrame + window.size();
+			window.add(readers.submit(new Callable<float[]>()
+			{
+				public float[] call()
+				{
+					float[] pixels = new float[width * height];
+					source.readRegion(frame, 0, 0, width, height, pixels);
+					return pixels;
+				}
+			}));
+		}
+	}
+
+	// STOP THE BACKGROUND READING
+	public synchronized void close()
+	{
+		closed = true;
+		readers.shutdownNow();
+		window.clear();
+		skipped.clear();
+	}
+}
@@ -0,0 +1,347 @@
+package acf_engine;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** STAGED PRODUCER/CONSUMER PROCESSING OF THE FRAMES OF A STACK
+ *
+ *  Every frame goes through the stages in order (e.g. read, crop, FFT,
+ *  product, inverse FFT, binning). The stages are connected by bounded
+ *  queues and every stage has its own number of threads, so that the
+ *  reading, the conversions and the FFT of different frames overlap. The
+ *  frames can leave a stage in any order: the stages store their results by
+ *  frame index. The report of a run gives the occupancy of every stage, the
+ *  busiest stage being the bottleneck.
+ */
+
+public final class SlicePipeline
+{
+	private final static Object[] END = new Object[0];	// Marker sent downstream once a stage is done
+
+	private final ArrayList<String> names = new ArrayList<String>();
+	private final ArrayList<Stage> stages = new ArrayList<Stage>();
+	private final ArrayList<Integer> threads = new ArrayList<Integer>();
+	private final int queueSize;
+
+	public SlicePipeline(int queueSize)
+	{
+		if (queueSize < 1)
+			throw new IllegalArgumentException("The queues need at least one place");
+		this.queueSize = queueSize;
+	}
+
+	//-------------------------##
+	// ONE STAGE OF A PIPELINE ##
+	//-------------------------##
+
+	public abstract static class Stage
+	{
+		// PROCESS THE OUTPUT OF THE PREVIOUS STAGE FOR A FRAME (NULL FOR THE FIRST STAGE)
+		//Several threads can call it at once for different frames
+		public abstract Object process(int frame, Object input);
+	}
+
+	// ADD A STAGE RUN BY A NUMBER OF THREADS
+	public SlicePipeline addStage(String name, int nThreads, Stage stage)
+	{
+		names.add(name);
+		stages.add(stage);
+		threads.add(Math.max(1, nThreads));
+		return this;
+	}
+
+	// PASS EVERY FRAME THROUGH THE STAGES, RETURN THE OCCUPANCY OF THE STAGES
+	//The first exception of a stage stops the run and is thrown again; an interruption throws a CancellationException
+	public Report run(final int nFrames, final ProgressListener listener)
+	{
+		final int nStages = stages.size();
+		if (nStages == 0)
+			throw new IllegalArgumentException("The pipeline has no stage");
+
+		final ArrayList<BlockingQueue<Object[]>> queues = new ArrayList<BlockingQueue<Object[]>>();
+		queues.add(null); //The first stage takes its frames from the counter
+		for (int s = 1; s < nStages; s++)
+			queues.add(new ArrayBlockingQueue<Object[]>(queueSize));
+		final AtomicInteger nextFrame = new AtomicInteger();
+		final AtomicInteger doneFrames = new AtomicInteger();
+		final AtomicLong[] busyNanos = new AtomicLong[nStages];
+		final AtomicLong[] queueFill = new AtomicLong[nStages];
+		final AtomicLong[] queueSamples = new AtomicLong[nStages];
+		final AtomicInteger[] running = new AtomicInteger[nStages];
+		int total = 0;
+		for (int s = 0; s < nStages; s++)
+		{
+			busyNanos[s] = new AtomicLong();
+			queueFill[s] = new AtomicLong();
+			queueSamples[s] = new AtomicLong();
+			running[s] = new AtomicInteger(threads.get(s));
+			total += threads.get(s);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(total, new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Slice pipeline");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		CompletionService<Void> workers = new ExecutorCompletionService<Void>(pool);
+		long start = System.nanoTime();
+		for (int s = 0; s < nStages; s++)
+		{
+			final int stage = s;
+			for (int t = 0; t < threads.get(s); t++)
+			{
+				workers.submit(new Callable<Void>()
+				{
+					public Void call() throws InterruptedException
+					{
+						Stage work = stages.get(stage);
+						boolean done = false;
+						try
+						{
+							while (true)
+							{
+								//TAKE THE NEXT FRAME, FROM THE COUNTER FOR THE FIRST STAGE AND FROM THE QUEUE OTHERWISE
+								Object[] item;
+								if (stage == 0)
+								{
+									int frame = nextFrame.getAndIncrement();
+									if (frame >= nFrames)
+									{
+										done = true;
+										return null;
+									}
+									item = new Object[] {frame, null};
+								}
+								else
+								{
+									queueFill[stage].addAndGet(queues.get(stage).size());
+									queueSamples[stage].incrementAndGet();
+									item = queues.get(stage).take();
+									if (item == END)
+									{
+										done = true;
+										return null;
+									}
+								}
+
+								int frame = ((Integer) item[0]).intValue();
+								long begin = System.nanoTime();
+								Object output = work.process(frame, item[1]);
+								busyNanos[stage].addAndGet(System.nanoTime() - begin);
+
+								if (stage + 1 < nStages)
+									queues.get(stage + 1).put(new Object[] {frame, output});
+								else if (listener != null)
+								{
+									synchronized (listener)
+									{
+										listener.progress(doneFrames.incrementAndGet(), nFrames);
+									}
+								}
+							}
+						}
+						finally
+						{
+							//THE LAST THREAD OF A STAGE TELLS EVERY THREAD OF THE NEXT STAGE TO STOP
+							if (running[stage].decrementAndGet() == 0 && stage + 1 < nStages && done)
+								for (int n = 0; n < threads.get(stage + 1); n++)
+									queues.get(stage + 1).put(END);
+						}
+					}
+				});
+			}
+		}
+		pool.shutdown();
+
+		//WAIT FOR EVERY THREAD, THE FIRST FAILURE STOPS THE OTHERS
+		try
+		{
+			for (int n = 0; n < total; n++)
+				workers.take().get();
+		}
+		catch (InterruptedException e)
+		{
+			CorrelationKernels.stopPool(pool);
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Pipeline interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			CorrelationKernels.stopPool(pool);
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new CancellationException("Pipeline interrupted");
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		double[] busy = new double[nStages];
+		double[] fill = new double[nStages];
+		int[] counts = new int[nStages];
+		for (int s = 0; s < nStages; s++)
+		{
+			counts[s] = threads.get(s);
+			busy[s] = seconds > 0 ? busyNanos[s].get() / 1e9 / seconds / counts[s] : 0;
+			fill[s] = queueSamples[s].get() > 0 ? (double) queueFill[s].get() / queueSamples[s].get() / queueSize : Double.NaN;
+		}
+		return new Report(names.toArray(new String[nStages]), counts, busy, fill, seconds);
+	}
+
+	//----------------------------------##
+	// OCCUPANCY OF THE STAGES OF A RUN ##
+	//----------------------------------##
+
+	public final static class Report
+	{
+		private final String[] names;
+		private final int[] threads;
+		private final double[] busy;
+		private final double[] queueFill;
+		private final double seconds;
+
+		Report(String[] names, int[] threads, double[] busy, double[] queueFill, double seconds)
+		{
+			this.names = names;
+			this.threads = threads;
+			this.busy = busy;
+			this.queueFill = queueFill;
+			this.seconds = seconds;
+		}
+
+		public int getStageCount()
+		{
+			return names.length;
+		}
+
+		public String getStageName(int stage)
+		{
+			return names[stage];
+		}
+
+		public int getThreads(int stage)
+		{
+			return threads[stage];
+		}
+
+		// FRACTION OF THE RUN DURING WHICH THE THREADS OF A STAGE WERE WORKING
+		public double getBusy(int stage)
+		{
+			return busy[stage];
+		}
+
+		// MEAN FILLING OF THE QUEUE IN FRONT OF A STAGE, NaN FOR THE FIRST STAGE
+		//A full queue in front of a stage and empty queues after it point to the same bottleneck
+		public double getQueueFill(int stage)
+		{
+			return queueFill[stage];
+		}
+
+		public double getSeconds()
+		{
+			return seconds;
+		}
+
+		// NAME OF THE BUSIEST STAGE
+		public String getBottleneck()
+		{
+			int worst = 0;
+			for (int s = 1; s < busy.length; s++)
+				if (busy[s] > busy[worst])
+					worst = s;
+			return names[worst];
+		}
+
+		public String toString()
+		{
+			StringBuilder text = new StringBuilder("Pipeline: " + Math.round(seconds * 1000) + " ms, bottleneck " + getBottleneck());
+			for (int s = 0; s < names.length; s++)
+			{
+				text.append("\n  " + names[s] + " x" + threads[s] + ": busy " + Math.round(100 * busy[s]) + "%");
+				if (!Double.isNaN(queueFill[s]))
+					text.append(", queue " + Math.round(100 * queueFill[s]) + "% full");
+			}
+			return text.toString();
+		}
+	}
+
+	//-------------------------------------##
+	// THREADS AND QUEUES OF THE PIPELINES ##
+	//-------------------------------------##
+
+	// Given to the engines; it is only read during a run and must not be changed meanwhile
+	public final static class Settings
+	{
+		private final HashMap<String, Integer> threads = new HashMap<String, Integer>();
+		private int queueSize = 4;
+		private Monitor monitor;
+
+		// NUMBER OF THREADS OF A STAGE, BY NAME
+		public Settings threads(String stage, int nThreads)
+		{
+			if (nThreads < 1)
+				throw new IllegalArgumentException("A stage needs at least one thread");
+			threads.put(stage, nThreads);
+			return this;
+		}
+
+		public Settings queueSize(int size)
+		{
+			if (size < 1)
+				throw new IllegalArgumentException("The queues need at least one place");
+			queueSize = size;
+			return this;
+		}
+
+		// RECEIVE THE REPORT OF EVERY RUN
+		public Settings monitor(Monitor monitor)
+		{
+			this.monitor = monitor;
+			return this;
+		}
+
+		// PARSE A LIST OF STAGES AND THREADS "read:1, fft:4"
+		public Settings parse(String list)
+		{
+			String[] items = list.split(",");
+			for (int i = 0; i < items.length; i++)
+			{
+				if (items[i].trim().length() == 0)
+					continue;
+				String[] values = items[i].split(":");
+				if (values.length != 2)
+					throw new IllegalArgumentException("A stage is given as name:threads and not as " + items[i]);
+				threads(values[0].trim(), Integer.parseInt(values[1].trim()));
+			}
+			return this;
+		}
+
+		public int getThreads(String stage, int defaultThreads)
+		{
+			Integer n = threads.get(stage);
+			return n == null ? defaultThreads : n.intValue();
+		}
+
+		public int getQueueSize()
+		{
+			return queueSize;
+		}
+
+		// PASS THE REPORT OF A RUN TO THE MONITOR, IF ANY
+		void report(Report report)
+		{
+			if (monitor != null)
+				monitor.pipelineDone(report);
+		}
+	}
+
+	public interface Monitor
+	{
+		void pipelineDone(Report report);
+	}
+}
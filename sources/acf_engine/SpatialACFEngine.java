@@ -0,0 +1,318 @@
+package acf_engine;
+
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+
+/** SPATIAL AUTOCORRELATION OF THE FRAMES
+ *
+ *  Radial profile of the ACF of the ROI, computed with the FHT of the
+ *  mean-subtracted ROI zero-padded to a power of 2. The regions and the
+ *  padded ROIs of the frames are borrowed from a BufferPool and released
+ *  once used, so that the next frames take them again. The engine only holds the
+ *  settings of its pipelines and its pool: one instance can be used by
+ *  several threads at once.
+ */
+
+public final class SpatialACFEngine
+{
+	private final SlicePipeline.Settings settings;
+	private final BufferPool pool;
+
+	public SpatialACFEngine()
+	{
+		this(new SlicePipeline.Settings());
+	}
+
+	// ENGINE RUNNING THE STACKS WITH GIVEN THREADS PER STAGE
+	public SpatialACFEngine(SlicePipeline.Settings settings)
+	{
+		this(settings, BufferPool.UNPOOLED);
+	}
+
+	// ENGINE BORROWING ITS ARRAYS FROM A POOL SHARED BY THE ANALYSES
+	public SpatialACFEngine(SlicePipeline.Settings settings, BufferPool pool)
+	{
+		this.settings = settings;
+		this.pool = pool;
+	}
+
+	// CALCULATE THE RADIAL ACF OF ONE FRAME
+	public ACFResult radialACF(FrameSource source, int frame, ACFParameters params)
+	{
+		float[] profile = radialProfile(source, frame, params);
+		if (profile == null)
+			throw new IllegalArgumentException("The ROI " + params + " is too small or outside of the picture");
+		return new ACFResult("Radius [pixels]", radii(params.getRadius(), profile.length), new String[] {"AutoCorrelation"}, new float[][] {profile}, null);
+	}
+
+	// CALCULATE THE RADIAL ACF OF EVERY FRAME, AND THEIR MEAN AS THE LAST CURVE IF REQUIRED
+	//The frames go through the stages read, crop, fft, product, inverse and bin of a pipeline
+	public ACFResult stackRadialACF(final FrameSource source, final ACFParameters params, boolean withMean, ProgressListener listener)
+	{
+		int nFrames = source.getFrameCount();
+		final RoiGeometry roi = new RoiGeometry(source, params, pool);
+		if (!roi.isValid())
+			throw new IllegalArgumentException("The ROI " + params + " is too small or outside of the picture");
+		final float[][] curves = new float[nFrames + (withMean ? 1 : 0)][];
+		String[] names = new String[curves.length];
+		int cores = CorrelationKernels.getThreadCount();
+
+		SlicePipeline pipeline = new SlicePipeline(settings.getQueueSize());
+		pipeline.addStage("read", settings.getThreads("read", 1), new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				return roi.read(source, frame);
+			}
+		});
+		pipeline.addStage("crop", settings.getThreads("crop", 1), new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				float[] padded = roi.crop((float[]) input);
+				pool.release(input);
+				if (padded == null)
+					throw new IllegalArgumentException("The ROI " + params + " is too small or outside of the picture");
+				return padded;
+			}
+		});
+		pipeline.addStage("fft", settings.getThreads("fft", Math.max(1, cores / 2)), new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				FHT fht = transform((float[]) input, roi.fftSize);
+				pool.release(input);
+				return fht;
+			}
+		});
+		pipeline.addStage("product", settings.getThreads("product", 1), new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				return product((FHT) input);
+			}
+		});
+		pipeline.addStage("inverse", settings.getThreads("inverse", Math.max(1, cores / 2)), new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				return inverse((FHT) input);
+			}
+		});
+		pipeline.addStage("bin", settings.getThreads("bin", 1), new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				curves[frame] = roi.bin((float[]) input);
+				if (curves[frame] == null)
+					throw new IllegalArgumentException("The ROI " + params + " is too small or outside of the picture");
+				return null;
+			}
+		});
+		settings.report(pipeline.run(nFrames, listener));
+
+		for (int j = 0; j < nFrames; j++)
+			names[j] = String.valueOf(j + 1);
+		if (withMean)
+		{
+			float[] mean = new float[curves[0].length];
+			for (int j = 0; j < nFrames; j++)
+				for (int i = 0; i < mean.length; i++)
+					mean[i] += curves[j][i] / nFrames;
+			curves[nFrames] = mean;
+			names[nFrames] = "Mean";
+		}
+		return new ACFResult("Radius [pixels]", radii(params.getRadius(), curves[0].length), names, curves, null);
+	}
+
+	// RADII OF THE BINS OF THE RADIAL PROFILE
+	static float[] radii(double radius, int nBins)
+	{
+		float[] x = new float[nBins];
+		for (int i = 0; i < nBins; i++)
+			x[i] = (float) (radius * ((double) (i + 1) / nBins));
+		return x;
+	}
+
+	// CALCULATE THE NORMALIZED RADIAL ACF OF A FRAME ON THE ROI BINNED BY THE BINNING FACTOR OF THE PARAMETERS
+	//The bins are those of the plug-in: 3/4 of the radius in pixels; null is returned for an empty ROI
+	public float[] radialProfile(FrameSource source, int frame, ACFParameters params)
+	{
+		RoiGeometry roi = new RoiGeometry(source, params, pool);
+		if (!roi.isValid())
+			return null;
+		float[] region = roi.read(source, frame);
+		float[] padded = roi.crop(region);
+		pool.release(region);
+		if (padded == null || Thread.currentThread().isInterrupted())
+			return null;
+		FHT fht = transform(padded, roi.fftSize);
+		pool.release(padded);
+		return roi.bin(inverse(product(fht)));
+	}
+
+	// FORWARD FHT OF A PADDED ROI
+	static FHT transform(float[] padded, int fftSize)
+	{
+		FHT fht = new FHT(new FloatProcessor(fftSize, fftSize, padded, null));
+		fht.setShowProgress(false);
+		fht.transform();
+		return fht;
+	}
+
+	// PRODUCT OF A TRANSFORM WITH ITS CONJUGATE
+	static FHT product(FHT fht)
+	{
+		FHT acf = fht.conjugateMultiply(fht);
+		acf.setShowProgress(false);
+		return acf;
+	}
+
+	// INVERSE FHT OF THE PRODUCT, WITH THE ORIGIN MOVED TO THE CENTER
+	static float[] inverse(FHT acf)
+	{
+		acf.inverseTransform();
+		acf.swapQuadrants();
+		return (float[]) acf.getPixels();
+	}
+
+	//-----------------------------------##
+	// POSITION OF THE ROI IN THE FRAMES ##
+	//-----------------------------------##
+
+	static final class RoiGeometry
+	{
+		final ACFParameters params;
+		final BufferPool pool;
+		final double radius;
+		final int factor, nBins, side, fftSize, offset, left, top;
+		final int x0, y0, x1, y1;		// Part of the ROI inside the frame
+
+		RoiGeometry(FrameSource source, ACFParameters params, BufferPool pool)
+		{
+			this.params = params;
+			this.pool = pool;
+			radius = params.getRadius();
+			factor = params.getBinning();
+			nBins = (int) (3 * radius / 4);
+			side = (int) Math.ceil(2 * radius / factor);
+			fftSize = (int) Math.max(4, CorrelationKernels.nextPowerOfTwo(side));
+			offset = (fftSize - side) / 2;
+			left = (int) (params.getXCenter() - radius);
+			top = (int) (params.getYCenter() - radius);
+			x0 = Math.max(0, left);
+			y0 = Math.max(0, top);
+			x1 = Math.min(source.getWidth(), left + side * factor);
+			y1 = Math.min(source.getHeight(), top + side * factor);
+		}
+
+		boolean isValid()
+		{
+			return nBins >= 1 && x1 > x0 && y1 > y0;
+		}
+
+		// READ THE PART OF THE ROI INSIDE THE FRAME
+		float[] read(FrameSource source, int frame)
+		{
+			float[] region = pool.floats((x1 - x0) * (y1 - y0));
+			source.readRegion(frame, x0, y0, x1 - x0, y1 - y0, region);
+			return region;
+		}
+
+		// BIN THE ROI, SUBTRACT ITS MEAN AND ZERO-PAD IT TO THE SIZE OF THE FFT, NULL FOR AN EMPTY ROI
+		float[] crop(float[] region)
+		{
+			int i, j, u, v;
+			float[] cells = pool.floats(side * side);
+			boolean[] inside = new boolean[side * side];
+			double sum = 0;
+			int count = 0;
+			for (v = 0; v < side; v++)
+			{
+				for (u = 0; u < side; u++)
+				{
+					if (!params.isInside(left + (u + 0.5) * factor - 0.5, top + (v + 0.5) * factor - 0.5))
+						continue;
+					double cellSum = 0;
+					int cellCount = 0;
+					for (j = Math.max(y0, top + v * factor); j < Math.min(y1, top + (v + 1) * factor); j++)
+						for (i = Math.max(x0, left + u * factor); i < Math.min(x1, left + (u + 1) * factor); i++)
+						{
+							cellSum += region[(j - y0) * (x1 - x0) + i - x0];
+							cellCount++;
+						}
+					if (cellCount == 0)
+						continue;
+					cells[v * side + u] = (float) (cellSum / cellCount);
+					inside[v * side + u] = true;
+					sum += cells[v * side + u];
+					count++;
+				}
+			}
+			if (count == 0)
+			{
+				pool.release(cells);
+				return null;
+			}
+			float mean = (float) (sum / count);
+			float[] padded = pool.floats(fftSize * fftSize);
+			for (v = 0; v < side; v++)
+				for (u = 0; u < side; u++)
+					if (inside[v * side + u])
+						padded[(v + offset) * fftSize + u + offset] = cells[v * side + u] - mean;
+			pool.release(cells);
+			return padded;
+		}
+
+		// RADIAL AVERAGE IN PIXELS OF THE ORIGINAL PICTURE, THE ORIGIN ITSELF IS LEFT OUT AS IN THE PLUG-IN
+		//Null is returned for a flat ROI
+		float[] bin(float[] acfPixels)
+		{
+			int i, j, u, v;
+			int center = fftSize / 2;
+			float norm = acfPixels[center * fftSize + center];
+			if (norm == 0)
+				return null;
+
+			double[] binSums = new double[nBins];
+			int[] binCounts = new int[nBins];
+			int reach = (int) Math.ceil(radius / factor);
+			for (v = -reach; v <= reach; v++)
+			{
+				for (u = -reach; u <= reach; u++)
+				{
+					if ((u == 0 && v == 0) || center + u < 0 || center + v < 0 || center + u >= fftSize || center + v >= fftSize)
+						continue;
+					double R = Math.sqrt(u * u + v * v) * factor;
+					int thisBin = (int) Math.floor((R / radius) * nBins);
+					if (thisBin == 0)
+						thisBin = 1;
+					thisBin = thisBin - 1;
+					if (thisBin < nBins)
+					{
+						binSums[thisBin] += acfPixels[(center + v) * fftSize + center + u];
+						binCounts[thisBin]++;
+					}
+				}
+			}
+			float[] profile = new float[nBins];
+			int previous = -1;
+			for (i = 0; i < nBins; i++)
+			{
+				if (binCounts[i] == 0)
+					continue;
+				profile[i] = (float) (binSums[i] / binCounts[i] / norm);
+
+				//BINS FINER THAN THE DOWNSAMPLED GRID ARE LINEARLY INTERPOLATED
+				for (j = previous + 1; j < i; j++)
+					profile[j] = previous < 0 ? profile[i] : profile[previous] + (profile[i] - profile[previous]) * (j - previous) / (i - previous);
+				previous = i;
+			}
+			if (previous < 0)
+				return null;
+			for (j = previous + 1; j < nBins; j++)
+				profile[j] = profile[previous];
+			return profile;
+		}
+	}
+}
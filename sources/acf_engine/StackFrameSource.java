@@ -0,0 +1,106 @@
+package acf_engine;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/** FRAME SOURCE READING AN IMAGEJ STACK (OR A SINGLE PICTURE)
+ *
+ *  The pixels of 8- and 16-bit stacks held in memory are also given as
+ *  integers; virtual stacks are only read as floats, the type of their
+ *  pixels being known once a frame is decoded.
+ */
+
+public final class StackFrameSource implements IntegerFrameSource
+{
+	private final ImageStack stack;
+	private final int bitDepth;
+
+	public StackFrameSource(ImageStack stack)
+	{
+		this.stack = stack;
+		bitDepth = stack.isVirtual() || stack.getSize() == 0 ? 0 : integerDepth(stack.getPixels(1));
+	}
+
+	public StackFrameSource(ImageProcessor picture)
+	{
+		stack = new ImageStack(picture.getWidth(), picture.getHeight());
+		stack.addSlice("", picture);
+		bitDepth = integerDepth(picture.getPixels());
+	}
+
+	// 8 FOR byte[] PIXELS, 16 FOR short[] PIXELS, 0 OTHERWISE
+	private static int integerDepth(Object pixels)
+	{
+		if (pixels instanceof byte[])
+			return 8;
+		if (pixels instanceof short[])
+			return 16;
+		return 0;
+	}
+
+	public int getWidth()
+	{
+		return stack.getWidth();
+	}
+
+	public int getHeight()
+	{
+		return stack.getHeight();
+	}
+
+	public int getFrameCount()
+	{
+		return stack.getSize();
+	}
+
+	public int getBitDepth()
+	{
+		return bitDepth;
+	}
+
+	public void readRegion(int frame, int x, int y, int width, int height, float[] dest)
+	{
+		ImageProcessor ip = stack.getProcessor(frame + 1);
+		int stackWidth = stack.getWidth();
+		for (int row = 0; row < height; row++)
+		{
+			int offset = (y + row) * stackWidth + x;
+			for (int i = 0; i < width; i++)
+				dest[row * width + i] = ip.getf(offset + i);
+		}
+	}
+
+	public void readRegion(int frame, int x, int y, int width, int height, byte[] dest)
+	{
+		if (bitDepth != 8)
+			throw new IllegalStateException("The frames do not have 8 bits");
+		byte[] pixels = (byte[]) stack.getPixels(frame + 1);
+		int stackWidth = stack.getWidth();
+		for (int row = 0; row < height; row++)
+			System.arraycopy(pixels, (y + row) * stackWidth + x, dest, row * width, width);
+	}
+
+	public void readRegion(int frame, int x, int y, int width, int height, short[] dest)
+	{
+		if (bitDepth == 16)
+		{
+			short[] pixels = (short[]) stack.getPixels(frame + 1);
+			int stackWidth = stack.getWidth();
+			for (int row = 0; row < height; row++)
+				System.arraycopy(pixels, (y + row) * stackWidth + x, dest, row * width, width);
+		}
+		else if (bitDepth == 8)
+		{
+			byte[] pixels = (byte[]) stack.getPixels(frame + 1);
+			int stackWidth = stack.getWidth();
+			for (int row = 0; row < height; row++)
+			{
+				int offset = (y + row) * stackWidth + x;
+				for (int i = 0; i < width; i++)
+					dest[row * width + i] = (short) (pixels[offset + i] & 0xff);
+			}
+		}
+		else
+			throw new IllegalStateException("The frames are not integers");
+	}
+}
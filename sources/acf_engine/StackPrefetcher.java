@@ -0,0 +1,296 @@
+package acf_engine;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.Opener;
+import ij.io.TiffDecoder;
+import ij.plugin.FileInfoVirtualStack;
+import java.io.*;
+import java.util.concurrent.*;
+
+/** PIPELINED LOADER OF THE STACKS OF A BATCH RUN
+ *
+ *  A background thread opens and decodes the next stacks, in the order of
+ *  the files, while the engines compute on the current ones. Two limits give
+ *  the backpressure: at most 'ahead' stacks wait in the buffer, and the
+ *  decoded stacks held at the same time never exceed the memory budget. The
+ *  memory of a stack is given back with Loaded.release() once it is analysed.
+ *  Virtual stacks only hold their header; their frames are read ahead by a
+ *  ReadAheadFrameSource on 'readers' threads, taking its share of the budget.
+ *  Mapped stacks are not decoded at all: uncompressed 16-bit TIFF and raw
+ *  files are mapped in memory by a MappedFrameSource, outside of the budget.
+ */
+
+public final class StackPrefetcher
+{
+	private final File[] files;
+	private final long budget;
+	private final boolean virtual;
+	private final boolean mapped;
+	private final int framesAhead;
+	private final int readers;
+	private final BlockingQueue<Loaded> ready;
+	private final Thread loader;
+	private int rawWidth, rawHeight;	// Format of the raw files, 0 if they are not mapped
+	private long rawOffset;
+	private boolean rawLittleEndian;
+	private long used;			// Bytes reserved by the stacks loaded and not released yet
+	private long waitedMillis;		// Time spent by the loader waiting for memory
+
+	public StackPrefetcher(File[] files, int ahead, long budget, boolean virtual, boolean mapped, int framesAhead, int readers)
+	{
+		this.files = files.clone();
+		this.budget = budget;
+		this.virtual = virtual;
+		this.mapped = mapped;
+		this.framesAhead = framesAhead;
+		this.readers = readers;
+		ready = new ArrayBlockingQueue<Loaded>(Math.max(1, ahead));
+		loader = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				load();
+			}
+		}, "Stack prefetcher");
+		loader.setDaemon(true);
+	}
+
+	// FORMAT OF THE RAW FILES (NOT TIFF) TO MAP, BEFORE start()
+	public void setRawFormat(int width, int height, long offset, boolean littleEndian)
+	{
+		rawWidth = width;
+		rawHeight = height;
+		rawOffset = offset;
+		rawLittleEndian = littleEndian;
+	}
+
+	public void start()
+	{
+		loader.start();
+	}
+
+	// NEXT STACK IN THE ORDER OF THE FILES, WAITING FOR ITS LOADING IF REQUIRED
+	public Loaded take() throws InterruptedException
+	{
+		return ready.take();
+	}
+
+	// STOP THE LOADING, FOR AN ABORTED RUN
+	public void stop()
+	{
+		loader.interrupt();
+	}
+
+	public synchronized long getWaitedMillis()
+	{
+		return waitedMillis;
+	}
+
+	// LOAD EVERY FILE IN ORDER, WAITING FOR FREE MEMORY AND FOR A FREE PLACE IN THE BUFFER
+	private void load()
+	{
+		try
+		{
+			for (int i = 0; i < files.length; i++)
+			{
+				Loaded item;
+				try
+				{
+					item = load(files[i]);
+				}
+				catch (InterruptedException e)
+				{
+					throw e;
+				}
+				catch (Exception e)
+				{
+					//UNREADABLE HEADER: THE ERROR IS GIVEN WITH THE FILE, THE NEXT ONES ARE STILL LOADED
+					item = new Loaded(files[i], null, null, e, 0, 0);
+				}
+				ready.put(item);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			return;
+		}
+	}
+
+	// LOAD ONE FILE, RESERVING ITS DECODED SIZE BEFORE DECODING IT
+	private Loaded load(File file) throws IOException, InterruptedException
+	{
+		if (mapped)
+		{
+			long start = System.currentTimeMillis();
+			MappedFrameSource source = openMapped(file);
+			if (source != null)
+				return new Loaded(file, null, source, null, 0, System.currentTimeMillis() - start);
+		}
+
+		long bytes = virtual ? 0 : decodedBytes(file);
+		reserve(bytes);
+		try
+		{
+			long start = System.currentTimeMillis();
+			ImagePlus image = virtual ? openVirtual(file) : new Opener().openImage(file.getPath());
+			if (image == null)
+				throw new IOException("cannot open the file");
+			long decoded = virtual ? 0 : (long) image.getWidth() * image.getHeight() * image.getStackSize() * image.getBytesPerPixel();
+			adjust(decoded - bytes);
+			bytes = decoded;
+
+			FrameSource source = new StackFrameSource(image.getStack());
+			if (virtual && image.getStack().isVirtual())
+			{
+				long frameBytes = 8L * image.getWidth() * image.getHeight() * framesAhead;
+				reserve(frameBytes);
+				bytes += frameBytes;
+				source = new ReadAheadFrameSource(source, framesAhead, frameBytes, readers);
+			}
+			return new Loaded(file, image, source, null, bytes, System.currentTimeMillis() - start);
+		}
+		catch (Exception e)
+		{
+			release(bytes);
+			return new Loaded(file, null, null, e, 0, 0);
+		}
+		catch (OutOfMemoryError e)
+		{
+			release(bytes);
+			return new Loaded(file, null, null, new IOException("out of memory"), 0, 0);
+		}
+	}
+
+	// SIZE OF A STACK ONCE DECODED, FROM ITS TIFF HEADER; THE FILE SIZE FOR THE OTHER FORMATS
+	private static long decodedBytes(File file) throws IOException
+	{
+		String name = file.getName().toLowerCase();
+		if (!name.endsWith(".tif") && !name.endsWith(".tiff"))
+			return file.length();
+		FileInfo[] info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+		if (info == null)
+			throw new IOException("cannot read the TIFF header");
+		long bytes = 0;
+		for (int i = 0; i < info.length; i++)
+			bytes += (long) info[i].width * info[i].height * Math.max(1, info[i].nImages) * info[i].getBytesPerPixel();
+		return bytes;
+	}
+
+	// MAP A 16-BIT TIFF FILE, OR A RAW FILE IF ITS FORMAT IS GIVEN; NULL IF THE FILE HAS TO BE DECODED
+	private MappedFrameSource openMapped(File file)
+	{
+		String name = file.getName().toLowerCase();
+		try
+		{
+			if (name.endsWith(".tif") || name.endsWith(".tiff"))
+				return MappedFrameSource.open(file);
+			if (rawWidth > 0)
+				return MappedFrameSource.openRaw(file, rawWidth, rawHeight, rawOffset, rawLittleEndian);
+		}
+		catch (IOException e)
+		{
+			//COMPRESSED OR NOT 16-BIT: LOADED BY IMAGEJ
+		}
+		return null;
+	}
+
+	// OPEN A TIFF STACK AS A VIRTUAL STACK, OR ENTIRELY IF IT CANNOT BE
+	static ImagePlus openVirtual(File file) throws IOException
+	{
+		FileInfo[] info = null;
+		if (file.getName().toLowerCase().endsWith(".tif") || file.getName().toLowerCase().endsWith(".tiff"))
+			info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+		if (info == null || info.length != 1 || info[0].compression != FileInfo.COMPRESSION_NONE)
+			return new Opener().openImage(file.getPath());
+		return new ImagePlus(file.getName(), new FileInfoVirtualStack(info[0], false));
+	}
+
+	// WAIT UNTIL A NUMBER OF BYTES FITS IN THE BUDGET; A STACK LARGER THAN THE BUDGET IS LOADED ALONE
+	private synchronized void reserve(long bytes) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		while (used > 0 && used + bytes > budget)
+			wait();
+		waitedMillis += System.currentTimeMillis() - start;
+		used += bytes;
+	}
+
+	private synchronized void adjust(long bytes)
+	{
+		used += bytes;
+		notifyAll();
+	}
+
+	private synchronized void release(long bytes)
+	{
+		used -= bytes;
+		notifyAll();
+	}
+
+	//--------------------------------##
+	// ONE STACK READY TO BE ANALYSED ##
+	//--------------------------------##
+
+	public final class Loaded
+	{
+		private final File file;
+		private final ImagePlus image;
+		private final FrameSource source;
+		private final Exception error;
+		private final long bytes;
+		private final long loadMillis;
+		private boolean released;
+
+		Loaded(File file, ImagePlus image, FrameSource source, Exception error, long bytes, long loadMillis)
+		{
+			this.file = file;
+			this.image = image;
+			this.source = source;
+			this.error = error;
+			this.bytes = bytes;
+			this.loadMillis = loadMillis;
+		}
+
+		public File getFile()
+		{
+			return file;
+		}
+
+		// STACK OPENED BY IMAGEJ, NULL FOR A MAPPED STACK
+		public ImagePlus getImage()
+		{
+			return image;
+		}
+
+		// FRAMES OF THE STACK, OR NULL IF IT COULD NOT BE LOADED
+		public FrameSource getSource()
+		{
+			return source;
+		}
+
+		public Exception getError()
+		{
+			return error;
+		}
+
+		public long getLoadMillis()
+		{
+			return loadMillis;
+		}
+
+		// GIVE THE MEMORY OF THE STACK BACK TO THE LOADER
+		public void release()
+		{
+			synchronized (StackPrefetcher.this)
+			{
+				if (released)
+					return;
+				released = true;
+			}
+			if (source instanceof ReadAheadFrameSource)
+				((ReadAheadFrameSource) source).close();
+			StackPrefetcher.this.release(bytes);
+		}
+	}
+}
@@ -0,0 +1,862 @@
+package acf_engine;
+
+import ij.gui.*;
+import ij.process.*;
+import java.awt.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** TEMPORAL AUTOCORRELATION OF THE ROI
+ *
+ *  Pixel ACF: mean over the pixels of the ROI of the ACF of every pixel
+ *  trace, with the per-pixel mean and variance in the same pass.
+ *  Area ACF: ACF of the mean intensity of the ROI, for every radius from 1
+ *  pixel to the radius of the ROI, in a single read of the frames.
+ *  Pyramid ACF: pixel ACF of the ROI binned 1x1, 2x2, 4x4..., the bins of
+ *  every scale being built from each frame as it is read.
+ *  The frames are read and appended to the traces by the stages "read" and
+ *  "append" of a pipeline. The traces of 8- and 16-bit stacks are kept as
+ *  byte[] and short[] and correlated by integer kernels, unless a compact
+ *  TraceStore is asked for. The frames of 32-bit stacks are kept in the
+ *  order they are read and correlated across the pixels by the
+ *  LagCorrelator, which also gives the area ACF. Given an OffHeapScope,
+ *  the engine keeps the float traces and the trace stores off the heap,
+ *  and correlates the 32-bit traces in place. The traces, the frame
+ *  regions and the buffers of the kernels are borrowed from a BufferPool
+ *  and released once the ACF is calculated. The engine only holds the
+ *  settings of its pipelines, its scope and its pool: one instance can be
+ *  used by several threads.
+ */
+
+public final class TimeACFEngine
+{
+	private final SlicePipeline.Settings settings;
+	private final OffHeapScope scope;	// Memory of the traces, or null for the heap
+	private final BufferPool pool;
+
+	public TimeACFEngine()
+	{
+		this(new SlicePipeline.Settings());
+	}
+
+	// ENGINE READING THE STACKS WITH GIVEN THREADS PER STAGE
+	public TimeACFEngine(SlicePipeline.Settings settings)
+	{
+		this(settings, null);
+	}
+
+	// ENGINE KEEPING THE TRACES IN THE BUFFERS OF A SCOPE, CLOSED BY THE CALLER ONCE THE ANALYSIS IS DONE
+	public TimeACFEngine(SlicePipeline.Settings settings, OffHeapScope scope)
+	{
+		this(settings, scope, BufferPool.UNPOOLED);
+	}
+
+	// ENGINE BORROWING ITS ARRAYS FROM A POOL SHARED BY THE ANALYSES
+	public TimeACFEngine(SlicePipeline.Settings settings, OffHeapScope scope, BufferPool pool)
+	{
+		this.settings = settings;
+		this.scope = scope;
+		this.pool = pool;
+	}
+
+	// CALCULATE THE ROI-AVERAGED PIXEL ACF, AND THE PER-PIXEL MOMENTS IF REQUIRED
+	public ACFResult pixelACF(FrameSource source, final ACFParameters params, boolean withMoments, ProgressListener listener)
+	{
+		final int Nsize = source.getFrameCount();
+		int[] box = boundingBox(source, params, params.getRadius());
+		final int[] pixels = roiPixels(params, box);
+		final float[] frameMeans = new float[Nsize];
+		int bitDepth = source instanceof IntegerFrameSource ? ((IntegerFrameSource) source).getBitDepth() : 0;
+		if (params.getTraceStorage() == TraceStore.FLOAT && bitDepth == 0 && scope == null)
+			return framesACF(source, params, box, pixels, withMoments, listener);
+		Traces traces;
+		if (params.getTraceStorage() != TraceStore.FLOAT)
+			traces = readStoredTraces(source, params, box, pixels, frameMeans, listener);
+		else if (bitDepth == 8)
+			traces = readByteTraces(source, params, box, pixels, frameMeans, listener);
+		else if (bitDepth == 16)
+			traces = readShortTraces(source, params, box, pixels, frameMeans, listener);
+		else
+			traces = readStoredTraces(source, params, box, pixels, frameMeans, listener);
+		try
+		{
+			return pixelACF(traces, params, box, pixels, frameMeans, withMoments, null);
+		}
+		finally
+		{
+			traces.release();
+		}
+	}
+
+	// READ THE PIXELS OF THE ROI FRAME BY FRAME, AND CORRELATE THEM BY BLOCKS OF FRAMES FOR EVERY LAG
+	//The frames stay in the order they are read: no transposition into traces, and the LagCorrelator works across the pixels
+	private ACFResult framesACF(FrameSource source, final ACFParameters params, int[] box, final int[] pixels, boolean withMoments, ProgressListener listener)
+	{
+		final int Nsize = source.getFrameCount();
+		final int nPixels = pixels.length;
+		final float[] frameMeans = new float[Nsize];
+		final float[][] frames = pool.floats(Nsize, nPixels);
+		try
+		{
+			readFrames(source, box, 0, new SlicePipeline.Stage()
+			{
+				public Object process(int frame, Object input)
+				{
+					float[] region = (float[]) input;
+					if (params.getSubtractFrameMean())
+					{
+						double sum = 0;
+						for (int p = 0; p < nPixels; p++)
+							sum += region[pixels[p]];
+						frameMeans[frame] = (float) (sum / nPixels);
+					}
+					float[] values = frames[frame];
+					for (int p = 0; p < nPixels; p++)
+						values[p] = region[pixels[p]] - frameMeans[frame];
+					return null;
+				}
+			}, listener);
+
+			int[] lags = checkLags(params.getLags(Nsize), Nsize);
+			float[] pixelMean = new float[nPixels];
+			float[] pixelVariance = new float[nPixels];
+			float[] means = LagCorrelator.means(frames, frameMeans, pixelMean, pixelVariance);
+			double[][] pixelSums = LagCorrelator.correlate(frames, means, lags, listener);
+			double[] sums = new double[lags.length + 1];
+			for (int l = 0; l <= lags.length; l++)
+				for (int p = 0; p < nPixels; p++)
+					sums[l] += pixelSums[l][p];
+			return pixelResult(sums, lags, Nsize, box, pixels, pixelMean, pixelVariance, withMoments);
+		}
+		finally
+		{
+			pool.release(frames);
+		}
+	}
+
+	// CALCULATE THE ROI-AVERAGED PIXEL ACF FROM THE TRACES OF A CACHE HOLDING THE BOUNDING BOX OF THE ROI
+	//The traces are streamed from the cache file, the stack is not read
+	public ACFResult pixelACF(final TraceCache cache, final ACFParameters params, boolean withMoments, ProgressListener listener)
+	{
+		final int Nsize = cache.getFrameCount();
+		final int[] box = boundingBox(cache.getX(), cache.getY(), cache.getWidth(), cache.getHeight(), params, params.getRadius());
+		final int[] pixels = roiPixels(params, box);
+		final float[] frameMeans = new float[Nsize];
+		float[] trace = new float[Nsize];
+
+		//MEAN OF EVERY FRAME, SUMMED OVER THE PIXELS IN THE SAME ORDER AS FROM THE FRAMES
+		if (params.getSubtractFrameMean())
+		{
+			double[] sums = new double[Nsize];
+			for (int p = 0; p < pixels.length; p++)
+			{
+				cache.readTrace(box[0] + pixels[p] % box[2], box[1] + pixels[p] / box[2], trace);
+				for (int t = 0; t < Nsize; t++)
+					sums[t] += trace[t];
+			}
+			for (int t = 0; t < Nsize; t++)
+				frameMeans[t] = (float) (sums[t] / pixels.length);
+		}
+
+		return pixelACF(new Traces()
+		{
+			public float[] get(int pixel, float[] buffer)
+			{
+				cache.readTrace(box[0] + pixels[pixel] % box[2], box[1] + pixels[pixel] / box[2], buffer);
+				for (int t = 0; t < Nsize; t++)
+					buffer[t] = buffer[t] - frameMeans[t];
+				return buffer;
+			}
+		}, params, box, pixels, frameMeans, withMoments, listener);
+	}
+
+	// READ THE TRACES INTO THE TRACE STORE OF THE PARAMETERS, DECODED ONE PIXEL AT A TIME BY THE KERNELS
+	//The 32-bit traces are correlated in place when no frame mean is subtracted
+	private Traces readStoredTraces(FrameSource source, final ACFParameters params, int[] box, final int[] pixels, final float[] frameMeans, ProgressListener listener)
+	{
+		final int nPixels = pixels.length;
+		final TraceStore store = TraceStore.create(params.getTraceStorage(), nPixels, source.getFrameCount(), scope);
+		readFrames(source, box, 0, new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				float[] region = (float[]) input;
+				float[] values = pool.floats(nPixels);
+				double sum = 0;
+				for (int p = 0; p < nPixels; p++)
+				{
+					values[p] = region[pixels[p]];
+					sum += values[p];
+				}
+				if (params.getSubtractFrameMean())
+					frameMeans[frame] = (float) (sum / nPixels);
+				store.put(frame, values);
+				pool.release(values);
+				return null;
+			}
+		}, listener);
+
+		return new Traces()
+		{
+			public float[] get(int pixel, float[] buffer)
+			{
+				store.get(pixel, buffer);
+				for (int t = 0; t < buffer.length; t++)
+					buffer[t] = buffer[t] - frameMeans[t];
+				return buffer;
+			}
+
+			void accumulate(int pixel, float[] frameMeans, int[] lags, double[] sums, double[] moments, float[] buffer)
+			{
+				FloatBuffer trace = store.view(pixel);
+				if (trace == null || params.getSubtractFrameMean())
+					super.accumulate(pixel, frameMeans, lags, sums, moments, buffer);
+				else
+					accumulateLagProducts(trace, lags, sums, moments);
+			}
+		};
+	}
+
+	// READ THE TRACES OF AN 8-BIT STACK AS byte[], A QUARTER OF THE MEMORY OF FLOAT TRACES
+	private Traces readByteTraces(FrameSource source, final ACFParameters params, int[] box, final int[] pixels, final float[] frameMeans, ProgressListener listener)
+	{
+		final int nPixels = pixels.length;
+		final byte[][] traces = pool.bytes(nPixels, source.getFrameCount());
+		readFrames(source, box, 8, new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				byte[] region = (byte[]) input;
+				if (params.getSubtractFrameMean())
+				{
+					long sum = 0;
+					for (int p = 0; p < nPixels; p++)
+						sum += region[pixels[p]] & 0xff;
+					frameMeans[frame] = (float) ((double) sum / nPixels);
+				}
+				for (int p = 0; p < nPixels; p++)
+					traces[p][frame] = region[pixels[p]];
+				return null;
+			}
+		}, listener);
+
+		return new Traces()
+		{
+			public float[] get(int pixel, float[] buffer)
+			{
+				byte[] trace = traces[pixel];
+				for (int t = 0; t < trace.length; t++)
+					buffer[t] = (trace[t] & 0xff) - frameMeans[t];
+				return buffer;
+			}
+
+			void accumulate(int pixel, float[] frameMeans, int[] lags, double[] sums, double[] moments, float[] buffer)
+			{
+				if (params.getSubtractFrameMean())
+					super.accumulate(pixel, frameMeans, lags, sums, moments, buffer);
+				else
+					accumulateLagProducts(traces[pixel], lags, sums, moments);
+			}
+
+			void release()
+			{
+				pool.release(traces);
+			}
+		};
+	}
+
+	// READ THE TRACES OF A 16-BIT STACK AS short[], HALF OF THE MEMORY OF FLOAT TRACES
+	private Traces readShortTraces(FrameSource source, final ACFParameters params, int[] box, final int[] pixels, final float[] frameMeans, ProgressListener listener)
+	{
+		final int nPixels = pixels.length;
+		final short[][] traces = pool.shorts(nPixels, source.getFrameCount());
+		readFrames(source, box, 16, new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				short[] region = (short[]) input;
+				if (params.getSubtractFrameMean())
+				{
+					long sum = 0;
+					for (int p = 0; p < nPixels; p++)
+						sum += region[pixels[p]] & 0xffff;
+					frameMeans[frame] = (float) ((double) sum / nPixels);
+				}
+				for (int p = 0; p < nPixels; p++)
+					traces[p][frame] = region[pixels[p]];
+				return null;
+			}
+		}, listener);
+
+		return new Traces()
+		{
+			public float[] get(int pixel, float[] buffer)
+			{
+				short[] trace = traces[pixel];
+				for (int t = 0; t < trace.length; t++)
+					buffer[t] = (trace[t] & 0xffff) - frameMeans[t];
+				return buffer;
+			}
+
+			void accumulate(int pixel, float[] frameMeans, int[] lags, double[] sums, double[] moments, float[] buffer)
+			{
+				if (params.getSubtractFrameMean())
+					super.accumulate(pixel, frameMeans, lags, sums, moments, buffer);
+				else
+					accumulateLagProducts(traces[pixel], lags, sums, moments);
+			}
+
+			void release()
+			{
+				pool.release(traces);
+			}
+		};
+	}
+
+	// TRACES OF THE PIXELS OF THE ROI, MINUS THE MEAN OF THEIR FRAME
+	private abstract static class Traces
+	{
+		// TRACE OF A PIXEL, IN ITS OWN ARRAY OR COPIED INTO THE BUFFER
+		abstract float[] get(int pixel, float[] buffer);
+
+		// ADD THE LAG PRODUCTS OF A PIXEL TO THE SUMS, AND GIVE THE MEAN AND VARIANCE OF ITS VALUES (BEFORE THE FRAME MEAN SUBTRACTION)
+		//The mean and variance are accumulated (Welford) in the same pass
+		void accumulate(int pixel, float[] frameMeans, int[] lags, double[] sums, double[] moments, float[] buffer)
+		{
+			float[] trace = get(pixel, buffer);
+			int Nsize = trace.length;
+			double welfordMean = 0, welfordM2 = 0;
+			for (int t = 0; t < Nsize; t++)
+			{
+				double value = trace[t] + frameMeans[t];
+				double delta = value - welfordMean;
+				welfordMean += delta / (t + 1);
+				welfordM2 += delta * (value - welfordMean);
+			}
+			moments[0] = welfordMean;
+			moments[1] = welfordM2 / Nsize;
+
+			float iMean = 0;
+			for (int t = 0; t < Nsize; t++)
+				iMean = iMean + trace[t];
+			iMean = iMean / Nsize;
+			accumulateLagProducts(trace, iMean, lags, sums);
+		}
+
+		// GIVE THE ARRAYS OF THE TRACES BACK TO THE POOL
+		void release()
+		{
+		}
+	}
+
+	// PIXELS OF THE ROI, AS INDEXES IN THE BOUNDING BOX
+	static int[] roiPixels(ACFParameters params, int[] box)
+	{
+		int[] pixels = new int[box[2] * box[3]];
+		int nPixels = 0;
+		for (int j = 0; j < box[3]; j++)
+			for (int i = 0; i < box[2]; i++)
+				if (params.isSampled(box[0] + i, box[1] + j))
+					pixels[nPixels++] = j * box[2] + i;
+		if (nPixels == 0)
+			throw new IllegalArgumentException("The ROI " + params + " is outside of the picture");
+		return Arrays.copyOf(pixels, nPixels);
+	}
+
+	// ACF OF THE TRACES, IN PARALLEL OVER THE PIXELS, WITH THE MEAN AND VARIANCE OF EVERY PIXEL
+	private ACFResult pixelACF(final Traces traces, ACFParameters params, int[] box, int[] pixels, final float[] frameMeans, boolean withMoments, final ProgressListener listener)
+	{
+		final int Nsize = frameMeans.length;
+		final int[] lags = checkLags(params.getLags(Nsize), Nsize);
+		final int nPixels = pixels.length;
+		int i, k;
+
+		final int nTasks = Math.min(nPixels, 4 * CorrelationKernels.getThreadCount());
+		final double[][] partialSums = new double[nTasks][lags.length + 1];
+		final float[] pixelMean = new float[nPixels];
+		final float[] pixelVariance = new float[nPixels];
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (k = 0; k < nTasks; k++)
+		{
+			final int task = k;
+			tasks.add(new Callable<Void>()
+			{
+				public Void call()
+				{
+					double[] sums = partialSums[task];
+					float[] buffer = pool.floats(Nsize);
+					double[] moments = new double[2];
+					for (int p = task; p < nPixels; p += nTasks)
+					{
+						if (task == 0 && listener != null)
+							listener.progress(p, nPixels);
+						traces.accumulate(p, frameMeans, lags, sums, moments, buffer);
+						pixelMean[p] = (float) moments[0];
+						pixelVariance[p] = (float) moments[1];
+					}
+					pool.release(buffer);
+					return null;
+				}
+			});
+		}
+		CorrelationKernels.runParallel(tasks);
+
+		double[] sums = new double[lags.length + 1];
+		for (k = 0; k < nTasks; k++)
+			for (i = 0; i <= lags.length; i++)
+				sums[i] += partialSums[k][i];
+		return pixelResult(sums, lags, Nsize, box, pixels, pixelMean, pixelVariance, withMoments);
+	}
+
+	// NORMALIZED ACF OF THE SUMMED LAG PRODUCTS, WITH THE MAPS OF THE PIXEL MOMENTS IF REQUIRED
+	private static ACFResult pixelResult(double[] sums, int[] lags, int Nsize, int[] box, int[] pixels, float[] pixelMean, float[] pixelVariance, boolean withMoments)
+	{
+		float[] acf = normalizedACF(sums, lags, Nsize);
+
+		ACFResult.MomentMaps moments = null;
+		if (withMoments)
+		{
+			float[] meanMap = new float[box[2] * box[3]];
+			float[] varianceMap = new float[box[2] * box[3]];
+			Arrays.fill(meanMap, Float.NaN);
+			Arrays.fill(varianceMap, Float.NaN);
+			for (int k = 0; k < pixels.length; k++)
+			{
+				meanMap[pixels[k]] = pixelMean[k];
+				varianceMap[pixels[k]] = pixelVariance[k];
+			}
+			moments = new ACFResult.MomentMaps(box[0], box[1], box[2], box[3], meanMap, varianceMap);
+		}
+		return new ACFResult("Time [frames]", toFloat(lags), new String[] {"AutoCorrelation"}, new float[][] {acf}, moments);
+	}
+
+	// CALCULATE THE ACF OF THE MEAN INTENSITY OF THE ROI FOR EVERY RADIUS FROM 1 TO THE RADIUS OF THE ROI
+	public ACFResult areaACF(FrameSource source, ACFParameters params, ProgressListener listener)
+	{
+		return areaACF(areaTraces(source, params, listener), params, listener);
+	}
+
+	// MEAN INTENSITY OVER TIME OF THE AREAS OF EVERY RADIUS FROM 1 TO THE RADIUS OF THE ROI, IN ONE READ OF EVERY FRAME
+	//Every pixel belongs to the ring of the smallest radius containing it, the areas are cumulated rings
+	//The area of a radius is the mask of the ImageJ ROI (oval or rectangle) of that radius, as the plug-in measured it
+	public float[][] areaTraces(FrameSource source, ACFParameters params, ProgressListener listener)
+	{
+		final int Nsize = source.getFrameCount();
+		int nScan = Math.max(1, (int) params.getRadius());
+		int[] box = boundingBox(source, params, nScan);
+		int bx = box[0], by = box[1], bw = box[2], bh = box[3];
+		int i, j, k;
+
+		//RING OF EVERY PIXEL OF THE BOUNDING BOX, FROM THE LARGEST AREA TO THE SMALLEST (0 = OUTSIDE OF THE LARGEST AREA)
+		final int[] ring = new int[bw * bh];
+		final int[] ringCounts = new int[nScan + 1];
+		double xc = params.getXCenter(), yc = params.getYCenter();
+		for (int r = nScan; r >= 1; r--)
+		{
+			Roi roi = params.getShape() == ACFParameters.SQUARE ? new Roi(xc - r, yc - r, 2 * r, 2 * r) : new OvalRoi(xc - r, yc - r, 2 * r, 2 * r);
+			Rectangle bounds = roi.getBounds();
+			ImageProcessor mask = roi.getMask();
+			for (j = 0; j < bh; j++)
+			{
+				for (i = 0; i < bw; i++)
+				{
+					int x = bx + i - bounds.x, y = by + j - bounds.y;
+					if (x >= 0 && y >= 0 && x < bounds.width && y < bounds.height && (mask == null || mask.get(x, y) != 0))
+						ring[j * bw + i] = r;
+				}
+			}
+		}
+		for (i = 0; i < ring.length; i++)
+			ringCounts[ring[i]]++;
+
+		//MEAN INTENSITY OF EVERY AREA, SUMMED AS INTEGERS FOR 8- AND 16-BIT STACKS
+		final float[][] traces = new float[nScan][Nsize];
+		final int rings = nScan;
+		int bitDepth = source instanceof IntegerFrameSource ? ((IntegerFrameSource) source).getBitDepth() : 0;
+		readFrames(source, box, bitDepth, new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				double[] ringSums = new double[rings + 1];
+				if (input instanceof short[])
+				{
+					short[] region = (short[]) input;
+					long[] integerSums = new long[rings + 1];
+					for (int p = 0; p < region.length; p++)
+						integerSums[ring[p]] += region[p] & 0xffff;
+					for (int r = 0; r <= rings; r++)
+						ringSums[r] = integerSums[r];
+				}
+				else if (input instanceof byte[])
+				{
+					byte[] region = (byte[]) input;
+					long[] integerSums = new long[rings + 1];
+					for (int p = 0; p < region.length; p++)
+						integerSums[ring[p]] += region[p] & 0xff;
+					for (int r = 0; r <= rings; r++)
+						ringSums[r] = integerSums[r];
+				}
+				else
+				{
+					float[] region = (float[]) input;
+					for (int p = 0; p < region.length; p++)
+						ringSums[ring[p]] += region[p];
+				}
+				double areaSum = 0;
+				int areaCount = 0;
+				for (int r = 1; r <= rings; r++)
+				{
+					areaSum += ringSums[r];
+					areaCount += ringCounts[r];
+					traces[r - 1][frame] = (float) (areaSum / areaCount);
+				}
+				return null;
+			}
+		}, listener);
+		return traces;
+	}
+
+	// CALCULATE THE ACF OF THE AREA TRACES
+	//The traces are copied frame by frame for the LagCorrelator, the sums of every trace are the same as trace by trace
+	public ACFResult areaACF(float[][] traces, ACFParameters params, ProgressListener listener)
+	{
+		int nScan = traces.length;
+		int Nsize = traces[0].length;
+		int[] lags = checkLags(params.getLags(Nsize), Nsize);
+		int j, k, l;
+
+		float[][] frames = pool.floats(Nsize, nScan);
+		float[] means = new float[nScan];
+		double[][] sums;
+		try
+		{
+			for (k = 0; k < nScan; k++)
+			{
+				double iMean = 0;
+				for (j = 0; j < Nsize; j++)
+				{
+					iMean += traces[k][j];
+					frames[j][k] = traces[k][j];
+				}
+				means[k] = (float) (iMean / Nsize);
+			}
+			sums = LagCorrelator.correlate(frames, means, lags, listener);
+		}
+		finally
+		{
+			pool.release(frames);
+		}
+
+		float[][] curves = new float[nScan][];
+		String[] names = new String[nScan];
+		for (k = 0; k < nScan; k++)
+		{
+			double[] traceSums = new double[lags.length + 1];
+			for (l = 0; l <= lags.length; l++)
+				traceSums[l] = sums[l][k];
+			curves[k] = normalizedACF(traceSums, lags, Nsize);
+			names[k] = "R = " + (k + 1) + " px";
+		}
+		return new ACFResult("Time [frames]", toFloat(lags), names, curves, null);
+	}
+
+	// CALCULATE THE ROI-AVERAGED PIXEL ACF OF THE STACK BINNED 1x1, 2x2, 4x4... (ONE CURVE PER SCALE) IN A SINGLE READ OF THE FRAMES
+	//Every bin is the sum of 2x2 bins of the scale below, built from each frame as it is read; a bin is used if all its pixels are traces of the pixel ACF
+	public ACFResult pyramidACF(FrameSource source, ACFParameters params, int scales, ProgressListener listener)
+	{
+		final int Nsize = source.getFrameCount();
+		int[] box = boundingBox(source, params, params.getRadius());
+		int i, j, s;
+
+		//GRID AND BINS INSIDE OF THE ROI OF EVERY SCALE, UP TO THE FIRST SCALE WITHOUT ANY BIN
+		final int[] widths = new int[scales];
+		final int[] heights = new int[scales];
+		final int[][] bins = new int[scales][];
+		boolean[] inside = new boolean[box[2] * box[3]];
+		for (j = 0; j < box[3]; j++)
+			for (i = 0; i < box[2]; i++)
+				inside[j * box[2] + i] = params.isSampled(box[0] + i, box[1] + j);
+		int nScales = 0;
+		for (s = 0; s < scales; s++)
+		{
+			widths[s] = s == 0 ? box[2] : widths[s - 1] / 2;
+			heights[s] = s == 0 ? box[3] : heights[s - 1] / 2;
+			if (s > 0)
+			{
+				int w = widths[s - 1];
+				boolean[] coarse = new boolean[widths[s] * heights[s]];
+				for (j = 0; j < heights[s]; j++)
+					for (i = 0; i < widths[s]; i++)
+						coarse[j * widths[s] + i] = inside[2 * j * w + 2 * i] && inside[2 * j * w + 2 * i + 1] && inside[(2 * j + 1) * w + 2 * i] && inside[(2 * j + 1) * w + 2 * i + 1];
+				inside = coarse;
+			}
+			int[] scaleBins = new int[inside.length];
+			int nBins = 0;
+			for (i = 0; i < inside.length; i++)
+				if (inside[i])
+					scaleBins[nBins++] = i;
+			if (nBins == 0)
+				break;
+			bins[s] = Arrays.copyOf(scaleBins, nBins);
+			nScales++;
+		}
+		if (nScales == 0)
+			throw new IllegalArgumentException("The ROI " + params + " is outside of the picture");
+
+		//BINS OF EVERY SCALE, FRAME BY FRAME
+		final int levels = nScales;
+		final float[][][] frames = new float[levels][][];
+		try
+		{
+			for (s = 0; s < levels; s++)
+				frames[s] = pool.floats(Nsize, bins[s].length);
+			readFrames(source, box, 0, new SlicePipeline.Stage()
+			{
+				public Object process(int frame, Object input)
+				{
+					float[] grid = (float[]) input;
+					for (int s = 0; s < levels; s++)
+					{
+						if (s > 0)
+						{
+							int w = widths[s - 1];
+							float[] coarse = pool.floats(widths[s] * heights[s]);
+							for (int j = 0; j < heights[s]; j++)
+								for (int i = 0; i < widths[s]; i++)
+									coarse[j * widths[s] + i] = grid[2 * j * w + 2 * i] + grid[2 * j * w + 2 * i + 1] + grid[(2 * j + 1) * w + 2 * i] + grid[(2 * j + 1) * w + 2 * i + 1];
+							if (s > 1)
+								pool.release(grid);
+							grid = coarse;
+						}
+						float[] values = frames[s][frame];
+						int[] scaleBins = bins[s];
+						for (int b = 0; b < scaleBins.length; b++)
+							values[b] = grid[scaleBins[b]];
+					}
+					if (levels > 1)
+						pool.release(grid);
+					return null;
+				}
+			}, listener);
+
+			int[] lags = checkLags(params.getLags(Nsize), Nsize);
+			float[][] curves = new float[levels][];
+			String[] names = new String[levels];
+			for (s = 0; s < levels; s++)
+			{
+				float[] means = LagCorrelator.means(frames[s], null, null, null);
+				double[][] binSums = LagCorrelator.correlate(frames[s], means, lags, listener);
+				double[] sums = new double[lags.length + 1];
+				for (int l = 0; l <= lags.length; l++)
+					for (int b = 0; b < bins[s].length; b++)
+						sums[l] += binSums[l][b];
+				curves[s] = normalizedACF(sums, lags, Nsize);
+				names[s] = (1 << s) + "x" + (1 << s) + " (" + bins[s].length + " bins)";
+			}
+			return new ACFResult("Time [frames]", toFloat(lags), names, curves, null);
+		}
+		finally
+		{
+			for (s = 0; s < levels; s++)
+				pool.release(frames[s]);
+		}
+	}
+
+	// READ THE BOUNDING BOX OF EVERY FRAME IN THE STAGE "read" AND PASS IT TO THE STAGE "append"
+	//The regions are float[], or byte[] and short[] for a bit depth of 8 and 16 (the source is then an IntegerFrameSource)
+	//The append stage writes the frame it is given only, several threads can run it
+	private void readFrames(final FrameSource source, final int[] box, final int bitDepth, final SlicePipeline.Stage append, ProgressListener listener)
+	{
+		SlicePipeline pipeline = new SlicePipeline(settings.getQueueSize());
+		pipeline.addStage("read", settings.getThreads("read", 1), new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				if (bitDepth == 8)
+				{
+					byte[] region = pool.bytes(box[2] * box[3]);
+					((IntegerFrameSource) source).readRegion(frame, box[0], box[1], box[2], box[3], region);
+					return region;
+				}
+				if (bitDepth == 16)
+				{
+					short[] region = pool.shorts(box[2] * box[3]);
+					((IntegerFrameSource) source).readRegion(frame, box[0], box[1], box[2], box[3], region);
+					return region;
+				}
+				float[] region = pool.floats(box[2] * box[3]);
+				source.readRegion(frame, box[0], box[1], box[2], box[3], region);
+				return region;
+			}
+		});
+		pipeline.addStage("append", settings.getThreads("append", 1), new SlicePipeline.Stage()
+		{
+			public Object process(int frame, Object input)
+			{
+				append.process(frame, input);
+				pool.release(input);
+				return null;
+			}
+		});
+		settings.report(pipeline.run(source.getFrameCount(), listener));
+	}
+
+	// ADD THE SUMS OF THE LAG PRODUCTS OF A TRACE: sums[l] FOR lags[l], AND THE LAG 0 IN THE LAST ELEMENT
+	static void accumulateLagProducts(float[] trace, float mean, int[] lags, double[] sums)
+	{
+		int N = trace.length;
+		for (int l = 0; l <= lags.length; l++)
+		{
+			int lag = l < lags.length ? lags[l] : 0;
+			double sum = 0;
+			for (int t = 0; t < N - lag; t++)
+				sum += (trace[t] - mean) * (trace[t + lag] - mean);
+			sums[l] += sum;
+		}
+	}
+
+	// SAME AS THE float[] KERNEL AND Traces.accumulate, READING THE TRACE IN PLACE FROM A BUFFER (OFF THE HEAP)
+	static void accumulateLagProducts(FloatBuffer trace, int[] lags, double[] sums, double[] moments)
+	{
+		int N = trace.limit();
+		double welfordMean = 0, welfordM2 = 0;
+		float iMean = 0;
+		for (int t = 0; t < N; t++)
+		{
+			float value = trace.get(t);
+			double delta = value - welfordMean;
+			welfordMean += delta / (t + 1);
+			welfordM2 += delta * (value - welfordMean);
+			iMean = iMean + value;
+		}
+		moments[0] = welfordMean;
+		moments[1] = welfordM2 / N;
+		iMean = iMean / N;
+
+		for (int l = 0; l <= lags.length; l++)
+		{
+			int lag = l < lags.length ? lags[l] : 0;
+			double sum = 0;
+			for (int t = 0; t < N - lag; t++)
+				sum += (trace.get(t) - iMean) * (trace.get(t + lag) - iMean);
+			sums[l] += sum;
+		}
+	}
+
+	// ADD THE SUMS OF THE LAG PRODUCTS OF AN UNSIGNED 8-BIT TRACE AROUND ITS MEAN, AND GIVE ITS MEAN AND VARIANCE
+	//The products are summed exactly in int blocks, then centred once per lag: sum (a-m)(b-m) = sum ab - m (sum a + sum b) + n m^2
+	static void accumulateLagProducts(byte[] trace, int[] lags, double[] sums, double[] moments)
+	{
+		int N = trace.length;
+		int block = 32768;	// 32768 products of 255 * 255 fit in an int
+		long total = 0;
+		for (int t = 0; t < N; t++)
+			total += trace[t] & 0xff;
+		double mean = (double) total / N;
+
+		for (int l = 0; l <= lags.length; l++)
+		{
+			int lag = l < lags.length ? lags[l] : 0;
+			int n = N - lag;
+			long product = 0, head = 0, tail = 0;
+			for (int t0 = 0; t0 < n; t0 += block)
+			{
+				int end = Math.min(n, t0 + block);
+				int blockProduct = 0, blockHead = 0, blockTail = 0;
+				for (int t = t0; t < end; t++)
+				{
+					int a = trace[t] & 0xff, b = trace[t + lag] & 0xff;
+					blockProduct += a * b;
+					blockHead += a;
+					blockTail += b;
+				}
+				product += blockProduct;
+				head += blockHead;
+				tail += blockTail;
+			}
+			sums[l] += product - mean * (head + tail) + n * mean * mean;
+			if (lag == 0)
+			{
+				moments[0] = mean;
+				moments[1] = (product - mean * total) / N;
+			}
+		}
+	}
+
+	// ADD THE SUMS OF THE LAG PRODUCTS OF AN UNSIGNED 16-BIT TRACE AROUND ITS MEAN, AND GIVE ITS MEAN AND VARIANCE
+	//The products are summed exactly in long, then centred once per lag as for the 8-bit traces
+	static void accumulateLagProducts(short[] trace, int[] lags, double[] sums, double[] moments)
+	{
+		int N = trace.length;
+		long total = 0;
+		for (int t = 0; t < N; t++)
+			total += trace[t] & 0xffff;
+		double mean = (double) total / N;
+
+		for (int l = 0; l <= lags.length; l++)
+		{
+			int lag = l < lags.length ? lags[l] : 0;
+			int n = N - lag;
+			long product = 0, head = 0, tail = 0;
+			for (int t = 0; t < n; t++)
+			{
+				long a = trace[t] & 0xffff, b = trace[t + lag] & 0xffff;
+				product += a * b;
+				head += a;
+				tail += b;
+			}
+			sums[l] += product - mean * (head + tail) + n * mean * mean;
+			if (lag == 0)
+			{
+				moments[0] = mean;
+				moments[1] = (product - mean * total) / N;
+			}
+		}
+	}
+
+	// DIVIDE THE SUMS BY THE NUMBER OF PRODUCTS OF EVERY LAG, AND NORMALIZE BY THE VALUE AT THE TIME ORIGIN
+	static float[] normalizedACF(double[] sums, int[] lags, int Nsize)
+	{
+		float[] acf = new float[lags.length];
+		double norm = sums[lags.length] / Nsize;
+		for (int l = 0; l < lags.length; l++)
+			acf[l] = (float) (sums[l] / (Nsize - lags[l]) / norm);
+		return acf;
+	}
+
+	// CHECK THAT EVERY LAG IS SHORTER THAN THE STACK
+	static int[] checkLags(int[] lags, int Nsize)
+	{
+		for (int l = 0; l < lags.length; l++)
+			if (lags[l] < 0 || lags[l] >= Nsize)
+				throw new IllegalArgumentException("The lag " + lags[l] + " does not fit in " + Nsize + " frames");
+		return lags;
+	}
+
+	// BOUNDING BOX {x, y, width, height} OF THE ROI OF A GIVEN RADIUS, CLIPPED TO THE FRAME
+	static int[] boundingBox(FrameSource source, ACFParameters params, double radius)
+	{
+		return boundingBox(0, 0, source.getWidth(), source.getHeight(), params, radius);
+	}
+
+	// BOUNDING BOX OF THE ROI CLIPPED TO AN AREA OF THE FRAME
+	static int[] boundingBox(int x, int y, int width, int height, ACFParameters params, double radius)
+	{
+		int x0 = Math.max(x, (int) Math.floor(params.getXCenter() - radius - 0.5));
+		int y0 = Math.max(y, (int) Math.floor(params.getYCenter() - radius - 0.5));
+		int x1 = Math.min(x + width, (int) Math.ceil(params.getXCenter() + radius + 0.5));
+		int y1 = Math.min(y + height, (int) Math.ceil(params.getYCenter() + radius + 0.5));
+		if (x1 <= x0 || y1 <= y0)
+			throw new IllegalArgumentException("The ROI " + params + " is outside of the picture");
+		return new int[] {x0, y0, x1 - x0, y1 - y0};
+	}
+
+	static float[] toFloat(int[] values)
+	{
+		float[] result = new float[values.length];
+		for (int i = 0; i < values.length; i++)
+			result[i] = values[i];
+		return result;
+	}
+}
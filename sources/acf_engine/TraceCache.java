@@ -0,0 +1,295 @@
+package acf_engine;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/** PIXEL-MAJOR CACHE OF THE TRACES OF A STACK IN A MEMORY-MAPPED FILE
+ *
+ *  The stacks are stored frame by frame, while the temporal modes need the
+ *  whole time series of every pixel. The cache reads the frames of a box
+ *  once and transposes them, in tiles of frames and blocks of pixels, into
+ *  a temporary file holding the trace of every pixel contiguously. The file
+ *  is mapped in memory: it can be larger than the heap, and the traces are
+ *  read back without any copy of the stack.
+ *  The caches are kept by stack key, a later analysis of the same stack
+ *  inside a cached box reuses the file. release() deletes the files of a
+ *  stack once it is closed or changed; isCurrent() compares a frame of the
+ *  stack with the checksum of the same frame taken during the transposition.
+ *  The transposition runs outside of the lock of the caches, which is only
+ *  taken to look for a cache, register it or delete it.
+ */
+
+public final class TraceCache
+{
+	private final static ArrayList<TraceCache> caches = new ArrayList<TraceCache>();
+	private static volatile File directory = new File(System.getProperty("java.io.tmpdir"));
+	private static volatile long tileBytes = 64L << 20;	// Frames read at once during the transposition
+	private final static HashMap<String, Integer> releases = new HashMap<String, Integer>();	// Calls of release() by stack key
+
+	private final String key;
+	private final int x, y, width, height, nFrames;
+	private final File file;
+	private final int pixelsPerSegment;	// A mapping is at most 2 GB, every trace is inside one segment
+	private final FloatBuffer[] segments;
+	private final long[] frameSums;		// Checksum of the box of every frame, as it was transposed
+
+	private TraceCache(String key, int x, int y, int width, int height, int nFrames) throws IOException
+	{
+		this.key = key;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.nFrames = nFrames;
+		pixelsPerSegment = Math.max(1, Integer.MAX_VALUE / (4 * nFrames));
+		int nPixels = width * height;
+		segments = new FloatBuffer[(nPixels + pixelsPerSegment - 1) / pixelsPerSegment];
+		frameSums = new long[nFrames];
+
+		file = File.createTempFile("acf_traces", ".raw", directory);
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(4L * nPixels * nFrames);
+			FileChannel channel = raf.getChannel();
+			for (int s = 0; s < segments.length; s++)
+			{
+				int pixels = Math.min(pixelsPerSegment, nPixels - s * pixelsPerSegment);
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 4L * s * pixelsPerSegment * nFrames, 4L * pixels * nFrames);
+				segments[s] = map.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			}
+		}
+		finally
+		{
+			//THE MAPPINGS STAY VALID ONCE THE FILE IS CLOSED
+			raf.close();
+		}
+	}
+
+	// FOLDER OF THE CACHE FILES, THE TEMPORARY FOLDER BY DEFAULT
+	public static synchronized void setDirectory(File folder)
+	{
+		directory = folder;
+	}
+
+	// MEMORY USED TO TRANSPOSE THE FRAMES, 64 MB BY DEFAULT
+	public static synchronized void setTileBytes(long bytes)
+	{
+		tileBytes = Math.max(1, bytes);
+	}
+
+	// CACHE OF A STACK CONTAINING A BOX, OR NULL IF THERE IS NONE
+	public static synchronized TraceCache find(String key, int x, int y, int width, int height)
+	{
+		for (TraceCache cache : caches)
+			if (cache.key.equals(key) && cache.contains(x, y, width, height))
+				return cache;
+		return null;
+	}
+
+	// CACHE OF A STACK CONTAINING THE BOUNDING BOX OF A ROI, OR NULL IF THERE IS NONE
+	public static TraceCache find(String key, FrameSource source, ACFParameters params)
+	{
+		int[] box = TimeACFEngine.boundingBox(source, params, params.getRadius());
+		TraceCache cache = find(key, box[0], box[1], box[2], box[3]);
+		return cache != null && cache.nFrames == source.getFrameCount() ? cache : null;
+	}
+
+	// CACHE OF A STACK CONTAINING A BOX, BUILT FROM THE SOURCE IF THERE IS NONE YET
+	//The caches of other stacks can be found or released while the box is transposed
+	public static TraceCache get(String key, FrameSource source, int x, int y, int width, int height, ProgressListener listener) throws IOException
+	{
+		Integer start;
+		synchronized (TraceCache.class)
+		{
+			TraceCache cache = find(key, x, y, width, height);
+			if (cache != null && cache.nFrames == source.getFrameCount())
+				return cache;
+			if (cache != null)
+				release(key);
+			start = releases.get(key);
+		}
+		if (x < 0 || y < 0 || width < 1 || height < 1 || x + width > source.getWidth() || y + height > source.getHeight())
+			throw new IllegalArgumentException("The box " + x + "," + y + " " + width + "x" + height + " is outside of the picture");
+
+		TraceCache cache = new TraceCache(key, x, y, width, height, source.getFrameCount());
+		try
+		{
+			cache.transpose(source, listener);
+		}
+		catch (RuntimeException e)
+		{
+			cache.delete();
+			throw e;
+		}
+
+		//A STACK CLOSED OR CHANGED DURING THE TRANSPOSITION IS NOT CACHED
+		synchronized (TraceCache.class)
+		{
+			Integer now = releases.get(key);
+			if (now == null ? start == null : now.equals(start))
+			{
+				caches.add(cache);
+				return cache;
+			}
+		}
+		cache.delete();
+		throw new IOException("the stack was released during the transposition");
+	}
+
+	// CACHE OF THE BOUNDING BOX OF A ROI
+	public static TraceCache get(String key, FrameSource source, ACFParameters params, ProgressListener listener) throws IOException
+	{
+		int[] box = TimeACFEngine.boundingBox(source, params, params.getRadius());
+		return get(key, source, box[0], box[1], box[2], box[3], listener);
+	}
+
+	// DELETE THE CACHES OF A STACK, AND THE ONE BEING BUILT FOR IT
+	public static synchronized void release(String key)
+	{
+		Integer count = releases.get(key);
+		releases.put(key, count == null ? 1 : count + 1);
+		for (Iterator<TraceCache> i = caches.iterator(); i.hasNext();)
+		{
+			TraceCache cache = i.next();
+			if (cache.key.equals(key))
+			{
+				cache.delete();
+				i.remove();
+			}
+		}
+	}
+
+	// TRUE IF NO CACHE OF A STACK DIFFERS FROM A FRAME OF THE STACK AS IT IS NOW
+	//An edit of the stack (filter, background subtraction, crop) changes the frame on display, browsing the frames does not
+	public static boolean isCurrent(String key, FrameSource source, int frame)
+	{
+		ArrayList<TraceCache> stack = new ArrayList<TraceCache>();
+		synchronized (TraceCache.class)
+		{
+			for (TraceCache cache : caches)
+				if (cache.key.equals(key))
+					stack.add(cache);
+		}
+		for (TraceCache cache : stack)
+		{
+			if (frame < 0 || frame >= cache.nFrames || cache.nFrames != source.getFrameCount() || cache.x + cache.width > source.getWidth() || cache.y + cache.height > source.getHeight())
+				return false;
+			float[] region = new float[cache.width * cache.height];
+			source.readRegion(frame, cache.x, cache.y, cache.width, cache.height, region);
+			if (checksum(region) != cache.frameSums[frame])
+				return false;
+		}
+		return true;
+	}
+
+	// READ THE FRAMES IN TILES AND WRITE THE TRACES OF BLOCKS OF PIXELS
+	//The blocks keep the reading of a tile in the processor cache: a frame row of the block is contiguous
+	private void transpose(FrameSource source, ProgressListener listener)
+	{
+		int nPixels = width * height;
+		int tileFrames = (int) Math.max(1, Math.min(nFrames, tileBytes / (4L * nPixels)));
+		int blockPixels = 64;
+		float[] tile = new float[tileFrames * nPixels];
+		float[] frame = new float[nPixels];
+		float[][] block = new float[blockPixels][tileFrames];
+
+		for (int t0 = 0; t0 < nFrames; t0 += tileFrames)
+		{
+			int frames = Math.min(tileFrames, nFrames - t0);
+			for (int t = 0; t < frames; t++)
+			{
+				if (listener != null)
+					listener.progress(t0 + t, nFrames);
+				source.readRegion(t0 + t, x, y, width, height, frame);
+				frameSums[t0 + t] = checksum(frame);
+				System.arraycopy(frame, 0, tile, t * nPixels, nPixels);
+			}
+
+			for (int p0 = 0; p0 < nPixels; p0 += blockPixels)
+			{
+				int pixels = Math.min(blockPixels, nPixels - p0);
+				for (int t = 0; t < frames; t++)
+					for (int p = 0; p < pixels; p++)
+						block[p][t] = tile[t * nPixels + p0 + p];
+				for (int p = 0; p < pixels; p++)
+				{
+					FloatBuffer trace = segments[(p0 + p) / pixelsPerSegment].duplicate();
+					trace.position(((p0 + p) % pixelsPerSegment) * nFrames + t0);
+					trace.put(block[p], 0, frames);
+				}
+			}
+		}
+	}
+
+	// CHECKSUM OF THE VALUES OF A BOX
+	private static long checksum(float[] values)
+	{
+		long sum = 1;
+		for (int i = 0; i < values.length; i++)
+			sum = 31 * sum + Float.floatToIntBits(values[i]);
+		return sum;
+	}
+
+	// DELETE THE FILE, THE MAPPINGS ARE RELEASED BY THE GARBAGE COLLECTOR
+	private void delete()
+	{
+		Arrays.fill(segments, null);
+		if (!file.delete())
+			file.deleteOnExit();
+	}
+
+	// TRUE IF THE CACHE HOLDS EVERY PIXEL OF A BOX
+	public boolean contains(int x, int y, int width, int height)
+	{
+		return x >= this.x && y >= this.y && x + width <= this.x + this.width && y + height <= this.y + this.height;
+	}
+
+	// COPY THE TRACE OF A PIXEL, IN THE COORDINATES OF THE PICTURE
+	//Several threads can read at once
+	public void readTrace(int px, int py, float[] dest)
+	{
+		if (px < x || py < y || px >= x + width || py >= y + height)
+			throw new IllegalArgumentException("The pixel " + px + "," + py + " is not in the cache");
+		int pixel = (py - y) * width + px - x;
+		FloatBuffer segment = segments[pixel / pixelsPerSegment];
+		if (segment == null)
+			throw new IllegalStateException("The cache was released");
+		FloatBuffer trace = segment.duplicate();
+		trace.position((pixel % pixelsPerSegment) * nFrames);
+		trace.get(dest, 0, nFrames);
+	}
+
+	public int getX()
+	{
+		return x;
+	}
+
+	public int getY()
+	{
+		return y;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getFrameCount()
+	{
+		return nFrames;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+}
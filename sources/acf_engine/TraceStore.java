@@ -0,0 +1,377 @@
+package acf_engine;
+
+import java.nio.*;
+import java.util.*;
+
+/** COMPACT STORAGE OF THE TRACES OF A TIME ANALYSIS
+ *
+ *  FLOAT keeps every value on 32 bits. HALF keeps IEEE half-precision
+ *  values (16 bits, 11 significant bits), enough for filtered or
+ *  normalized data. DELTA is lossless for integer camera data: the
+ *  traces are cut in blocks of frames, and every block of a trace is
+ *  stored as the differences between successive values, zigzag and
+ *  varint coded, which takes one or two bytes per value for photon-limited
+ *  data. The traces are decoded block by block into a buffer when read.
+ *  The time points can be stored in any order and by several threads; the
+ *  traces are read once every time point is stored. The FLOAT and HALF
+ *  values can be kept off the heap in the buffers of an OffHeapScope, the
+ *  32-bit traces being then correlated in place through view().
+ */
+
+public abstract class TraceStore
+{
+	public final static int FLOAT = 0, HALF = 1, DELTA = 2;
+	private final static String[] NAMES = {"float", "half", "delta"};
+
+	protected final int nTraces, length;
+
+	TraceStore(int nTraces, int length)
+	{
+		this.nTraces = nTraces;
+		this.length = length;
+	}
+
+	// STORE OF nTraces TRACES OF length VALUES IN A FORMAT, ON THE HEAP
+	public static TraceStore create(int format, int nTraces, int length)
+	{
+		return create(format, nTraces, length, null);
+	}
+
+	// STORE OF nTraces TRACES OF length VALUES IN A FORMAT, IN THE BUFFERS OF A SCOPE (OR ON THE HEAP IF null)
+	//The delta blocks, coded as the frames come, always stay on the heap
+	public static TraceStore create(int format, int nTraces, int length, OffHeapScope scope)
+	{
+		if (format == FLOAT)
+			return new FloatStore(nTraces, length, scope);
+		if (format == HALF)
+			return new HalfStore(nTraces, length, scope);
+		if (format == DELTA)
+			return new DeltaStore(nTraces, length);
+		throw new IllegalArgumentException("Unknown trace storage " + format);
+	}
+
+	// FORMAT FROM ITS NAME: float, half OR delta
+	public static int parseFormat(String name)
+	{
+		for (int f = 0; f < NAMES.length; f++)
+			if (NAMES[f].equalsIgnoreCase(name.trim()))
+				return f;
+		throw new IllegalArgumentException("Unknown trace storage " + name + ", use float, half or delta");
+	}
+
+	public static String getName(int format)
+	{
+		return NAMES[format];
+	}
+
+	public int getTraceCount()
+	{
+		return nTraces;
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+
+	// STORE THE VALUES OF EVERY TRACE AT A TIME POINT (values[trace])
+	public abstract void put(int t, float[] values);
+
+	// DECODE A TRACE INTO THE BUFFER AND RETURN IT
+	public abstract float[] get(int trace, float[] buffer);
+
+	// MEMORY TAKEN BY THE STORED VALUES
+	public abstract long getBytes();
+
+	// VIEW OF A TRACE IN THE STORE, READ WITHOUT ANY COPY FROM INDEX 0 TO length, OR null IF THE VALUES ARE CODED
+	public FloatBuffer view(int trace)
+	{
+		return null;
+	}
+
+	// TRACES HELD BY ONE BUFFER, OF AT MOST OffHeapScope.MAX_BUFFER BYTES
+	private static int tracesPerBuffer(int length, int bytesPerValue)
+	{
+		return Math.max(1, OffHeapScope.MAX_BUFFER / bytesPerValue / Math.max(1, length));
+	}
+
+	//---------------##
+	// 32-BIT VALUES ##
+	//---------------##
+
+	private final static class FloatStore extends TraceStore
+	{
+		private final FloatBuffer[] buffers;	// Traces one after the other
+		private final int perBuffer;
+
+		FloatStore(int nTraces, int length, OffHeapScope scope)
+		{
+			super(nTraces, length);
+			perBuffer = tracesPerBuffer(length, 4);
+			buffers = new FloatBuffer[(nTraces + perBuffer - 1) / perBuffer];
+			for (int b = 0; b < buffers.length; b++)
+			{
+				int size = Math.min(perBuffer, nTraces - b * perBuffer) * length;
+				buffers[b] = scope != null ? scope.allocateFloats(size) : FloatBuffer.wrap(new float[size]);
+			}
+		}
+
+		public void put(int t, float[] values)
+		{
+			int p = 0;
+			for (int b = 0; b < buffers.length; b++)
+			{
+				FloatBuffer traces = buffers[b];
+				for (int index = t; index < traces.capacity(); index += length)
+					traces.put(index, values[p++]);
+			}
+		}
+
+		public float[] get(int trace, float[] buffer)
+		{
+			view(trace).get(buffer, 0, length);
+			return buffer;
+		}
+
+		public FloatBuffer view(int trace)
+		{
+			FloatBuffer traces = buffers[trace / perBuffer].duplicate();
+			int start = (trace % perBuffer) * length;
+			traces.limit(start + length);
+			traces.position(start);
+			return traces.slice();
+		}
+
+		public long getBytes()
+		{
+			return 4L * nTraces * length;
+		}
+	}
+
+	//----------------------------##
+	// IEEE HALF-PRECISION VALUES ##
+	//----------------------------##
+
+	private final static class HalfStore extends TraceStore
+	{
+		private final static float[] VALUES = new float[65536];	// Value of every half-precision code
+		static
+		{
+			for (int code = 0; code < VALUES.length; code++)
+				VALUES[code] = halfToFloat(code);
+		}
+
+		private final ShortBuffer[] buffers;	// Codes of the traces one after the other
+		private final int perBuffer;
+
+		HalfStore(int nTraces, int length, OffHeapScope scope)
+		{
+			super(nTraces, length);
+			perBuffer = tracesPerBuffer(length, 2);
+			buffers = new ShortBuffer[(nTraces + perBuffer - 1) / perBuffer];
+			for (int b = 0; b < buffers.length; b++)
+			{
+				int size = Math.min(perBuffer, nTraces - b * perBuffer) * length;
+				buffers[b] = scope != null ? scope.allocateShorts(size) : ShortBuffer.wrap(new short[size]);
+			}
+		}
+
+		public void put(int t, float[] values)
+		{
+			int p = 0;
+			for (int b = 0; b < buffers.length; b++)
+			{
+				ShortBuffer traces = buffers[b];
+				for (int index = t; index < traces.capacity(); index += length)
+					traces.put(index, floatToHalf(values[p++]));
+			}
+		}
+
+		public float[] get(int trace, float[] buffer)
+		{
+			ShortBuffer codes = buffers[trace / perBuffer];
+			int start = (trace % perBuffer) * length;
+			for (int t = 0; t < length; t++)
+				buffer[t] = VALUES[codes.get(start + t) & 0xffff];
+			return buffer;
+		}
+
+		public long getBytes()
+		{
+			return 2L * nTraces * length;
+		}
+	}
+
+	// NEAREST HALF-PRECISION VALUE (TIES TO EVEN), INFINITE ABOVE 65504
+	static short floatToHalf(float value)
+	{
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int floatExponent = (bits >>> 23) & 0xff;
+		int mantissa = bits & 0x7fffff;
+		if (floatExponent == 0xff)
+			return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+
+		int exponent = floatExponent - 127 + 15;
+		if (exponent >= 31)
+			return (short) (sign | 0x7c00);
+		if (exponent <= 0)
+		{
+			//SUBNORMAL HALF-PRECISION VALUE, OR ZERO
+			if (exponent < -10)
+				return (short) sign;
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			int half = mantissa >> shift;
+			int rest = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if (rest > halfway || (rest == halfway && (half & 1) != 0))
+				half++;
+			return (short) (sign | half);
+		}
+
+		//A CARRY OF THE ROUNDING GOES INTO THE EXPONENT, AS IT SHOULD
+		int half = (exponent << 10) | (mantissa >> 13);
+		int rest = mantissa & 0x1fff;
+		if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+			half++;
+		return (short) (sign | half);
+	}
+
+	// VALUE OF A HALF-PRECISION CODE
+	static float halfToFloat(int code)
+	{
+		int sign = (code & 0x8000) << 16;
+		int exponent = (code >>> 10) & 0x1f;
+		int mantissa = code & 0x3ff;
+		if (exponent == 0x1f)
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		if (exponent == 0)
+			return sign != 0 ? -(mantissa * 0x1p-24f) : mantissa * 0x1p-24f;
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+
+	//-----------------------------------##
+	// LOSSLESS DELTA CODING OF INTEGERS ##
+	//-----------------------------------##
+
+	private final static class DeltaStore extends TraceStore
+	{
+		private final static int BLOCK = 256;	// Frames coded together
+
+		private final byte[][] blocks;		// Codes of every trace of a block of frames, one trace after the other
+		private final int[][] offsets;		// Start of every trace in the codes of a block, and end of the last one
+		private final HashMap<Integer, int[]> pending = new HashMap<Integer, int[]>();	// Values of the blocks being filled
+		private final int[] received;		// Frames received in every block
+
+		DeltaStore(int nTraces, int length)
+		{
+			super(nTraces, length);
+			int nBlocks = (length + BLOCK - 1) / BLOCK;
+			blocks = new byte[nBlocks][];
+			offsets = new int[nBlocks][];
+			received = new int[nBlocks];
+		}
+
+		public void put(int t, float[] values)
+		{
+			int block = t / BLOCK;
+			int frames = Math.min(BLOCK, length - block * BLOCK);
+			int[] tile;
+			synchronized (this)
+			{
+				tile = pending.get(block);
+				if (tile == null)
+				{
+					tile = new int[nTraces * frames];
+					pending.put(block, tile);
+				}
+			}
+
+			int frame = t - block * BLOCK;
+			for (int p = 0; p < nTraces; p++)
+			{
+				float value = values[p];
+				if (value != Math.rint(value) || Math.abs(value) > (1 << 29))
+					throw new IllegalArgumentException("The delta storage is for integer values, not " + value + ": use the half or float storage");
+				tile[p * frames + frame] = (int) value;
+			}
+
+			//THE THREAD GIVING THE LAST FRAME OF A BLOCK CODES IT
+			synchronized (this)
+			{
+				if (++received[block] < frames)
+					return;
+				pending.remove(block);
+			}
+			encode(block, tile, frames);
+		}
+
+		// CODE EVERY TRACE OF A BLOCK: FIRST VALUE THEN DIFFERENCES, ZIGZAG AND VARINT
+		private void encode(int block, int[] tile, int frames)
+		{
+			byte[] codes = new byte[tile.length * 2];
+			int[] starts = new int[nTraces + 1];
+			int position = 0;
+			for (int p = 0; p < nTraces; p++)
+			{
+				starts[p] = position;
+				int previous = 0;
+				for (int t = p * frames; t < (p + 1) * frames; t++)
+				{
+					int delta = tile[t] - previous;
+					previous = tile[t];
+					int zigzag = (delta << 1) ^ (delta >> 31);
+					if (position + 5 > codes.length)
+						codes = Arrays.copyOf(codes, 2 * codes.length + 5);
+					while ((zigzag & ~0x7f) != 0)
+					{
+						codes[position++] = (byte) ((zigzag & 0x7f) | 0x80);
+						zigzag >>>= 7;
+					}
+					codes[position++] = (byte) zigzag;
+				}
+			}
+			starts[nTraces] = position;
+			offsets[block] = starts;
+			blocks[block] = Arrays.copyOf(codes, position);
+		}
+
+		public float[] get(int trace, float[] buffer)
+		{
+			for (int block = 0; block < blocks.length; block++)
+			{
+				byte[] codes = blocks[block];
+				if (codes == null)
+					throw new IllegalStateException("The frames " + block * BLOCK + " to " + Math.min(length, (block + 1) * BLOCK) + " were not all stored");
+				int position = offsets[block][trace];
+
+				int end = Math.min(length, (block + 1) * BLOCK);
+				int value = 0;
+				for (int t = block * BLOCK; t < end; t++)
+				{
+					int zigzag = 0, shift = 0, code;
+					do
+					{
+						code = codes[position++];
+						zigzag |= (code & 0x7f) << shift;
+						shift += 7;
+					}
+					while (code < 0);
+					value += (zigzag >>> 1) ^ -(zigzag & 1);
+					buffer[t] = value;
+				}
+			}
+			return buffer;
+		}
+
+		public synchronized long getBytes()
+		{
+			long bytes = 0;
+			for (int block = 0; block < blocks.length; block++)
+				if (blocks[block] != null)
+					bytes += blocks[block].length + 4L * offsets[block].length;
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package acf_engine;
+
+import jdk.incubator.vector.*;
+
+/** KERNELS OF THE LagCorrelator WRITTEN WITH THE VECTOR API
+ *
+ *  Only loaded by LagKernels when the module jdk.incubator.vector is
+ *  present. The sums and the subtraction take the widest vectors of the
+ *  processor; the products are taken on vectors of half that width, so
+ *  that they convert to a full vector of double for the sums. The last
+ *  traces, fewer than a vector, go through the scalar loops.
+ *  Kept out of sources/ so that the plug-in builds with any javac, it is
+ *  compiled on Java 16 or later against the classes of the plug-in:
+ *    javac --add-modules jdk.incubator.vector -cp <classes> -d <classes> vector/acf_engine/VectorLagKernels.java
+ */
+
+final class VectorLagKernels extends LagKernels
+{
+	private final static VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private final static VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private final static VectorSpecies<Float> PRODUCTS = VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));	// As many floats as the doubles of a vector
+
+	void add(float[] values, float[] sums, int first, int last)
+	{
+		int k = first;
+		for (int end = first + FLOATS.loopBound(last - first); k < end; k += FLOATS.length())
+			FloatVector.fromArray(FLOATS, sums, k).add(FloatVector.fromArray(FLOATS, values, k)).intoArray(sums, k);
+		super.add(values, sums, k, last);
+	}
+
+	void subtract(float[] values, float[] means, int first, int last)
+	{
+		int k = first;
+		for (int end = first + FLOATS.loopBound(last - first); k < end; k += FLOATS.length())
+			FloatVector.fromArray(FLOATS, values, k).sub(FloatVector.fromArray(FLOATS, means, k)).intoArray(values, k);
+		super.subtract(values, means, k, last);
+	}
+
+	void addProducts(float[] a, float[] b, double[] sums, int first, int last)
+	{
+		int k = first;
+		for (int end = first + PRODUCTS.loopBound(last - first); k < end; k += PRODUCTS.length())
+		{
+			FloatVector product = FloatVector.fromArray(PRODUCTS, a, k).mul(FloatVector.fromArray(PRODUCTS, b, k));
+			DoubleVector.fromArray(DOUBLES, sums, k).add(product.convertShape(VectorOperators.F2D, DOUBLES, 0)).intoArray(sums, k);
+		}
+		super.addProducts(a, b, sums, k, last);
+	}
+
+	public String toString()
+	{
+		return "vector (" + FLOATS.length() + " floats)";
+	}
+}